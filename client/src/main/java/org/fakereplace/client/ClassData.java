@@ -17,6 +17,10 @@
 
 package org.fakereplace.client;
 
+import java.io.IOException;
+
+import org.fakereplace.protocol.Fingerprint;
+
 /**
 * @author Stuart Douglas
 */
@@ -24,10 +28,19 @@ public final class ClassData {
     private final String className;
     private final long timestamp;
     private final ContentSource contentSource;
+    private volatile Long fingerprint;
 
     public ClassData(String className, long timestamp, final ContentSource contentSource) {
+        this(className, timestamp, null, contentSource);
+    }
+
+    /**
+     * @param fingerprint the {@link Fingerprint} of the class bytes, or null if it should be computed when needed
+     */
+    public ClassData(String className, long timestamp, Long fingerprint, final ContentSource contentSource) {
         this.className = className;
         this.timestamp = timestamp;
+        this.fingerprint = fingerprint;
         this.contentSource = contentSource;
     }
 
@@ -42,4 +55,19 @@ public final class ClassData {
     public ContentSource getContentSource() {
         return contentSource;
     }
+
+    public long getFingerprint() throws IOException {
+        Long fingerprint = this.fingerprint;
+        if (fingerprint == null) {
+            this.fingerprint = fingerprint = Fingerprint.of(contentSource.getData());
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return the fingerprint if it was supplied or has already been computed, otherwise null
+     */
+    Long getKnownFingerprint() {
+        return fingerprint;
+    }
 }
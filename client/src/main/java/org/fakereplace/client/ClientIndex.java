@@ -0,0 +1,346 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.fakereplace.protocol.Fingerprint;
+
+/**
+ * The state of the classes and resources as of the last successful push, persisted between runs so that only
+ * the entries that may have changed since then have to be sent.
+ * <p>
+ * For each file this keeps the size, modification time and {@link Fingerprint}, and for each directory its
+ * modification time and contents. Directories whose modification time has not changed are not listed again,
+ * their known files are just checked for a new size or modification time. Files that look changed are read to
+ * compare the fingerprint, so a file that was only touched is not sent. Archive entries are compared using the
+ * size, time and CRC from the central directory, and an archive whose own size and modification time have not
+ * changed is not opened at all.
+ * <p>
+ * The changes found are only recorded by {@link #save()}, which should be called once the push has succeeded.
+ * Times that are too recent to be trusted at the file system timestamp resolution are not recorded, so these
+ * entries are checked again next time.
+ *
+ * @author Stuart Douglas
+ */
+public final class ClientIndex {
+
+    private static final int MAGIC = 0xFAC1DE01;
+
+    /**
+     * modification times closer to the scan than this are not recorded
+     */
+    private static final long RECENT = 2000;
+
+    private static final String ARCHIVE_SEPARATOR = "!/";
+
+    private final File file;
+    private final Map<String, DirectoryState> directories;
+    private final Map<String, FileState> files;
+    private final Map<String, DirectoryState> pendingDirectories = new HashMap<String, DirectoryState>();
+    private final Map<String, FileState> pendingFiles = new HashMap<String, FileState>();
+    private final Set<String> pendingRemovals = new HashSet<String>();
+    /**
+     * directories that have been deleted, everything under these is removed from the index
+     */
+    private final Set<String> pendingRemovedTrees = new HashSet<String>();
+
+    private ClientIndex(File file, Map<String, DirectoryState> directories, Map<String, FileState> files) {
+        this.file = file;
+        this.directories = directories;
+        this.files = files;
+    }
+
+    /**
+     * Loads the index from the given file. If the file does not exist or cannot be read the index is empty,
+     * and everything is treated as changed.
+     */
+    public static ClientIndex load(File file) {
+        final Map<String, DirectoryState> directories = new HashMap<String, DirectoryState>();
+        final Map<String, FileState> files = new HashMap<String, FileState>();
+        if (file.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                if (in.readInt() == MAGIC) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; ++i) {
+                        final String path = in.readUTF();
+                        final long modified = in.readLong();
+                        final String[] fileNames = readNames(in);
+                        directories.put(path, new DirectoryState(modified, fileNames, readNames(in)));
+                    }
+                    count = in.readInt();
+                    for (int i = 0; i < count; ++i) {
+                        final String path = in.readUTF();
+                        files.put(path, new FileState(in.readLong(), in.readLong(), in.readLong()));
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("Could not read fakereplace index " + file + ", all entries will be checked");
+                directories.clear();
+                files.clear();
+            }
+        }
+        return new ClientIndex(file, directories, files);
+    }
+
+    /**
+     * @return the .class files under the directory that may have changed since the last save
+     */
+    public Map<String, ClassData> findChangedClasses(File classesDirectory) throws IOException {
+        final Map<String, ClassData> result = new HashMap<String, ClassData>();
+        final long now = System.currentTimeMillis();
+        scanDirectory(classesDirectory, "", now, result);
+        return result;
+    }
+
+    /**
+     * @return the entries of the archive that may have changed since the last save
+     */
+    public Map<String, ResourceData> findChangedResources(final ZipFile archive) {
+        final Map<String, ResourceData> result = new HashMap<String, ResourceData>();
+        final File archiveFile = new File(archive.getName());
+        final String archivePath = archiveFile.getAbsolutePath();
+        final long now = System.currentTimeMillis();
+        final FileState archiveState = new FileState(archiveFile.length(), trusted(archiveFile.lastModified(), now), 0);
+        if (archiveState.matches(files.get(archivePath))) {
+            return result;
+        }
+        pendingFiles.put(archivePath, archiveState);
+        final String prefix = archivePath + ARCHIVE_SEPARATOR;
+        final Set<String> seen = new HashSet<String>();
+        final Enumeration<? extends ZipEntry> entries = archive.entries();
+        while (entries.hasMoreElements()) {
+            final ZipEntry entry = entries.nextElement();
+            if (entry.isDirectory()) {
+                continue;
+            }
+            final String key = prefix + entry.getName();
+            seen.add(key);
+            final FileState state = new FileState(entry.getSize(), entry.getTime(), entry.getCrc());
+            if (!state.matches(files.get(key))) {
+                pendingFiles.put(key, state);
+                result.put(entry.getName(), new ResourceData(entry.getName(), entry.getTime(), () -> {
+                    try (InputStream stream = archive.getInputStream(entry)) {
+                        return readAll(stream, (int) entry.getSize());
+                    }
+                }));
+            }
+        }
+        for (String key : files.keySet()) {
+            if (key.startsWith(prefix) && !seen.contains(key)) {
+                pendingRemovals.add(key);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Records the changes found since the index was loaded, and writes it back to its file
+     */
+    public void save() throws IOException {
+        files.keySet().removeAll(pendingRemovals);
+        for (String tree : pendingRemovedTrees) {
+            removeTree(directories, tree);
+            removeTree(files, tree);
+        }
+        directories.putAll(pendingDirectories);
+        files.putAll(pendingFiles);
+        pendingDirectories.clear();
+        pendingFiles.clear();
+        pendingRemovals.clear();
+        pendingRemovedTrees.clear();
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        final File temp = new File(parent, file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(directories.size());
+            for (Map.Entry<String, DirectoryState> entry : directories.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().modified);
+                writeNames(out, entry.getValue().files);
+                writeNames(out, entry.getValue().directories);
+            }
+            out.writeInt(files.size());
+            for (Map.Entry<String, FileState> entry : files.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().size);
+                out.writeLong(entry.getValue().modified);
+                out.writeLong(entry.getValue().fingerprint);
+            }
+        }
+        Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void scanDirectory(final File dir, final String packagePrefix, final long now, final Map<String, ClassData> result) throws IOException {
+        final String path = dir.getAbsolutePath();
+        final long modified = dir.lastModified();
+        DirectoryState state = directories.get(path);
+        if (state == null || state.modified != modified) {
+            final File[] children = dir.listFiles();
+            if (children == null) {
+                return;
+            }
+            final List<String> fileNames = new ArrayList<String>();
+            final List<String> dirNames = new ArrayList<String>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    dirNames.add(child.getName());
+                } else if (child.getName().endsWith(".class")) {
+                    fileNames.add(child.getName());
+                }
+            }
+            if (state != null) {
+                for (String name : state.files) {
+                    if (!fileNames.contains(name)) {
+                        pendingRemovals.add(path + File.separator + name);
+                    }
+                }
+                for (String name : state.directories) {
+                    if (!dirNames.contains(name)) {
+                        pendingRemovedTrees.add(path + File.separator + name);
+                    }
+                }
+            }
+            state = new DirectoryState(trusted(modified, now), fileNames.toArray(new String[fileNames.size()]), dirNames.toArray(new String[dirNames.size()]));
+            pendingDirectories.put(path, state);
+        }
+        for (String name : state.files) {
+            final File file = new File(dir, name);
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+            if (lastModified == 0) {
+                //deleted since the directory was listed
+                continue;
+            }
+            final String filePath = file.getAbsolutePath();
+            final FileState old = files.get(filePath);
+            if (old != null && old.size == length && old.modified == lastModified) {
+                continue;
+            }
+            final byte[] data = Files.readAllBytes(file.toPath());
+            final long fingerprint = Fingerprint.of(data);
+            pendingFiles.put(filePath, new FileState(data.length, trusted(lastModified, now), fingerprint));
+            if (old != null && old.fingerprint == fingerprint) {
+                //only touched
+                continue;
+            }
+            final String className = packagePrefix + name.substring(0, name.length() - ".class".length());
+            result.put(className, new ClassData(className, lastModified, fingerprint, () -> Files.readAllBytes(file.toPath())));
+        }
+        for (String name : state.directories) {
+            scanDirectory(new File(dir, name), packagePrefix + name + ".", now, result);
+        }
+    }
+
+    private static void removeTree(final Map<String, ?> map, final String tree) {
+        final Iterator<String> it = map.keySet().iterator();
+        while (it.hasNext()) {
+            final String key = it.next();
+            if (key.equals(tree) || key.startsWith(tree + File.separator)) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return the time, or -1 if it is too close to now to be sure that a later change would give a different time
+     */
+    private static long trusted(final long modified, final long now) {
+        return now - modified < RECENT ? -1 : modified;
+    }
+
+    private static byte[] readAll(final InputStream stream, final int size) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(size > 0 ? size : 512);
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = stream.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static String[] readNames(final DataInputStream in) throws IOException {
+        final String[] names = new String[in.readInt()];
+        for (int i = 0; i < names.length; ++i) {
+            names[i] = in.readUTF();
+        }
+        return names;
+    }
+
+    private static void writeNames(final DataOutputStream out, final String[] names) throws IOException {
+        out.writeInt(names.length);
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static final class DirectoryState {
+        private final long modified;
+        private final String[] files;
+        private final String[] directories;
+
+        private DirectoryState(long modified, String[] files, String[] directories) {
+            this.modified = modified;
+            this.files = files;
+            this.directories = directories;
+        }
+    }
+
+    private static final class FileState {
+        private final long size;
+        private final long modified;
+        /**
+         * the {@link Fingerprint} for files, or the CRC for archive entries
+         */
+        private final long fingerprint;
+
+        private FileState(long size, long modified, long fingerprint) {
+            this.size = size;
+            this.modified = modified;
+            this.fingerprint = fingerprint;
+        }
+
+        boolean matches(FileState other) {
+            return other != null && other.size == size && other.modified == modified && modified != -1 && other.fingerprint == fingerprint;
+        }
+    }
+}
@@ -21,27 +21,143 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
- * Simple client side implementation of the fakereplace protocol
+ * Simple client side implementation of the fakereplace protocol.
+ * <p>
+ * Version 2 of the protocol is used if the agent supports it, otherwise the client reconnects
+ * and falls back to version 1. To run several update rounds over one connection use a {@link FakeReplaceSession}.
+ * The same change set can also be pushed to several agents at once.
  *
  * @author Stuart Douglas
  */
 public class FakeReplaceClient {
 
-    public static void run(final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) throws IOException {
-        final Socket socket = new Socket("localhost", 6555);
+    private static final int DEFAULT_PORT = 6555;
+
+    /**
+     * @return true if the agent replaced everything that it asked for
+     */
+    public static boolean run(final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) throws IOException {
+        try (FakeReplaceSession session = new FakeReplaceSession("localhost", DEFAULT_PORT)) {
+            return session.update(deploymentName, classes, resources);
+        }
+    }
+
+    /**
+     * Pushes the same change set to several agents at once. Each agent negotiates which entries it needs on its
+     * own session, but the content of each class and resource is only read once to send it, however many agents
+     * need it, and only kept until every agent has sent it or found that it does not need it.
+     *
+     * @param agents the agents, as host:port or just host for the default port
+     */
+    public static UpdateReport run(final List<String> agents, final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) {
+        if (agents.size() == 1) {
+            return new UpdateReport(Collections.singletonList(update(agents.get(0), deploymentName, classes, resources)));
+        }
+        //the fingerprints are computed up front, so the agents only read the content of the entries they need
+        final Map<String, Long> classFingerprints = new HashMap<String, Long>();
+        final Map<String, SharedContentSource> sharedClasses = new HashMap<String, SharedContentSource>();
+        for (Map.Entry<String, ClassData> entry : classes.entrySet()) {
+            try {
+                classFingerprints.put(entry.getKey(), entry.getValue().getFingerprint());
+            } catch (IOException e) {
+                //each agent reports the failure when it reads the content
+            }
+            sharedClasses.put(entry.getKey(), new SharedContentSource(entry.getValue().getContentSource(), agents.size()));
+        }
+        final Map<String, Long> resourceFingerprints = new HashMap<String, Long>();
+        final Map<String, SharedContentSource> sharedResources = new HashMap<String, SharedContentSource>();
+        for (Map.Entry<String, ResourceData> entry : resources.entrySet()) {
+            try {
+                resourceFingerprints.put(entry.getKey(), entry.getValue().getFingerprint());
+            } catch (IOException e) {
+                //each agent reports the failure when it reads the content
+            }
+            sharedResources.put(entry.getKey(), new SharedContentSource(entry.getValue().getContentSource(), agents.size()));
+        }
+        final ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, agents.size()), r -> {
+            final Thread thread = new Thread(r, "Fakereplace client");
+            thread.setDaemon(true);
+            return thread;
+        });
         try {
-            run(socket, deploymentName, classes, resources);
+            final List<Future<UpdateReport.AgentResult>> futures = new ArrayList<Future<UpdateReport.AgentResult>>();
+            for (final String agent : agents) {
+                final Map<String, ClassData> agentClasses = new HashMap<String, ClassData>();
+                for (Map.Entry<String, ClassData> entry : classes.entrySet()) {
+                    final ClassData data = entry.getValue();
+                    agentClasses.put(entry.getKey(), new ClassData(data.getClassName(), data.getTimestamp(), classFingerprints.get(entry.getKey()), sharedClasses.get(entry.getKey()).forAgent()));
+                }
+                final Map<String, ResourceData> agentResources = new HashMap<String, ResourceData>();
+                for (Map.Entry<String, ResourceData> entry : resources.entrySet()) {
+                    final ResourceData data = entry.getValue();
+                    agentResources.put(entry.getKey(), new ResourceData(data.getRelativePath(), data.getTimestamp(), resourceFingerprints.get(entry.getKey()), sharedResources.get(entry.getKey()).forAgent()));
+                }
+                futures.add(executor.submit(() -> {
+                    try {
+                        return update(agent, deploymentName, agentClasses, agentResources);
+                    } finally {
+                        //the agent will not read anything else
+                        for (ClassData data : agentClasses.values()) {
+                            SharedContentSource.release(data.getContentSource());
+                        }
+                        for (ResourceData data : agentResources.values()) {
+                            SharedContentSource.release(data.getContentSource());
+                        }
+                    }
+                }));
+            }
+            final List<UpdateReport.AgentResult> results = new ArrayList<UpdateReport.AgentResult>();
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    results.add(new UpdateReport.AgentResult(agents.get(i), false, e, Collections.<UpdateStatus>emptyList(), 0));
+                } catch (ExecutionException e) {
+                    results.add(new UpdateReport.AgentResult(agents.get(i), false, e, Collections.<UpdateStatus>emptyList(), 0));
+                }
+            }
+            return new UpdateReport(results);
         } finally {
-            socket.close();
+            executor.shutdownNow();
         }
     }
 
-    public static void run(Socket socket, final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) {
+    private static UpdateReport.AgentResult update(final String agent, final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) {
+        final long start = System.currentTimeMillis();
+        final List<UpdateStatus> failures = Collections.synchronizedList(new ArrayList<UpdateStatus>());
+        final int separator = agent.lastIndexOf(':');
+        final String host = separator == -1 ? agent : agent.substring(0, separator);
+        try (FakeReplaceSession session = new FakeReplaceSession(host, separator == -1 ? DEFAULT_PORT : Integer.parseInt(agent.substring(separator + 1)))) {
+            session.setListener(status -> {
+                if (status.getState() == UpdateStatus.State.FAILED) {
+                    failures.add(status);
+                }
+            });
+            final boolean succeeded = session.update(deploymentName, classes, resources);
+            return new UpdateReport.AgentResult(agent, succeeded, null, failures, System.currentTimeMillis() - start);
+        } catch (IOException | RuntimeException e) {
+            return new UpdateReport.AgentResult(agent, false, e, failures, System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * Runs version 1 of the protocol over the given socket
+     */
+    public static boolean run(Socket socket, final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) {
         try {
             final DataInputStream input = new DataInputStream(socket.getInputStream());
             final DataOutputStream output = new DataOutputStream(socket.getOutputStream());
@@ -99,10 +215,12 @@ public class FakeReplaceClient {
             int result = input.readInt();
             if(result != 0) {
                 System.out.println("Replacement failed");
+                return false;
             }
-
+            return true;
         } catch (IOException e) {
             e.printStackTrace();
+            return false;
         } finally {
             try {
                 socket.close();
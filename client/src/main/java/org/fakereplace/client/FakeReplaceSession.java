@@ -0,0 +1,277 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.fakereplace.protocol.Delta;
+import org.fakereplace.protocol.Frames;
+
+/**
+ * A persistent connection to the agent, that can be used for any number of update rounds.
+ * <p>
+ * The connection is opened lazily, and is re-opened by the next update if it fails. The agent closes sessions
+ * that have been idle for a while, so an update on an existing connection that turns out to be closed is retried
+ * once on a new one. If the agent does not support version 2 of the protocol every update falls back to a new
+ * version 1 connection.
+ * <p>
+ * Version 2 sends the content fingerprint of every class and resource, which means they all have to be
+ * read. Supplying precomputed fingerprints in {@link ClassData} and {@link ResourceData} avoids this.
+ * <p>
+ * Larger classes and resources that the agent already has a version of are sent as a {@link Delta} against it.
+ *
+ * @author Stuart Douglas
+ */
+public class FakeReplaceSession implements Closeable {
+
+    /**
+     * resources larger than this are sent in parts of this size, so the agent never has to hold them in memory
+     */
+    private static final int RESOURCE_PART_SIZE = 256 * 1024;
+
+    private final String host;
+    private final int port;
+
+    private Socket socket;
+    private Frames frames;
+    private boolean legacy;
+    private boolean delta;
+    private boolean statusReports;
+    private UpdateListener listener;
+
+    public FakeReplaceSession(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    /**
+     * Sets the listener that is told about the progress of each update. Without a listener failures and the time
+     * taken by each stage are printed.
+     */
+    public synchronized void setListener(UpdateListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the agent replaced everything that it asked for
+     */
+    public synchronized boolean update(final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) throws IOException {
+        final boolean reused = frames != null;
+        if (frames == null && !legacy) {
+            connect();
+        }
+        if (legacy) {
+            return FakeReplaceClient.run(new Socket(host, port), deploymentName, classes, resources);
+        }
+        try {
+            return runRound(deploymentName, classes, resources);
+        } catch (EOFException | SocketException e) {
+            close();
+            if (!reused) {
+                throw e;
+            }
+            //the agent has closed the idle session
+            return update(deploymentName, classes, resources);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    private void connect() throws IOException {
+        final Socket socket = new Socket(host, port);
+        final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        try {
+            output.writeInt(Frames.MAGIC);
+            output.writeInt(Frames.VERSION);
+            output.writeInt(Frames.COMPRESSION_DEFLATE | Frames.DELTA | Frames.STATUS_REPORTS);
+            output.flush();
+            if (input.readInt() != Frames.MAGIC || input.readInt() != Frames.VERSION) {
+                socket.close();
+                legacy = true;
+                return;
+            }
+            final int compression = input.readInt();
+            this.socket = socket;
+            this.frames = new Frames(input, output);
+            frames.setDeflate((compression & Frames.COMPRESSION_DEFLATE) != 0);
+            this.delta = (compression & Frames.DELTA) != 0;
+            this.statusReports = (compression & Frames.STATUS_REPORTS) != 0;
+        } catch (EOFException | SocketException e) {
+            //an old agent closes the connection when it sees the wrong magic number
+            socket.close();
+            legacy = true;
+        }
+    }
+
+    private boolean runRound(final String deploymentName, Map<String, ClassData> classes, final Map<String, ResourceData> resources) throws IOException {
+        final Frames.Payload index = new Frames.Payload();
+        index.writeString(deploymentName);
+        index.writeInt(classes.size());
+        for (Map.Entry<String, ClassData> entry : classes.entrySet()) {
+            index.writeString(entry.getKey());
+            index.writeLong(entry.getValue().getTimestamp());
+            index.writeLong(entry.getValue().getFingerprint());
+        }
+        index.writeInt(resources.size());
+        for (Map.Entry<String, ResourceData> entry : resources.entrySet()) {
+            index.writeString(entry.getValue().getRelativePath());
+            index.writeLong(entry.getValue().getTimestamp());
+            index.writeLong(entry.getValue().getFingerprint());
+        }
+        frames.write(Frames.INDEX, index);
+
+        final Frames.Frame updates = frames.read(Frames.UPDATES);
+        final Set<String> classNames = readNames(updates);
+        final Set<String> resourceNames = readNames(updates);
+        //content shared with other agents can be dropped as soon as they are done with it
+        for (Map.Entry<String, ClassData> entry : classes.entrySet()) {
+            if (!classNames.contains(entry.getKey())) {
+                SharedContentSource.release(entry.getValue().getContentSource());
+            }
+        }
+        for (Map.Entry<String, ResourceData> entry : resources.entrySet()) {
+            if (!resourceNames.contains(entry.getKey())) {
+                SharedContentSource.release(entry.getValue().getContentSource());
+            }
+        }
+        final Map<String, Delta.Signature> classSignatures;
+        final Map<String, Delta.Signature> resourceSignatures;
+        if (delta) {
+            final Frames.Frame signatures = frames.read(Frames.SIGNATURES);
+            classSignatures = Delta.readSignatures(signatures);
+            resourceSignatures = Delta.readSignatures(signatures);
+        } else {
+            classSignatures = Collections.emptyMap();
+            resourceSignatures = Collections.emptyMap();
+        }
+
+        if (classNames.isEmpty()) {
+            System.out.println("No updated classes found to replace");
+        } else {
+            System.out.println("Updating " + classNames.size() + " classes");
+        }
+
+        for (String name : classNames) {
+            writeEntry(name, classes.get(name).getContentSource().getData(), classSignatures.get(name), Frames.CLASS, Frames.CLASS_DELTA);
+        }
+        for (String name : resourceNames) {
+            writeEntry(name, resources.get(name).getContentSource().getData(), resourceSignatures.get(name), Frames.RESOURCE, Frames.RESOURCE_DELTA);
+        }
+        frames.write(Frames.END, new Frames.Payload());
+
+        Frames.Frame frame = frames.read();
+        while (statusReports && frame.getType() == Frames.STATUS) {
+            final UpdateStatus status = readStatus(frame);
+            if (listener != null) {
+                listener.statusChanged(status);
+            } else if (status.getState() == UpdateStatus.State.FAILED || status.getKind() == UpdateStatus.Kind.STAGE) {
+                System.out.println(status);
+            }
+            frame = frames.read();
+        }
+        if (frame.getType() != Frames.RESULT) {
+            throw new IOException("Unexpected frame type " + frame.getType() + ", expected " + Frames.RESULT);
+        }
+        if (frame.readInt() != 0) {
+            System.out.println("Replacement failed");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * sends an entry as a delta if the agent sent a signature for it and the delta is smaller, otherwise in full,
+     * splitting large resources into parts
+     */
+    private void writeEntry(final String name, final byte[] data, final Delta.Signature signature, final byte type, final byte deltaType) throws IOException {
+        if (signature != null) {
+            final Frames.Payload payload = Delta.encode(name, data, signature);
+            if (payload != null) {
+                frames.write(deltaType, payload);
+                return;
+            }
+        }
+        if (type == Frames.RESOURCE && data.length > RESOURCE_PART_SIZE) {
+            for (int offset = 0; offset < data.length; offset += RESOURCE_PART_SIZE) {
+                final int length = Math.min(RESOURCE_PART_SIZE, data.length - offset);
+                final Frames.Payload part = new Frames.Payload();
+                part.writeString(name);
+                part.writeInt(length);
+                part.write(data, offset, length);
+                frames.write(Frames.RESOURCE_PART, part);
+            }
+            return;
+        }
+        final Frames.Payload payload = new Frames.Payload();
+        payload.writeString(name);
+        payload.writeData(data);
+        frames.write(type, payload);
+    }
+
+    private static UpdateStatus readStatus(final Frames.Frame frame) throws IOException {
+        final UpdateStatus.Kind kind = valueOf(UpdateStatus.Kind.values(), frame.readUnsignedByte());
+        final String name = frame.readString();
+        final UpdateStatus.State state = valueOf(UpdateStatus.State.values(), frame.readUnsignedByte());
+        final long nanos = frame.readLong();
+        final String message = frame.readString();
+        return new UpdateStatus(kind, name, state, nanos, message.isEmpty() ? null : message);
+    }
+
+    private static <T extends Enum<T>> T valueOf(final T[] values, final int ordinal) throws IOException {
+        if (ordinal >= values.length) {
+            throw new IOException("Invalid status value " + ordinal);
+        }
+        return values[ordinal];
+    }
+
+    private static Set<String> readNames(final Frames.Frame frame) throws IOException {
+        final Set<String> names = new HashSet<String>();
+        int count = frame.readInt();
+        for (int i = 0; i < count; ++i) {
+            names.add(frame.readString());
+        }
+        return names;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (frames != null) {
+            frames.close();
+            frames = null;
+        }
+        if (socket != null) {
+            final Socket socket = this.socket;
+            this.socket = null;
+            socket.close();
+        }
+    }
+}
@@ -17,6 +17,10 @@
 
 package org.fakereplace.client;
 
+import java.io.IOException;
+
+import org.fakereplace.protocol.Fingerprint;
+
 /**
 * @author Stuart Douglas
 */
@@ -24,10 +28,19 @@ public final class ResourceData {
     private final long timestamp;
     private final String relativePath;
     private final ContentSource contentSource;
+    private volatile Long fingerprint;
 
     public ResourceData(final String relativePath, long time, final ContentSource contentSource) {
+        this(relativePath, time, null, contentSource);
+    }
+
+    /**
+     * @param fingerprint the {@link Fingerprint} of the resource, or null if it should be computed when needed
+     */
+    public ResourceData(final String relativePath, long time, Long fingerprint, final ContentSource contentSource) {
         this.relativePath = relativePath;
         this.timestamp = time;
+        this.fingerprint = fingerprint;
         this.contentSource = contentSource;
     }
 
@@ -42,4 +55,19 @@ public final class ResourceData {
     public ContentSource getContentSource() {
         return contentSource;
     }
+
+    public long getFingerprint() throws IOException {
+        Long fingerprint = this.fingerprint;
+        if (fingerprint == null) {
+            this.fingerprint = fingerprint = Fingerprint.of(contentSource.getData());
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return the fingerprint if it was supplied or has already been computed, otherwise null
+     */
+    Long getKnownFingerprint() {
+        return fingerprint;
+    }
 }
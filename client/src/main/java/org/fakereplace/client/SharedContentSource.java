@@ -0,0 +1,91 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.client;
+
+import java.io.IOException;
+
+/**
+ * Content that is pushed to several agents at once. It is read the first time any agent needs it, and the same bytes
+ * are handed to the others. Once every agent has either sent it or found that it does not need it, the bytes are
+ * dropped, so only the entries that are still in flight are held in memory.
+ *
+ * @author Stuart Douglas
+ */
+final class SharedContentSource {
+
+    private final ContentSource source;
+    private int pending;
+    private byte[] data;
+
+    SharedContentSource(ContentSource source, int agents) {
+        this.source = source;
+        this.pending = agents;
+    }
+
+    /**
+     * @return the content as seen by one of the agents
+     */
+    ContentSource forAgent() {
+        return new AgentContentSource();
+    }
+
+    /**
+     * Tells the shared content that an agent is done with it, if the given content is shared
+     */
+    static void release(ContentSource source) {
+        if (source instanceof AgentContentSource) {
+            ((AgentContentSource) source).release();
+        }
+    }
+
+    private synchronized byte[] read() throws IOException {
+        byte[] result = data;
+        if (result == null) {
+            result = source.getData();
+            if (pending > 0) {
+                data = result;
+            }
+        }
+        return result;
+    }
+
+    private synchronized void agentDone() {
+        if (--pending == 0) {
+            data = null;
+        }
+    }
+
+    private final class AgentContentSource implements ContentSource {
+
+        private boolean released;
+
+        @Override
+        public byte[] getData() throws IOException {
+            final byte[] result = read();
+            release();
+            return result;
+        }
+
+        synchronized void release() {
+            if (!released) {
+                released = true;
+                agentDone();
+            }
+        }
+    }
+}
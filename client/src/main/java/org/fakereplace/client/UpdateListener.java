@@ -15,29 +15,16 @@
  *  limitations under the License.
  */
 
-package org.fakereplace.util;
-
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+package org.fakereplace.client;
 
 /**
+ * Is told about the progress of an update as the agent reports it.
+ *
  * @author Stuart Douglas
+ * @see FakeReplaceSession#setListener(UpdateListener)
  */
-public class MD5 {
-    public static String md5(byte[] data) {
+public interface UpdateListener {
 
-        MessageDigest m = null;
-        try {
-            m = MessageDigest.getInstance("MD5");
+    void statusChanged(UpdateStatus status);
 
-            m.reset();
-            m.update(data);
-            byte[] digest = m.digest();
-            BigInteger bigInt = new BigInteger(1,digest);
-            return bigInt.toString(16);
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
-    }
 }
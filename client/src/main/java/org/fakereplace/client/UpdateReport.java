@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.client;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of pushing one change set to several agents.
+ *
+ * @author Stuart Douglas
+ * @see FakeReplaceClient#run(List, String, java.util.Map, java.util.Map)
+ */
+public final class UpdateReport {
+
+    private final List<AgentResult> results;
+
+    UpdateReport(List<AgentResult> results) {
+        this.results = Collections.unmodifiableList(new ArrayList<AgentResult>(results));
+    }
+
+    /**
+     * @return the result for each agent, in the order the agents were given
+     */
+    public List<AgentResult> getResults() {
+        return results;
+    }
+
+    /**
+     * @return true if there was at least one agent, and every agent replaced everything it asked for
+     */
+    public boolean isSucceeded() {
+        if (results.isEmpty()) {
+            return false;
+        }
+        for (AgentResult result : results) {
+            if (!result.isSucceeded()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        for (AgentResult result : results) {
+            if (builder.length() > 0) {
+                builder.append('\n');
+            }
+            builder.append(result);
+        }
+        return builder.toString();
+    }
+
+    public static final class AgentResult {
+        private final String agent;
+        private final boolean succeeded;
+        private final Exception error;
+        private final List<UpdateStatus> failures;
+        private final long millis;
+
+        AgentResult(String agent, boolean succeeded, Exception error, List<UpdateStatus> failures, long millis) {
+            this.agent = agent;
+            this.succeeded = succeeded;
+            this.error = error;
+            this.failures = Collections.unmodifiableList(new ArrayList<UpdateStatus>(failures));
+            this.millis = millis;
+        }
+
+        /**
+         * @return the agent, as host:port
+         */
+        public String getAgent() {
+            return agent;
+        }
+
+        public boolean isSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * @return the error if the agent could not be updated at all, otherwise null
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        /**
+         * @return the classes and resources the agent reported as failed
+         */
+        public List<UpdateStatus> getFailures() {
+            return failures;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder builder = new StringBuilder(agent).append(": ");
+            if (error != null) {
+                builder.append("error ").append(error);
+            } else {
+                builder.append(succeeded ? "updated" : "failed");
+            }
+            builder.append(" in ").append(millis).append("ms");
+            for (UpdateStatus failure : failures) {
+                builder.append("\n    ").append(failure);
+            }
+            return builder.toString();
+        }
+    }
+}
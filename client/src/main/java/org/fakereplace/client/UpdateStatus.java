@@ -0,0 +1,92 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.client;
+
+/**
+ * The progress of a single class, resource or stage of an update, as reported by the agent.
+ *
+ * @author Stuart Douglas
+ */
+public final class UpdateStatus {
+
+    public enum Kind {
+        CLASS,
+        RESOURCE,
+        /**
+         * a stage of the whole update, such as redefine, integration or resources
+         */
+        STAGE
+    }
+
+    /**
+     * The order of these matches the values the agent sends
+     */
+    public enum State {
+        TRANSFORMED,
+        REDEFINED,
+        ADDED,
+        REPLACED,
+        FAILED,
+        FINISHED
+    }
+
+    private final Kind kind;
+    private final String name;
+    private final State state;
+    private final long nanos;
+    private final String message;
+
+    UpdateStatus(Kind kind, String name, State state, long nanos, String message) {
+        this.kind = kind;
+        this.name = name;
+        this.state = state;
+        this.nanos = nanos;
+        this.message = message;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return the time this took in nanoseconds, or -1 if it was not measured on its own
+     */
+    public long getNanos() {
+        return nanos;
+    }
+
+    /**
+     * @return the reason for a failure, or null
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + name + " " + state + (nanos >= 0 ? " in " + nanos / 1000000 + "ms" : "") + (message == null ? "" : ": " + message);
+    }
+}
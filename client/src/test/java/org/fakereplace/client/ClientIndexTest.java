@@ -0,0 +1,207 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.client;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * @author Stuart Douglas
+ */
+public class ClientIndexTest {
+
+    /**
+     * a time old enough for the index to trust it
+     */
+    private static final long OLD = System.currentTimeMillis() - 60000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File indexFile;
+    private File classes;
+
+    @Before
+    public void setup() throws IOException {
+        indexFile = new File(folder.getRoot(), "index");
+        classes = folder.newFolder("classes");
+        writeFile(new File(classes, "p/A.class"), "A", OLD);
+        writeFile(new File(classes, "p/q/B.class"), "B", OLD);
+        writeFile(new File(classes, "p/readme.txt"), "not a class", OLD);
+        setDirectoryTimes(OLD);
+    }
+
+    @Test
+    public void testLoadSaveRoundTrip() throws IOException {
+        ClientIndex index = ClientIndex.load(indexFile);
+        Map<String, ClassData> changed = index.findChangedClasses(classes);
+        Assert.assertEquals(2, changed.size());
+        Assert.assertEquals("A", new String(changed.get("p.A").getContentSource().getData(), StandardCharsets.UTF_8));
+        Assert.assertTrue(changed.containsKey("p.q.B"));
+        index.save();
+
+        Assert.assertTrue(ClientIndex.load(indexFile).findChangedClasses(classes).isEmpty());
+    }
+
+    @Test
+    public void testChangesAreOnlyRecordedBySave() throws IOException {
+        ClientIndex index = ClientIndex.load(indexFile);
+        Assert.assertEquals(2, index.findChangedClasses(classes).size());
+        Assert.assertEquals(2, index.findChangedClasses(classes).size());
+        Assert.assertEquals(2, ClientIndex.load(indexFile).findChangedClasses(classes).size());
+    }
+
+    @Test
+    public void testUnreadableIndex() throws IOException {
+        Files.write(indexFile.toPath(), new byte[]{(byte) 0xFA, (byte) 0xC1, (byte) 0xDE, 1, 0, 0});
+        Assert.assertEquals(2, ClientIndex.load(indexFile).findChangedClasses(classes).size());
+    }
+
+    @Test
+    public void testTouchedFile() throws IOException {
+        saveIndex();
+        final File a = new File(classes, "p/A.class");
+        Assert.assertTrue(a.setLastModified(OLD + 5000));
+        ClientIndex index = ClientIndex.load(indexFile);
+        Assert.assertTrue(index.findChangedClasses(classes).isEmpty());
+        index.save();
+
+        //same size, different content
+        writeFile(a, "C", OLD + 10000);
+        Map<String, ClassData> changed = ClientIndex.load(indexFile).findChangedClasses(classes);
+        Assert.assertEquals(1, changed.size());
+        Assert.assertTrue(changed.containsKey("p.A"));
+    }
+
+    @Test
+    public void testDeletedFile() throws IOException {
+        saveIndex();
+        final File a = new File(classes, "p/A.class");
+        Assert.assertTrue(a.delete());
+        setDirectoryTimes(OLD + 5000);
+        ClientIndex index = ClientIndex.load(indexFile);
+        Assert.assertTrue(index.findChangedClasses(classes).isEmpty());
+        index.save();
+
+        //the same file with the same time is new again, as the old state has been removed
+        writeFile(a, "A", OLD);
+        setDirectoryTimes(OLD + 10000);
+        Map<String, ClassData> changed = ClientIndex.load(indexFile).findChangedClasses(classes);
+        Assert.assertEquals(1, changed.size());
+        Assert.assertTrue(changed.containsKey("p.A"));
+    }
+
+    @Test
+    public void testDeletedDirectory() throws IOException {
+        saveIndex();
+        final File b = new File(classes, "p/q/B.class");
+        Assert.assertTrue(b.delete());
+        Assert.assertTrue(b.getParentFile().delete());
+        setDirectoryTimes(OLD + 5000);
+        ClientIndex index = ClientIndex.load(indexFile);
+        Assert.assertTrue(index.findChangedClasses(classes).isEmpty());
+        index.save();
+
+        //the directory and everything in it were removed from the index
+        writeFile(b, "B", OLD);
+        setDirectoryTimes(OLD);
+        Map<String, ClassData> changed = ClientIndex.load(indexFile).findChangedClasses(classes);
+        Assert.assertEquals(1, changed.size());
+        Assert.assertTrue(changed.containsKey("p.q.B"));
+    }
+
+    @Test
+    public void testUnchangedArchive() throws IOException {
+        final File archive = new File(folder.getRoot(), "app.war");
+        writeArchive(archive, OLD, "index.html", "a", "WEB-INF/web.xml", "b");
+        ClientIndex index = ClientIndex.load(indexFile);
+        try (ZipFile zip = new ZipFile(archive)) {
+            Map<String, ResourceData> changed = index.findChangedResources(zip);
+            Assert.assertEquals(2, changed.size());
+            Assert.assertEquals("a", new String(changed.get("index.html").getContentSource().getData(), StandardCharsets.UTF_8));
+        }
+        index.save();
+
+        index = ClientIndex.load(indexFile);
+        try (ZipFile zip = new ZipFile(archive)) {
+            Assert.assertTrue(index.findChangedResources(zip).isEmpty());
+        }
+
+        //a rewritten archive is opened, but only the changed entries are reported
+        writeArchive(archive, OLD + 5000, "index.html", "c", "WEB-INF/web.xml", "b");
+        index = ClientIndex.load(indexFile);
+        try (ZipFile zip = new ZipFile(archive)) {
+            Map<String, ResourceData> changed = index.findChangedResources(zip);
+            Assert.assertEquals(1, changed.size());
+            Assert.assertTrue(changed.containsKey("index.html"));
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        ClientIndex index = ClientIndex.load(indexFile);
+        index.findChangedClasses(classes);
+        index.save();
+    }
+
+    /**
+     * directory times change when their contents do, they are set explicitly so they are old enough to be trusted
+     */
+    private void setDirectoryTimes(long time) {
+        Assert.assertTrue(new File(classes, "p").setLastModified(time));
+        final File q = new File(classes, "p/q");
+        if (q.isDirectory()) {
+            Assert.assertTrue(q.setLastModified(time));
+        }
+        Assert.assertTrue(classes.setLastModified(time));
+    }
+
+    private static void writeFile(File file, String content, long time) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        Assert.assertTrue(file.setLastModified(time));
+    }
+
+    /**
+     * writes an archive with the given time, the entries all have the same time so they only differ in content
+     */
+    private static void writeArchive(File archive, long time, String... entries) throws IOException {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(archive))) {
+            for (int i = 0; i < entries.length; i += 2) {
+                final ZipEntry entry = new ZipEntry(entries[i]);
+                entry.setTime(OLD);
+                out.putNextEntry(entry);
+                out.write(entries[i + 1].getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        Assert.assertTrue(archive.setLastModified(time));
+    }
+}
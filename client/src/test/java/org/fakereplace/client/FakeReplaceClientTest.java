@@ -0,0 +1,191 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fakereplace.protocol.Fingerprint;
+import org.fakereplace.protocol.Frames;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Pushes a change set to several agents
+ */
+public class FakeReplaceClientTest {
+
+    private static final byte[] CLASS_BYTES = {1, 2, 3, 4, 5};
+
+    @Test
+    public void testFanOut() throws Exception {
+        final CountingContentSource source = new CountingContentSource(CLASS_BYTES);
+        final Map<String, ClassData> classes = Collections.singletonMap("org.test.A", new ClassData("org.test.A", 1, Fingerprint.of(CLASS_BYTES), source));
+        try (FakeAgent needsClass = new FakeAgent(true);
+             FakeAgent upToDate = new FakeAgent(false)) {
+            final String refused = "localhost:" + unusedPort();
+            final UpdateReport report = FakeReplaceClient.run(Arrays.asList(needsClass.getAddress(), refused, upToDate.getAddress()), "test.war", classes, Collections.<String, ResourceData>emptyMap());
+
+            Assert.assertFalse(report.isSucceeded());
+            Assert.assertEquals(3, report.getResults().size());
+            final UpdateReport.AgentResult first = report.getResults().get(0);
+            Assert.assertEquals(needsClass.getAddress(), first.getAgent());
+            Assert.assertTrue(first.isSucceeded());
+            Assert.assertNull(first.getError());
+            final UpdateReport.AgentResult second = report.getResults().get(1);
+            Assert.assertEquals(refused, second.getAgent());
+            Assert.assertFalse(second.isSucceeded());
+            Assert.assertTrue(second.getError() instanceof IOException);
+            Assert.assertTrue(report.getResults().get(2).isSucceeded());
+
+            Assert.assertArrayEquals(CLASS_BYTES, needsClass.received.get("org.test.A"));
+            Assert.assertTrue(upToDate.received.isEmpty());
+            Assert.assertEquals(1, source.reads.get());
+        }
+    }
+
+    @Test
+    public void testSingleAgent() throws Exception {
+        final CountingContentSource source = new CountingContentSource(CLASS_BYTES);
+        final Map<String, ClassData> classes = Collections.singletonMap("org.test.A", new ClassData("org.test.A", 1, source));
+        try (FakeAgent agent = new FakeAgent(true)) {
+            final UpdateReport report = FakeReplaceClient.run(Collections.singletonList(agent.getAddress()), "test.war", classes, Collections.<String, ResourceData>emptyMap());
+            Assert.assertTrue(report.isSucceeded());
+            Assert.assertEquals(1, report.getResults().size());
+            Assert.assertArrayEquals(CLASS_BYTES, agent.received.get("org.test.A"));
+        }
+    }
+
+    @Test
+    public void testSharedContentDroppedOnceAgentsAreDone() throws IOException {
+        final CountingContentSource source = new CountingContentSource(CLASS_BYTES);
+        final SharedContentSource shared = new SharedContentSource(source, 3);
+        final ContentSource first = shared.forAgent();
+        final ContentSource second = shared.forAgent();
+        final ContentSource third = shared.forAgent();
+
+        Assert.assertArrayEquals(CLASS_BYTES, first.getData());
+        SharedContentSource.release(second);
+        Assert.assertArrayEquals(CLASS_BYTES, third.getData());
+        Assert.assertEquals(1, source.reads.get());
+
+        //every agent is done, so reading it again goes back to the source
+        Assert.assertArrayEquals(CLASS_BYTES, first.getData());
+        Assert.assertEquals(2, source.reads.get());
+    }
+
+    private static int unusedPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static final class CountingContentSource implements ContentSource {
+        private final byte[] data;
+        private final AtomicInteger reads = new AtomicInteger();
+
+        private CountingContentSource(byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public byte[] getData() {
+            reads.incrementAndGet();
+            return data.clone();
+        }
+    }
+
+    /**
+     * Answers a single round, asking either for every class in the index or for none of them
+     */
+    private static final class FakeAgent implements AutoCloseable {
+        private final ServerSocket server = new ServerSocket(0);
+        private final Map<String, byte[]> received = new ConcurrentHashMap<String, byte[]>();
+        private final Thread thread;
+
+        private FakeAgent(final boolean needsClasses) throws IOException {
+            thread = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    serve(socket, needsClasses);
+                } catch (IOException e) {
+                    //the test fails on the missing content
+                }
+            });
+            thread.start();
+        }
+
+        private void serve(final Socket socket, final boolean needsClasses) throws IOException {
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Assert.assertEquals(Frames.MAGIC, input.readInt());
+            Assert.assertEquals(Frames.VERSION, input.readInt());
+            input.readInt();
+            output.writeInt(Frames.MAGIC);
+            output.writeInt(Frames.VERSION);
+            output.writeInt(0);
+            output.flush();
+            final Frames frames = new Frames(input, output);
+
+            final Frames.Frame index = frames.read(Frames.INDEX);
+            index.readString();
+            final int classCount = index.readInt();
+            final Frames.Payload updates = new Frames.Payload();
+            updates.writeInt(needsClasses ? classCount : 0);
+            for (int i = 0; i < classCount; ++i) {
+                final String name = index.readString();
+                index.readLong();
+                index.readLong();
+                if (needsClasses) {
+                    updates.writeString(name);
+                }
+            }
+            updates.writeInt(0);
+            frames.write(Frames.UPDATES, updates);
+
+            Frames.Frame frame = frames.read();
+            while (frame.getType() == Frames.CLASS) {
+                received.put(frame.readString(), frame.readData());
+                frame = frames.read();
+            }
+            Assert.assertEquals(Frames.END, frame.getType());
+            final Frames.Payload result = new Frames.Payload();
+            result.writeInt(0);
+            frames.write(Frames.RESULT, result);
+        }
+
+        String getAddress() {
+            return "localhost:" + server.getLocalPort();
+        }
+
+        @Override
+        public void close() throws Exception {
+            server.close();
+            thread.join(10000);
+        }
+    }
+}
@@ -40,6 +40,10 @@ public interface Extension {
      * They get to see the class before any manipulation is
      * done to it.
      * They do not get to transform reloaded classes.
+     * <p>
+     * Transformers should declare the classes they are interested in using
+     * {@link FakereplaceTransformer#getTransformedClassNames()}, otherwise they
+     * are invoked for every class that is loaded.
      *
      */
     List<FakereplaceTransformer> getTransformers();
@@ -0,0 +1,58 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.api.environment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+
+/**
+ * The default {@link ResourceUpdate}, that collects the content in memory and passes it to
+ * {@link Environment#updateResource(String, java.util.Map)} when committed.
+ *
+ * @author Stuart Douglas
+ */
+class BufferedResourceUpdate implements ResourceUpdate {
+
+    private final Environment environment;
+    private final String archiveName;
+    private final String resource;
+    private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+    BufferedResourceUpdate(Environment environment, String archiveName, String resource) {
+        this.environment = environment;
+        this.archiveName = archiveName;
+        this.resource = resource;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return content;
+    }
+
+    @Override
+    public void commit() {
+        environment.updateResource(archiveName, Collections.singletonMap(resource, content.toByteArray()));
+    }
+
+    @Override
+    public void close() throws IOException {
+
+    }
+}
@@ -16,6 +16,8 @@
  */
 package org.fakereplace.api.environment;
 
+import java.io.IOException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -26,12 +28,60 @@ public interface Environment {
 
     boolean isClassReplaceable(final String className, final ClassLoader loader);
 
+    /**
+     * Records the timestamp of a replaceable class. This is called from a background thread
+     * after the class has been loaded, not from the class loading thread.
+     */
     void recordTimestamp(final String className, final ClassLoader loader);
 
     ChangedClasses getUpdatedClasses(final String deploymentName, final Map<String, Long> updatedClasses);
 
     Set<String> getUpdatedResources(final String deploymentName, final Map<String, Long> updatedResources);
 
+    /**
+     * Finds the classes of a deployment whose content is already known to have changed, so no
+     * timestamp check is needed. The default implementation passes them to {@link #getUpdatedClasses(String, Map)}
+     * with the newest possible timestamp.
+     */
+    default ChangedClasses getClasses(final String deploymentName, final Set<String> classNames) {
+        Map<String, Long> classes = new HashMap<>();
+        for (String name : classNames) {
+            classes.put(name, Long.MAX_VALUE);
+        }
+        return getUpdatedClasses(deploymentName, classes);
+    }
+
+    /**
+     * Finds the resources of a deployment whose content is already known to have changed, the
+     * resource equivalent of {@link #getClasses(String, Set)}.
+     */
+    default Set<String> getResources(final String deploymentName, final Set<String> resourceNames) {
+        Map<String, Long> resources = new HashMap<>();
+        for (String name : resourceNames) {
+            resources.put(name, Long.MAX_VALUE);
+        }
+        return getUpdatedResources(deploymentName, resources);
+    }
+
     void updateResource(final String archiveName, Map<String, byte[]> replacedResources);
 
+    /**
+     * Returns the class loader a deployment loads the given class with. Environments that have deployments return the
+     * deployment's class loader, in which case the class name may be null.
+     *
+     * @return the class loader, or null if it is not known
+     */
+    default ClassLoader getClassLoader(final String deploymentName, final String className) {
+        return null;
+    }
+
+    /**
+     * Starts replacing a single resource, so that large resources can be written out as they arrive rather than
+     * being held in memory. Environments that serve resources from files should return a {@link FileResourceUpdate}.
+     * The default implementation collects the content and passes it to {@link #updateResource(String, Map)}.
+     */
+    default ResourceUpdate startResourceUpdate(final String archiveName, final String resource) throws IOException {
+        return new BufferedResourceUpdate(this, archiveName, resource);
+    }
+
 }
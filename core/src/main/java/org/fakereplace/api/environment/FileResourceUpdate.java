@@ -0,0 +1,81 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.api.environment;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * A {@link ResourceUpdate} for a resource that is served from a file. The content is written to a temporary
+ * file next to the target, which is then moved over it, so the resource is never seen half written.
+ *
+ * @author Stuart Douglas
+ */
+public class FileResourceUpdate implements ResourceUpdate {
+
+    private final Path target;
+    private final Path temp;
+    private final OutputStream output;
+    private boolean committed;
+
+    public FileResourceUpdate(final File target) throws IOException {
+        this.target = target.toPath().toAbsolutePath();
+        final Path dir = this.target.getParent();
+        Files.createDirectories(dir);
+        this.temp = Files.createTempFile(dir, "." + target.getName(), ".fakereplace");
+        this.output = new BufferedOutputStream(Files.newOutputStream(temp));
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return output;
+    }
+
+    @Override
+    public void commit() throws IOException {
+        output.close();
+        if (Files.exists(target)) {
+            try {
+                //temp files are only readable by their owner
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+            } catch (UnsupportedOperationException e) {
+                //not a posix file system
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+        committed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        output.close();
+        if (!committed) {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
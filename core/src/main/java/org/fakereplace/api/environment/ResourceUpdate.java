@@ -0,0 +1,40 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.api.environment;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The replacement of a single resource, whose new content is streamed in as it arrives.
+ * <p>
+ * The new content only replaces the resource when the update is committed, which happens once all the
+ * classes and resources of a round have been received and the classes have been redefined. Closing an
+ * update that has not been committed discards the new content.
+ *
+ * @author Stuart Douglas
+ * @see Environment#startResourceUpdate(String, String)
+ */
+public interface ResourceUpdate extends Closeable {
+
+    OutputStream getOutputStream() throws IOException;
+
+    void commit() throws IOException;
+
+}
@@ -20,11 +20,19 @@
  */
 package org.fakereplace.classloading;
 
+/**
+ * Identifies a class by name and class loader. The loader is only weakly referenced.
+ */
 public class ClassIdentifier {
     private final String className;
-    private final ClassLoader loader;
+    private final LoaderReference loader;
 
     public ClassIdentifier(String className, ClassLoader loader) {
+        this.className = className;
+        this.loader = ClassLoaderTracker.reference(loader);
+    }
+
+    public ClassIdentifier(String className, LoaderReference loader) {
         this.className = className;
         this.loader = loader;
     }
@@ -34,7 +42,14 @@ public class ClassIdentifier {
     }
 
     public ClassLoader getLoader() {
-        return loader;
+        return loader.get();
+    }
+
+    /**
+     * @return true if the class loader has been garbage collected
+     */
+    public boolean isCollected() {
+        return loader.isCollected();
     }
 
     @Override
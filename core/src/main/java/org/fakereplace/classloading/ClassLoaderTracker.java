@@ -0,0 +1,173 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.classloading;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.fakereplace.com.google.common.collect.MapMaker;
+import org.fakereplace.logging.Logger;
+
+/**
+ * Central registry of the class loaders that fakereplace holds data for.
+ * <p>
+ * Loaders are held by {@link LoaderReference}s that are registered with a reference
+ * queue. When a loader is collected the cleanup tasks that have been registered by the
+ * various data stores are run, so that they can remove anything that belonged to it.
+ *
+ * @author stuart
+ */
+public class ClassLoaderTracker {
+
+    private static final Logger log = Logger.getLogger(ClassLoaderTracker.class);
+
+    public static final String THREAD_NAME = "fakereplace-classloader-cleanup";
+
+    private static final ReferenceQueue<ClassLoader> queue = new ReferenceQueue<ClassLoader>();
+
+    private static final Map<ClassLoader, LoaderReference> references = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * the references have to stay strongly reachable until they are enqueued
+     */
+    private static final Set<LoaderReference> tracked = ConcurrentHashMap.newKeySet();
+
+    private static final List<Runnable> cleanupTasks = new CopyOnWriteArrayList<Runnable>();
+
+    private static final AtomicInteger collected = new AtomicInteger();
+
+    static {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (; ; ) {
+                    try {
+                        expunge(queue.remove());
+                        drainQueue();
+                        runCleanupTasks();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private ClassLoaderTracker() {
+
+    }
+
+    /**
+     * Returns the reference for the given loader, starting to track it if necessary
+     */
+    public static LoaderReference reference(ClassLoader loader) {
+        if (loader == null) {
+            return LoaderReference.BOOTSTRAP;
+        }
+        LoaderReference ref = references.get(loader);
+        if (ref != null) {
+            return ref;
+        }
+        LoaderReference newRef = new LoaderReference(loader, queue);
+        ref = references.putIfAbsent(loader, newRef);
+        if (ref != null) {
+            return ref;
+        }
+        tracked.add(newRef);
+        return newRef;
+    }
+
+    /**
+     * Returns the reference for the given loader if it is already tracked, without starting
+     * to track it. This is safe to call while loading classes.
+     *
+     * @return the reference, or null if the loader is not tracked
+     */
+    public static LoaderReference find(ClassLoader loader) {
+        if (loader == null) {
+            return LoaderReference.BOOTSTRAP;
+        }
+        return references.get(loader);
+    }
+
+    /**
+     * Registers a task that is run after one or more tracked class loaders have been collected.
+     * Tasks should remove any entries that refer to a collected {@link LoaderReference}.
+     */
+    public static void addCleanupTask(Runnable task) {
+        cleanupTasks.add(task);
+    }
+
+    /**
+     * Processes any class loaders that have been collected, and runs the cleanup tasks if
+     * there were any
+     */
+    public static void purge() {
+        if (drainQueue()) {
+            runCleanupTasks();
+        }
+    }
+
+    private static boolean drainQueue() {
+        boolean found = false;
+        Reference<? extends ClassLoader> ref;
+        while ((ref = queue.poll()) != null) {
+            expunge(ref);
+            found = true;
+        }
+        return found;
+    }
+
+    private static void expunge(Reference<? extends ClassLoader> ref) {
+        if (tracked.remove(ref)) {
+            collected.incrementAndGet();
+        }
+    }
+
+    private static void runCleanupTasks() {
+        for (Runnable task : cleanupTasks) {
+            try {
+                task.run();
+            } catch (Throwable e) {
+                log.error("Failed to clean up data for collected class loaders", e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of tracked class loaders that have not been collected
+     */
+    public static int getLiveLoaderCount() {
+        return tracked.size();
+    }
+
+    /**
+     * @return the number of tracked class loaders that have been collected
+     */
+    public static int getCollectedLoaderCount() {
+        return collected.get();
+    }
+}
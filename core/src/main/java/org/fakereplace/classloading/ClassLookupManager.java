@@ -31,6 +31,10 @@ import org.fakereplace.transformation.MainTransformer;
 public class ClassLookupManager {
     private static final Map<ClassIdentifier, byte[]> classData = new ConcurrentHashMap<>();
 
+    static {
+        ClassLoaderTracker.addCleanupTask(() -> classData.keySet().removeIf(ClassIdentifier::isCollected));
+    }
+
     public static byte[] getClassData(String className, Object cl) {
         //if is possible for this to be called by an object that is not a CL
         //do nothing in this case
@@ -44,7 +48,12 @@ public class ClassLookupManager {
         if (className.startsWith("org.fakereplace.integration")) {
             return MainTransformer.getIntegrationClass(loader, className);
         }
-        return classData.get(new ClassIdentifier(className, loader));
+        // this is called from loadClass, so it must not start tracking the loader
+        final LoaderReference reference = ClassLoaderTracker.find(loader);
+        if (reference == null) {
+            return null;
+        }
+        return classData.get(new ClassIdentifier(className, reference));
     }
 
     public static void addClassInfo(String className, ClassLoader loader, byte[] data) {
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.classloading;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * A weak reference to a class loader, as handed out by {@link ClassLoaderTracker}.
+ * <p>
+ * There is only ever one reference per live class loader, so references can be
+ * compared by identity. Stores hold these instead of the loader itself, so a
+ * redeployed application's loader can be collected.
+ *
+ * @author stuart
+ */
+public final class LoaderReference extends WeakReference<ClassLoader> {
+
+    /**
+     * the reference used for the bootstrap class loader, this is never collected
+     */
+    static final LoaderReference BOOTSTRAP = new LoaderReference(null, null);
+
+    LoaderReference(ClassLoader referent, ReferenceQueue<? super ClassLoader> q) {
+        super(referent, q);
+    }
+
+    /**
+     * @return true if the class loader this refers to has been garbage collected
+     */
+    public boolean isCollected() {
+        return this != BOOTSTRAP && get() == null;
+    }
+}
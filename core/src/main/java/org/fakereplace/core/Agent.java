@@ -42,6 +42,7 @@ import org.fakereplace.replacement.AnnotationTransformer;
 import org.fakereplace.replacement.FieldReplacementTransformer;
 import org.fakereplace.replacement.MethodReplacementTransformer;
 import org.fakereplace.server.FakereplaceServer;
+import org.fakereplace.server.PushServer;
 import org.fakereplace.transformation.ClassLoaderTransformer;
 import org.fakereplace.transformation.MainTransformer;
 import org.fakereplace.transformation.UnmodifiedFileIndex;
@@ -112,6 +113,14 @@ public class Agent {
         } else {
             System.out.println("Fakereplace is running.");
         }
+
+        final String pushPort = AgentOptions.getOption(AgentOption.PUSH);
+        if (!pushPort.equals("-1")) {
+            Thread thread = new Thread(new PushServer(Integer.parseInt(pushPort)));
+            thread.setDaemon(true);
+            thread.setName("Fakereplace Push Thread");
+            thread.start();
+        }
     }
 
     public static void redefine(ClassDefinition[] classes, AddedClass[] addedData) throws UnmodifiableClassException, ClassNotFoundException {
@@ -119,6 +128,13 @@ public class Agent {
     }
 
     public static void redefine(ClassDefinition[] classes, AddedClass[] addedData, boolean wait) throws UnmodifiableClassException, ClassNotFoundException {
+        redefine(classes, addedData, wait, null);
+    }
+
+    /**
+     * @param listener told about the progress of the redefinition, may be null
+     */
+    public static void redefine(ClassDefinition[] classes, AddedClass[] addedData, boolean wait, RedefineListener listener) throws UnmodifiableClassException, ClassNotFoundException {
         try {
             for (AddedClass i : addedData) {
                 ClassFile cf = new ClassFile(new DataInputStream(new ByteArrayInputStream(i.getData())));
@@ -135,10 +151,23 @@ public class Agent {
             for (AddedClass c : addedData) {
                 ClassLookupManager.addClassInfo(c.getClassName(), c.getLoader(), c.getData());
             }
-            inst.redefineClasses(classes);
+            final long start = System.nanoTime();
+            mainTransformer.setRedefineListener(listener);
+            try {
+                inst.redefineClasses(classes);
+            } finally {
+                mainTransformer.setRedefineListener(null);
+            }
             Introspector.flushCaches();
+            if (listener != null) {
+                listener.classesRedefined(System.nanoTime() - start);
+            }
             if(wait) {
+                final long integrationStart = System.nanoTime();
                 mainTransformer.waitForTasks();
+                if (listener != null) {
+                    listener.integrationFinished(System.nanoTime() - integrationStart);
+                }
             }
         } catch (Throwable e) {
             try {
@@ -185,6 +214,7 @@ public class Agent {
     }
 
     public static boolean isRetransformationStarted() {
-        return mainTransformer.isRetransformationStarted();
+        // null when classes are being instrumented outside the agent
+        return mainTransformer != null && mainTransformer.isRetransformationStarted();
     }
 }
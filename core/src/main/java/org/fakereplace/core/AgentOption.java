@@ -28,6 +28,7 @@ public enum AgentOption {
     PACKAGES("packages"),
     LOG("log"),
     SERVER("server", "-1"),
+    PUSH("push", "-1"),
     NO_INDEX("no-index")
     ;
 
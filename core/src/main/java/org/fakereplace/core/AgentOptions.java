@@ -51,6 +51,15 @@ public class AgentOptions {
         instance = new AgentOptions(map);
     }
 
+    /**
+     * Uses the default options if the agent has not set them up, for when fakereplace is used outside the agent
+     */
+    static synchronized void setupDefaults() {
+        if (instance == null) {
+            instance = new AgentOptions(new HashMap<String, String>());
+        }
+    }
+
     public static boolean set(AgentOption option) {
         return instance.options.containsKey(option.getKey());
     }
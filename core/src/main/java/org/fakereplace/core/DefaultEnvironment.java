@@ -28,6 +28,8 @@ import java.util.concurrent.ConcurrentHashMap;
 
 import org.fakereplace.api.environment.ChangedClasses;
 import org.fakereplace.api.environment.Environment;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
 import org.fakereplace.logging.Logger;
 
 /**
@@ -42,10 +44,20 @@ public class DefaultEnvironment implements Environment {
     private static final String[] replaceablePackages;
 
     private final Map<String, Long> timestamps = new ConcurrentHashMap<String, Long>();
-    private final Map<String, ClassLoader> loaders = new ConcurrentHashMap<String, ClassLoader>();
+    private final Map<String, LoaderReference> loaders = new ConcurrentHashMap<String, LoaderReference>();
 
     public static final DefaultEnvironment INSTANCE = new DefaultEnvironment();
 
+    public DefaultEnvironment() {
+        ClassLoaderTracker.addCleanupTask(() -> loaders.entrySet().removeIf(entry -> {
+            if (entry.getValue().isCollected()) {
+                timestamps.remove(entry.getKey());
+                return true;
+            }
+            return false;
+        }));
+    }
+
     static {
         String plist = AgentOptions.getOption(AgentOption.PACKAGES);
         if (plist == null || plist.length() == 0) {
@@ -96,7 +108,7 @@ public class DefaultEnvironment implements Environment {
             try {
                 connection = file.openConnection();
                 timestamps.put(className, connection.getLastModified());
-                loaders.put(className, loader);
+                loaders.put(className, ClassLoaderTracker.reference(loader));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -109,7 +121,10 @@ public class DefaultEnvironment implements Environment {
         ClassLoader loader = null;
         for (Map.Entry<String, Long> entry : updatedClasses.entrySet()) {
             if (timestamps.containsKey(entry.getKey()) && timestamps.get(entry.getKey()) < entry.getValue()) {
-                loader = loaders.get(entry.getKey());
+                loader = loaders.get(entry.getKey()).get();
+                if (loader == null) {
+                    continue;
+                }
                 try {
                     ret.add(loader.loadClass(entry.getKey()));
                     timestamps.put(entry.getKey(), entry.getValue());
@@ -121,6 +136,35 @@ public class DefaultEnvironment implements Environment {
         return new ChangedClasses(ret, Collections.<String>emptySet(), loader);
     }
 
+    @Override
+    public ChangedClasses getClasses(final String deploymentName, final Set<String> classNames) {
+        final Set<Class<?>> ret = new HashSet<Class<?>>();
+        ClassLoader loader = null;
+        for (String className : classNames) {
+            LoaderReference reference = loaders.get(className);
+            ClassLoader classLoader = reference == null ? null : reference.get();
+            if (classLoader == null) {
+                continue;
+            }
+            try {
+                ret.add(classLoader.loadClass(className));
+                loader = classLoader;
+            } catch (ClassNotFoundException e) {
+                log.error("Could not load class " + className, e);
+            }
+        }
+        return new ChangedClasses(ret, Collections.<String>emptySet(), loader);
+    }
+
+    @Override
+    public ClassLoader getClassLoader(final String deploymentName, final String className) {
+        if (className == null) {
+            return null;
+        }
+        LoaderReference reference = loaders.get(className);
+        return reference == null ? null : reference.get();
+    }
+
     @Override
     public Set<String> getUpdatedResources(final String deploymentName, final Map<String, Long> updatedResources) {
         return Collections.emptySet();
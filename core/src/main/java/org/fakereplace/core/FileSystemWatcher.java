@@ -17,90 +17,362 @@
 
 package org.fakereplace.core;
 
-import javassist.bytecode.ClassFile;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
 import org.fakereplace.replacement.AddedClass;
+import org.fakereplace.util.ClassNameReader;
 import org.fakereplace.util.FileReader;
-import org.fakereplace.util.MD5;
+import org.fakereplace.protocol.Fingerprint;
+import org.fakereplace.util.FingerprintTable;
 import org.fakereplace.util.WatchServiceFileSystemWatcher;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.instrument.ClassDefinition;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 
 /**
  * Class that is responsible for watching the file system and reporting on class change events.
  * <p>
  * Internally it uses {@link org.fakereplace.util.WatchServiceFileSystemWatcher} to watch the file system.
+ * Directories that contain loaded classes get a native watch, the rest of the class path tree is polled.
+ * Classes that are loaded from an archive are handled by polling the archive, when it changes its central
+ * directory is compared against a snapshot and only the entries that have changed are read.
+ * Changes are handled in two stages, first the changed class files are read and fingerprinted
+ * in parallel, then everything that has actually changed is redefined with a single call to
+ * {@link Agent#redefine(ClassDefinition[], AddedClass[])}.
  *
  * @author Stuart Douglas
  */
 public class FileSystemWatcher {
 
+    private static final int READ_THREADS = Integer.getInteger("fakereplace.read-threads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+    /**
+     * change sets smaller than this are just read on the watch thread
+     */
+    private static final int PARALLEL_READ_THRESHOLD = 4;
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+
     private final WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher();
 
-    private final Map<ClassLoader, Callback> callbacks = new WeakHashMap<>();
-    private final Set<File> registered = new HashSet<>();
+    private final WatchServiceFileSystemWatcher.FileChangeCallback callback = this::handleChanges;
+
+    private final Map<LoaderReference, LoaderFiles> loaders = new HashMap<>();
+
+    /**
+     * the watched root directories, and the loader that classes under them belong to
+     */
+    private final Map<File, LoaderFiles> roots = new HashMap<>();
+
+    /**
+     * the watched archives, and the loader that classes in them belong to
+     */
+    private final Map<File, ArchiveFiles> archives = new HashMap<>();
+
+    private final FingerprintTable fingerprints = new FingerprintTable();
+
+    private final ExecutorService readExecutor = Executors.newFixedThreadPool(READ_THREADS, r -> {
+        Thread thread = new Thread(r, "fakereplace-class-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * buffers that class files are read into, a buffer is only returned to the pool once the
+     * changed bytes have been copied out of it
+     */
+    private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<>();
+
+    public FileSystemWatcher() {
+        ClassLoaderTracker.addCleanupTask(this::removeCollectedLoaders);
+    }
+
+    private static final class LoaderFiles {
+
+        private final LoaderReference loader;
+
+        /**
+         * the root directories and class files registered for this loader
+         */
+        private final Set<File> roots = new HashSet<>();
+        private final Set<String> classFiles = new HashSet<>();
+        private final Set<File> archives = new HashSet<>();
+
+        private LoaderFiles(LoaderReference loader) {
+            this.loader = loader;
+        }
+    }
+
+    /**
+     * A watched archive. The snapshot holds the CRC and size of every class entry, taken from the
+     * central directory, so changed entries can be found without reading the rest of the archive.
+     */
+    private static final class ArchiveFiles {
+
+        private final File archive;
+        private final LoaderReference loader;
+
+        /**
+         * the entries of classes that have been loaded, only these are redefined when they change
+         */
+        private final Set<String> loadedEntries = ConcurrentHashMap.newKeySet();
+
+        private volatile FingerprintTable entries;
+
+        private ArchiveFiles(File archive, LoaderReference loader) throws IOException {
+            this.archive = archive;
+            this.loader = loader;
+            try (ZipFile zip = new ZipFile(archive)) {
+                this.entries = readCentralDirectory(zip, null, null, null);
+            } catch (ClassNotFoundException e) {
+                //classes are not resolved when there is no loader
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * adds the classes that have changed since the last snapshot to the given lists
+         */
+        void readChanges(List<ClassDefinition> changedClasses, List<AddedClass> addedClasses) throws IOException, ClassNotFoundException {
+            final ClassLoader classLoader = loader.get();
+            if (classLoader == null) {
+                return;
+            }
+            try (ZipFile zip = new ZipFile(archive)) {
+                //the snapshot is only replaced once the whole archive has been read successfully
+                entries = readCentralDirectory(zip, classLoader, changedClasses, addedClasses);
+            }
+        }
 
-    private final Map<String, String> hashes = new HashMap<>();
+        private FingerprintTable readCentralDirectory(ZipFile zip, ClassLoader classLoader, List<ClassDefinition> changedClasses, List<AddedClass> addedClasses) throws IOException, ClassNotFoundException {
+            final FingerprintTable current = new FingerprintTable();
+            final Enumeration<? extends ZipEntry> it = zip.entries();
+            while (it.hasMoreElements()) {
+                ZipEntry entry = it.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory() || !name.endsWith(".class")) {
+                    continue;
+                }
+                long signature = (entry.getCrc() << 32) | (entry.getSize() & 0xFFFFFFFFL);
+                current.put(name, signature);
+                if (classLoader == null) {
+                    continue;
+                }
+                boolean known = entries.contains(name);
+                if (known && (entries.get(name, 0) == signature || !loadedEntries.contains(name))) {
+                    //unchanged, or not loaded yet
+                    continue;
+                }
+                final byte[] bytes;
+                try (InputStream in = zip.getInputStream(entry)) {
+                    bytes = FileReader.readFileBytes(in);
+                }
+                String className = ClassNameReader.readClassName(bytes, bytes.length);
+                if (className == null) {
+                    continue;
+                }
+                if (known) {
+                    changedClasses.add(new ClassDefinition(classLoader.loadClass(className), bytes));
+                } else {
+                    addedClasses.add(new AddedClass(className, bytes, classLoader));
+                }
+            }
+            return current;
+        }
+    }
 
+    /**
+     * A class file that the watcher has reported as added or modified
+     */
+    private final class ChangedFile {
 
-    private final class Callback implements WatchServiceFileSystemWatcher.FileChangeCallback  {
+        private final File file;
+        private final LoaderReference loader;
+        private boolean added;
 
-        private final ClassLoader classLoader;
+        /**
+         * the new class bytes and class name, these are only set if the class has actually changed
+         */
+        private byte[] bytes;
+        private String className;
 
-        private Callback(ClassLoader classLoader) {
-            this.classLoader = classLoader;
+        private ChangedFile(File file, LoaderReference loader, boolean added) {
+            this.file = file;
+            this.loader = loader;
+            this.added = added;
         }
 
-        @Override
-        public void handleChanges(Collection<WatchServiceFileSystemWatcher.FileChangeEvent> changes) {
+        void read() {
+            ByteBuffer buffer = buffers.poll();
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
             try {
-                List<AddedClass> addedClasses = new ArrayList<>();
-                List<ClassDefinition> changedClasses = new ArrayList<>();
-                for (WatchServiceFileSystemWatcher.FileChangeEvent change : changes) {
-                    if (change.getType() == WatchServiceFileSystemWatcher.FileChangeEvent.Type.ADDED) {
-                        try (FileInputStream in = new FileInputStream(change.getFile())) {
-                            byte[] bytes = FileReader.readFileBytes(in);
-                            ClassFile file = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes)));
-                            addedClasses.add(new AddedClass(file.getName(), bytes, classLoader));
-                        }
-                    } else if(change.getType() == WatchServiceFileSystemWatcher.FileChangeEvent.Type.MODIFIED) {
-                        String hash = hashes.get(change.getFile().getCanonicalPath());
-                        if(hash == null) {
-                            //class is not loaded yet
-                            continue;
-                        }
-                        try (FileInputStream in = new FileInputStream(change.getFile())) {
-                            byte[] bytes = FileReader.readFileBytes(in);
-                            if(!hash.equals(MD5.md5(bytes))) {
-                                ClassFile file = new ClassFile(new DataInputStream(new ByteArrayInputStream(bytes)));
-                                changedClasses.add(new ClassDefinition(classLoader.loadClass(file.getName()), bytes));
-                            }
+                final String path = file.getCanonicalPath();
+                final boolean loaded = fingerprints.contains(path);
+                if (!added && !loaded) {
+                    //class is not loaded yet
+                    return;
+                }
+                final int length;
+                try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                    long size = channel.size();
+                    if (size > Integer.MAX_VALUE) {
+                        return;
+                    }
+                    if (buffer.capacity() < size) {
+                        buffer = ByteBuffer.allocate(Math.max((int) size, buffer.capacity() * 2));
+                    }
+                    buffer.clear();
+                    buffer.limit((int) size);
+                    while (buffer.hasRemaining()) {
+                        if (channel.read(buffer) < 0) {
+                            break;
                         }
                     }
+                    length = buffer.position();
                 }
-                Agent.redefine(changedClasses.toArray(new ClassDefinition[changedClasses.size()]), addedClasses.toArray(new AddedClass[addedClasses.size()]));
-            } catch (Exception e) {
+                if (loaded && fingerprints.get(path, 0) == Fingerprint.of(buffer.array(), 0, length)) {
+                    return;
+                }
+                className = ClassNameReader.readClassName(buffer.array(), length);
+                if (className == null) {
+                    return;
+                }
+                bytes = Arrays.copyOf(buffer.array(), length);
+                //a loaded class that has been replaced by a file move shows up as a new file
+                added = !loaded;
+            } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                buffers.offer(buffer);
             }
         }
     }
 
-    public synchronized void addClassFile(String className, ClassLoader classLoader) {
+    private void handleChanges(Collection<WatchServiceFileSystemWatcher.FileChangeEvent> changes) {
+        final List<ChangedFile> files = new ArrayList<>();
+        final List<ArchiveFiles> changedArchives = new ArrayList<>();
+        synchronized (this) {
+            for (WatchServiceFileSystemWatcher.FileChangeEvent change : changes) {
+                if (change.getType() == WatchServiceFileSystemWatcher.FileChangeEvent.Type.REMOVED) {
+                    continue;
+                }
+                ArchiveFiles archive = archives.get(change.getFile());
+                if (archive != null) {
+                    changedArchives.add(archive);
+                    continue;
+                }
+                if (!change.getFile().getName().endsWith(".class")) {
+                    continue;
+                }
+                LoaderFiles loaderFiles = findLoader(change.getFile());
+                if (loaderFiles != null) {
+                    files.add(new ChangedFile(change.getFile(), loaderFiles.loader, change.getType() == WatchServiceFileSystemWatcher.FileChangeEvent.Type.ADDED));
+                }
+            }
+        }
+        if (files.isEmpty() && changedArchives.isEmpty()) {
+            return;
+        }
+        try {
+            //first read and fingerprint the files
+            if (files.size() < PARALLEL_READ_THRESHOLD) {
+                for (ChangedFile file : files) {
+                    file.read();
+                }
+            } else {
+                final List<Future<?>> reads = new ArrayList<>(files.size());
+                for (ChangedFile file : files) {
+                    reads.add(readExecutor.submit(file::read));
+                }
+                for (Future<?> read : reads) {
+                    read.get();
+                }
+            }
+            //then redefine everything that changed in one go
+            List<AddedClass> addedClasses = new ArrayList<>();
+            List<ClassDefinition> changedClasses = new ArrayList<>();
+            for (ChangedFile file : files) {
+                final ClassLoader classLoader = file.loader.get();
+                if (file.bytes == null || classLoader == null) {
+                    continue;
+                }
+                if (file.added) {
+                    addedClasses.add(new AddedClass(file.className, file.bytes, classLoader));
+                } else {
+                    changedClasses.add(new ClassDefinition(classLoader.loadClass(file.className), file.bytes));
+                }
+            }
+            for (ArchiveFiles archive : changedArchives) {
+                try {
+                    archive.readChanges(changedClasses, addedClasses);
+                } catch (IOException e) {
+                    //most likely the archive is still being written, it will be read again when it changes
+                    e.printStackTrace();
+                }
+            }
+            if (!changedClasses.isEmpty() || !addedClasses.isEmpty()) {
+                Agent.redefine(changedClasses.toArray(new ClassDefinition[changedClasses.size()]), addedClasses.toArray(new AddedClass[addedClasses.size()]));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the loader whose watched root contains the given file
+     */
+    private LoaderFiles findLoader(File file) {
+        for (File dir = file.getParentFile(); dir != null; dir = dir.getParentFile()) {
+            LoaderFiles loaderFiles = roots.get(dir);
+            if (loaderFiles != null) {
+                return loaderFiles;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts watching the class file of a loaded class.
+     *
+     * @param fingerprint the fingerprint of the bytes the class was loaded from, if this is null it is computed
+     *                    from the class file
+     */
+    public synchronized void addClassFile(String className, ClassLoader classLoader, Long fingerprint) {
         if(classLoader == null) {
             return;
         }
@@ -108,6 +380,10 @@ public class FileSystemWatcher {
         if(resource == null) {
             return;
         }
+        if(resource.getProtocol().equals("jar")) {
+            addArchiveClass(classLoader, resource);
+            return;
+        }
         File file = new File(resource.getFile());
         if(!file.exists()) {
             return;
@@ -119,25 +395,93 @@ public class FileSystemWatcher {
                 parentCount++;
             }
         }
-        try (InputStream in = resource.openStream()) {
-            hashes.put(file.getCanonicalPath(), MD5.md5(FileReader.readFileBytes(in)));
+        LoaderFiles loaderFiles = getLoaderFiles(classLoader);
+        try {
+            if (fingerprint == null) {
+                try (InputStream in = resource.openStream()) {
+                    fingerprint = Fingerprint.of(FileReader.readFileBytes(in));
+                }
+            }
+            String path = file.getCanonicalPath();
+            fingerprints.put(path, fingerprint);
+            loaderFiles.classFiles.add(path);
         } catch (IOException e) {
             e.printStackTrace();
             return;
         }
+        final File classDirectory = file.getParentFile();
         for(int i = 0; i < parentCount; ++i) {
             file = file.getParentFile();
         }
-        if(registered.contains(file)) {
+        if(!roots.containsKey(file)) {
+            roots.put(file, loaderFiles);
+            loaderFiles.roots.add(file);
+            watcher.watchPath(file, callback);
+        }
+        watcher.watchDirectory(file, classDirectory);
+    }
+
+    /**
+     * Starts watching the archive that a class was loaded from. Only classes directly inside an archive
+     * are supported, not those in nested archives.
+     */
+    private void addArchiveClass(ClassLoader classLoader, URL resource) {
+        final String spec = resource.getPath();
+        final int separator = spec.indexOf("!/");
+        if (!spec.startsWith("file:") || separator == -1 || spec.indexOf("!/", separator + 2) != -1) {
             return;
         }
-        registered.add(file);
+        try {
+            File archive = new File(new URI(spec.substring(0, separator)));
+            String entry = URLDecoder.decode(spec.substring(separator + 2).replace("+", "%2B"), "UTF-8");
+            ArchiveFiles archiveFiles = archives.get(archive);
+            if (archiveFiles == null) {
+                if (!archive.isFile()) {
+                    return;
+                }
+                LoaderFiles loaderFiles = getLoaderFiles(classLoader);
+                archiveFiles = new ArchiveFiles(archive, loaderFiles.loader);
+                archives.put(archive, archiveFiles);
+                loaderFiles.archives.add(archive);
+                watcher.watchPath(archive, callback);
+            }
+            archiveFiles.loadedEntries.add(entry);
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            e.printStackTrace();
+        }
+    }
 
-        Callback callback = callbacks.get(classLoader);
-        if(callback == null) {
-            callbacks.put(classLoader, callback = new Callback(classLoader));
+    private LoaderFiles getLoaderFiles(ClassLoader classLoader) {
+        LoaderReference loader = ClassLoaderTracker.reference(classLoader);
+        LoaderFiles loaderFiles = loaders.get(loader);
+        if(loaderFiles == null) {
+            loaders.put(loader, loaderFiles = new LoaderFiles(loader));
+        }
+        return loaderFiles;
+    }
+
+    /**
+     * stops watching the directories of class loaders that have been collected
+     */
+    private synchronized void removeCollectedLoaders() {
+        Iterator<LoaderFiles> it = loaders.values().iterator();
+        while (it.hasNext()) {
+            LoaderFiles loaderFiles = it.next();
+            if (loaderFiles.loader.isCollected()) {
+                it.remove();
+                for (File root : loaderFiles.roots) {
+                    roots.remove(root);
+                    watcher.unwatchPath(root, callback);
+                }
+                for (String path : loaderFiles.classFiles) {
+                    fingerprints.remove(path);
+                }
+                for (File archive : loaderFiles.archives) {
+                    archives.remove(archive);
+                    watcher.unwatchPath(archive, callback);
+                }
+            }
         }
-        watcher.watchPath(file, callback);
     }
 
 
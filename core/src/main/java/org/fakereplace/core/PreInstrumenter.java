@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+import javassist.ClassPool;
+import javassist.LoaderClassPath;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AnnotationsAttribute;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.BadBytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.MethodInfo;
+import org.fakereplace.manip.Manipulator;
+import org.fakereplace.reflection.ReflectionInstrumentationSetup;
+import org.fakereplace.transformation.MainTransformer;
+import org.fakereplace.util.NoInstrument;
+
+/**
+ * Applies the load time instrumentation of {@link Transformer} to class files at build time, so the agent does
+ * not have to do it every time the JVM starts.
+ * <p>
+ * This applies the reflection rewrites and adds the methods and constructors that allow members to be added
+ * later, then marks the class with the {@link #ATTRIBUTE_NAME} attribute. When the agent loads a marked class
+ * it only records the class data, and does not rewrite the class, unless manipulations have been registered
+ * since the agent started, which only happens once classes have been replaced.
+ * <p>
+ * Classes are instrumented as if they are replaceable, so this should only be used for classes that the
+ * agent will treat as replaceable. Integration transformers still run at load time as normal.
+ *
+ * @author Stuart Douglas
+ */
+public class PreInstrumenter {
+
+    public static final String ATTRIBUTE_NAME = "org.fakereplace.PreInstrumented";
+
+    /**
+     * changed whenever the load time instrumentation changes, so classes instrumented by an older version
+     * are instrumented again at load time
+     */
+    private static final int VERSION = 1;
+
+    private final Manipulator manipulator;
+    private final ClassPool classPool = new ClassPool();
+
+    /**
+     * @param classPath the class loader used to resolve the types the stack maps need, normally one for the
+     *                  output directory and its dependencies
+     */
+    public PreInstrumenter(ClassLoader classPath) {
+        AgentOptions.setupDefaults();
+        manipulator = new Manipulator();
+        ReflectionInstrumentationSetup.setup(manipulator);
+        classPool.appendClassPath(new LoaderClassPath(classPath));
+        classPool.appendClassPath(new LoaderClassPath(PreInstrumenter.class.getClassLoader()));
+        classPool.appendSystemPath();
+    }
+
+    /**
+     * @return the instrumented class, or null if the class does not need to be instrumented or is already marked
+     * @throws IOException if the class cannot be parsed or its stack maps cannot be rebuilt
+     */
+    public byte[] instrument(byte[] classFile) throws IOException {
+        final ClassFile file = new ClassFile(new DataInputStream(new ByteArrayInputStream(classFile)));
+        if (isPreInstrumented(file) || BuiltinClassData.skipInstrumentation(file.getName())) {
+            return null;
+        }
+        final AnnotationsAttribute annotations = (AnnotationsAttribute) file.getAttribute(AnnotationsAttribute.invisibleTag);
+        if (annotations != null && annotations.getAnnotation(NoInstrument.class.getName()) != null) {
+            return null;
+        }
+        final Set<MethodInfo> modifiedMethods = new HashSet<MethodInfo>();
+        try {
+            boolean modified = manipulator.transformClass(file, null, true, modifiedMethods);
+            if ((AccessFlag.ENUM & file.getAccessFlags()) == 0 && (AccessFlag.ANNOTATION & file.getAccessFlags()) == 0) {
+                modified = true;
+                if (file.isInterface()) {
+                    Transformer.addAbstractMethodForInstrumentation(file);
+                } else {
+                    Transformer.addMethodForInstrumentation(file);
+                    Transformer.addConstructorForInstrumentation(file);
+                    Transformer.addStaticConstructorForInstrumentation(file);
+                }
+            }
+            if (!modified) {
+                return null;
+            }
+            MainTransformer.rebuildStackMaps(file, modifiedMethods, classPool, false);
+        } catch (BadBytecode e) {
+            throw new IOException("Could not instrument " + file.getName(), e);
+        }
+        file.addAttribute(new AttributeInfo(file.getConstPool(), ATTRIBUTE_NAME, new byte[]{0, 0, 0, VERSION}));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(classFile.length + 256);
+        file.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * @return true if the class was instrumented at build time by this version of fakereplace
+     */
+    public static boolean isPreInstrumented(ClassFile file) {
+        final AttributeInfo attribute = file.getAttribute(ATTRIBUTE_NAME);
+        if (attribute == null) {
+            return false;
+        }
+        final byte[] data = attribute.get();
+        return data.length == 4 && data[0] == 0 && data[1] == 0 && data[2] == 0 && data[3] == VERSION;
+    }
+}
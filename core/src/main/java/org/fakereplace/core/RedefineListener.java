@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.core;
+
+/**
+ * Is told what happens during a call to {@link Agent#redefine(java.lang.instrument.ClassDefinition[], org.fakereplace.replacement.AddedClass[], boolean, RedefineListener)}.
+ * <p>
+ * The class methods are called from the thread doing the redefinition, as each class goes through the transformer.
+ * Referrers that are retransformed in the background are not reported.
+ *
+ * @author Stuart Douglas
+ */
+public interface RedefineListener {
+
+    /**
+     * @param nanos the time the fakereplace transformers took for the new version of the class
+     */
+    default void classTransformed(String className, long nanos) {
+    }
+
+    default void classFailed(String className, Throwable cause) {
+    }
+
+    /**
+     * @param nanos the time the whole redefinition took, including transforming the classes
+     */
+    default void classesRedefined(long nanos) {
+    }
+
+    /**
+     * @param nanos the time spent waiting for the integrations to be notified of the change
+     */
+    default void integrationFinished(long nanos) {
+    }
+}
@@ -19,21 +19,31 @@ package org.fakereplace.core;
 
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import org.fakereplace.api.Extension;
 import org.fakereplace.api.environment.CurrentEnvironment;
-import org.fakereplace.data.BaseClassData;
+import org.fakereplace.api.environment.Environment;
 import org.fakereplace.data.ClassDataStore;
+import org.fakereplace.data.ClassFingerprints;
 import org.fakereplace.data.InstanceTracker;
+import org.fakereplace.logging.Logger;
 import org.fakereplace.manip.Manipulator;
+import org.fakereplace.manip.util.ManipulationDataStore;
 import org.fakereplace.manip.util.ManipulationUtils;
+import org.fakereplace.protocol.Fingerprint;
 import org.fakereplace.reflection.ReflectionInstrumentationSetup;
 import org.fakereplace.replacement.notification.ChangedClassImpl;
 import org.fakereplace.transformation.FakereplaceTransformer;
+import org.fakereplace.transformation.MainTransformer;
 import org.fakereplace.util.NoInstrument;
 import javassist.bytecode.AccessFlag;
 import javassist.bytecode.AnnotationsAttribute;
@@ -57,23 +67,81 @@ public class Transformer implements FakereplaceTransformer {
 
     private static final Manipulator manipulator = new Manipulator();
 
+    /**
+     * the manipulation data modification count once the reflection rewrites have been set up, if it has not
+     * changed since then pre instrumented classes do not need to be rewritten
+     */
+    private static volatile int setupModificationCount = -1;
+
     private final Set<String> trackedInstances = new HashSet<String>();
 
-    private final List<FakereplaceTransformer> integrationTransformers = new CopyOnWriteArrayList<FakereplaceTransformer>();
+    /**
+     * integration transformers that declare the names of the classes they transform
+     */
+    private final Map<String, FakereplaceTransformer[]> integrationTransformersByClass = new HashMap<String, FakereplaceTransformer[]>();
+
+    private final List<PrefixedTransformer> prefixedIntegrationTransformers = new ArrayList<PrefixedTransformer>();
+
+    /**
+     * integration transformers that are invoked for every class
+     */
+    private final List<FakereplaceTransformer> integrationTransformers = new ArrayList<FakereplaceTransformer>();
+
+    private static final Logger log = Logger.getLogger(Transformer.class);
 
     /**
      * TODO: Move this elsewhere
      */
     private final FileSystemWatcher watcher = new FileSystemWatcher();
 
+    /**
+     * Recording the timestamp and file of a class requires looking up its resource, so it is done in the
+     * background rather than while the class is being loaded. The fingerprint is computed up front, so the
+     * queued tasks do not hold on to the class bytes.
+     */
+    private final Executor recordingExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "fakereplace-class-recorder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
 
     Transformer(Set<Extension> extension) {
         ReflectionInstrumentationSetup.setup(manipulator);
+        setupModificationCount = ManipulationDataStore.getModificationCount();
         for (Extension i : extension) {
             trackedInstances.addAll(i.getTrackedInstanceClassNames());
             List<FakereplaceTransformer> t = i.getTransformers();
             if (t != null) {
-                integrationTransformers.addAll(t);
+                for (FakereplaceTransformer transformer : t) {
+                    addIntegrationTransformer(transformer);
+                }
+            }
+        }
+    }
+
+    private void addIntegrationTransformer(FakereplaceTransformer transformer) {
+        final Set<String> classNames = transformer.getTransformedClassNames();
+        final Set<String> prefixes = transformer.getTransformedClassPrefixes();
+        if (classNames == null && prefixes == null) {
+            integrationTransformers.add(transformer);
+            return;
+        }
+        if (classNames != null) {
+            for (String name : classNames) {
+                final FakereplaceTransformer[] existing = integrationTransformersByClass.get(name);
+                if (existing == null) {
+                    integrationTransformersByClass.put(name, new FakereplaceTransformer[]{transformer});
+                } else {
+                    final FakereplaceTransformer[] transformers = Arrays.copyOf(existing, existing.length + 1);
+                    transformers[existing.length] = transformer;
+                    integrationTransformersByClass.put(name, transformers);
+                }
+            }
+        }
+        if (prefixes != null) {
+            for (String prefix : prefixes) {
+                prefixedIntegrationTransformers.add(new PrefixedTransformer(prefix, transformer));
             }
         }
     }
@@ -83,6 +151,19 @@ public class Transformer implements FakereplaceTransformer {
         if (classBeingRedefined != null) {
             ClassDataStore.instance().markClassReplaced(classBeingRedefined);
         }
+        final FakereplaceTransformer[] classTransformers = integrationTransformersByClass.get(file.getName());
+        if (classTransformers != null) {
+            for (FakereplaceTransformer i : classTransformers) {
+                if (i.transform(loader, className, classBeingRedefined, protectionDomain, file, classesToRetransform, changedClass, modifiedMethods)) {
+                    modified = true;
+                }
+            }
+        }
+        for (PrefixedTransformer i : prefixedIntegrationTransformers) {
+            if (file.getName().startsWith(i.prefix) && i.transformer.transform(loader, className, classBeingRedefined, protectionDomain, file, classesToRetransform, changedClass, modifiedMethods)) {
+                modified = true;
+            }
+        }
         for (FakereplaceTransformer i : integrationTransformers) {
             if (i.transform(loader, className, classBeingRedefined, protectionDomain, file, classesToRetransform, changedClass, modifiedMethods)) {
                 modified = true;
@@ -116,28 +197,32 @@ public class Transformer implements FakereplaceTransformer {
             modified = true;
         }
 
+        // classes instrumented at build time by PreInstrumenter already have the reflection rewrites and
+        // the added methods, they only need rewriting if more manipulations have been registered since
+        final boolean preInstrumented = classBeingRedefined == null && PreInstrumenter.isPreInstrumented(file);
         final boolean replaceable = CurrentEnvironment.getEnvironment().isClassReplaceable(className, loader);
-        if (manipulator.transformClass(file, loader, replaceable, modifiedMethods)) {
-            modified = true;
+        if (!preInstrumented || ManipulationDataStore.getModificationCount() != setupModificationCount) {
+            if (manipulator.transformClass(file, loader, replaceable, modifiedMethods)) {
+                modified = true;
+            }
         }
 
         if (replaceable) {
             if ((AccessFlag.ENUM & file.getAccessFlags()) == 0 && (AccessFlag.ANNOTATION & file.getAccessFlags()) == 0) {
-                modified = true;
-
-                CurrentEnvironment.getEnvironment().recordTimestamp(className, loader);
-                watcher.addClassFile(className, loader);
-                if (file.isInterface()) {
-                    addAbstractMethodForInstrumentation(file);
-                } else {
-                    addMethodForInstrumentation(file);
-                    addConstructorForInstrumentation(file);
-                    addStaticConstructorForInstrumentation(file);
+                recordClassFile(className, loader);
+                if (!preInstrumented) {
+                    modified = true;
+                    if (file.isInterface()) {
+                        addAbstractMethodForInstrumentation(file);
+                    } else {
+                        addMethodForInstrumentation(file);
+                        addConstructorForInstrumentation(file);
+                        addStaticConstructorForInstrumentation(file);
+                    }
                 }
             }
             if (classBeingRedefined == null) {
-                BaseClassData baseData = new BaseClassData(file, loader, replaceable);
-                ClassDataStore.instance().saveClassData(loader, baseData.getInternalName(), baseData);
+                ClassDataStore.instance().saveClassData(loader, file, replaceable);
             }
         }
         // SerialVersionUIDChecker.testReflectionInfo(loader, file.getName(),
@@ -149,7 +234,7 @@ public class Transformer implements FakereplaceTransformer {
      * Adds a method to a class that re can redefine when the class is reloaded
      *
      */
-    public void addMethodForInstrumentation(ClassFile file) {
+    public static void addMethodForInstrumentation(ClassFile file) {
         try {
             MethodInfo m = new MethodInfo(file.getConstPool(), Constants.ADDED_METHOD_NAME, Constants.ADDED_METHOD_DESCRIPTOR);
             m.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.SYNTHETIC);
@@ -209,7 +294,7 @@ public class Transformer implements FakereplaceTransformer {
      * Adds a method to a class that re can redefine when the class is reloaded
      *
      */
-    public void addAbstractMethodForInstrumentation(ClassFile file) {
+    public static void addAbstractMethodForInstrumentation(ClassFile file) {
         try {
             MethodInfo m = new MethodInfo(file.getConstPool(), Constants.ADDED_METHOD_NAME, Constants.ADDED_METHOD_DESCRIPTOR);
             m.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.ABSTRACT | AccessFlag.SYNTHETIC);
@@ -219,7 +304,7 @@ public class Transformer implements FakereplaceTransformer {
         }
     }
 
-    void addConstructorForInstrumentation(ClassFile file) {
+    static void addConstructorForInstrumentation(ClassFile file) {
 
         MethodInfo ret = new MethodInfo(file.getConstPool(), "<init>", Constants.ADDED_CONSTRUCTOR_DESCRIPTOR);
         Bytecode code = new Bytecode(file.getConstPool());
@@ -246,6 +331,23 @@ public class Transformer implements FakereplaceTransformer {
         return manipulator;
     }
 
+    private void recordClassFile(final String className, final ClassLoader loader) {
+        final Environment environment = CurrentEnvironment.getEnvironment();
+        final byte[] classBytes = MainTransformer.getClassfileBuffer();
+        final Long fingerprint = classBytes == null ? null : Fingerprint.of(classBytes);
+        if (fingerprint != null) {
+            ClassFingerprints.record(className, loader, fingerprint);
+        }
+        recordingExecutor.execute(() -> {
+            try {
+                environment.recordTimestamp(className, loader);
+                watcher.addClassFile(className, loader, fingerprint);
+            } catch (Throwable e) {
+                log.error("Failed to record class file for " + className, e);
+            }
+        });
+    }
+
     /**
      * modifies a class so that all created instances are registered with
      * InstanceTracker
@@ -265,4 +367,14 @@ public class Transformer implements FakereplaceTransformer {
             }
         }
     }
+
+    private static final class PrefixedTransformer {
+        private final String prefix;
+        private final FakereplaceTransformer transformer;
+
+        private PrefixedTransformer(String prefix, FakereplaceTransformer transformer) {
+            this.prefix = prefix;
+            this.transformer = transformer;
+        }
+    }
 }
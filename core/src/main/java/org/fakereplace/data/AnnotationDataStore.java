@@ -36,6 +36,7 @@ import java.io.IOException;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.Collections;
 import java.util.HashMap;
@@ -47,107 +48,126 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  * Stores information about the annotations on reloaded classes
  * <p>
- * TODO: This leaks Class's. everthing should be stored in weak hashaps keyed on
- * the class object
+ * The data is attached to the class that declares the annotated element using a
+ * {@link ClassValue}, so it does not prevent the class or its class loader from
+ * being collected.
  *
  * @author stuart
  */
 public class AnnotationDataStore {
 
-    private static Map<Class<?>, Annotation[]> classAnnotations = new ConcurrentHashMap<Class<?>, Annotation[]>();
+    private static final ClassValue<ClassAnnotationData> DATA = new ClassValue<ClassAnnotationData>() {
+        @Override
+        protected ClassAnnotationData computeValue(Class<?> type) {
+            return new ClassAnnotationData();
+        }
+    };
+
+    private static final class ClassAnnotationData {
+
+        private volatile Annotation[] classAnnotations;
+
+        private volatile Map<Class<? extends Annotation>, Annotation> classAnnotationsByType;
 
-    private static Map<Class<?>, Map<Class<? extends Annotation>, Annotation>> classAnnotationsByType = new ConcurrentHashMap<Class<?>, Map<Class<? extends Annotation>, Annotation>>();
+        private final Map<Field, Annotation[]> fieldAnnotations = new ConcurrentHashMap<Field, Annotation[]>(4);
 
-    private static Map<Field, Annotation[]> fieldAnnotations = new ConcurrentHashMap<Field, Annotation[]>();
+        private final Map<Field, Map<Class<? extends Annotation>, Annotation>> fieldAnnotationsByType = new ConcurrentHashMap<Field, Map<Class<? extends Annotation>, Annotation>>(4);
 
-    private static Map<Field, Map<Class<? extends Annotation>, Annotation>> fieldAnnotationsByType = new ConcurrentHashMap<Field, Map<Class<? extends Annotation>, Annotation>>();
+        private final Map<Method, Annotation[]> methodAnnotations = new ConcurrentHashMap<Method, Annotation[]>(4);
 
-    private static Map<Method, Annotation[]> methodAnnotations = new ConcurrentHashMap<Method, Annotation[]>();
+        private final Map<Method, Map<Class<? extends Annotation>, Annotation>> methodAnnotationsByType = new ConcurrentHashMap<Method, Map<Class<? extends Annotation>, Annotation>>(4);
 
-    private static Map<Method, Map<Class<? extends Annotation>, Annotation>> methodAnnotationsByType = new ConcurrentHashMap<Method, Map<Class<? extends Annotation>, Annotation>>();
+        private final Map<Method, Annotation[][]> parameterAnnotations = new ConcurrentHashMap<Method, Annotation[][]>(4);
 
-    private static Map<Method, Annotation[][]> parameterAnnotations = new ConcurrentHashMap<Method, Annotation[][]>();
+        private final Map<Constructor<?>, Annotation[]> constructorAnnotations = new ConcurrentHashMap<Constructor<?>, Annotation[]>(4);
 
-    private static Map<Constructor<?>, Annotation[]> constructorAnnotations = new ConcurrentHashMap<Constructor<?>, Annotation[]>();
+        private final Map<Constructor<?>, Map<Class<? extends Annotation>, Annotation>> constructorAnnotationsByType = new ConcurrentHashMap<Constructor<?>, Map<Class<? extends Annotation>, Annotation>>(4);
 
-    private static Map<Constructor<?>, Map<Class<? extends Annotation>, Annotation>> constructorAnnotationsByType = new ConcurrentHashMap<Constructor<?>, Map<Class<? extends Annotation>, Annotation>>();
+        private final Map<Constructor<?>, Annotation[][]> constructorParameterAnnotations = new ConcurrentHashMap<Constructor<?>, Annotation[][]>(4);
+    }
+
+    private static ClassAnnotationData data(Class<?> clazz) {
+        return DATA.get(clazz);
+    }
 
-    private static Map<Constructor<?>, Annotation[][]> constructorParameterAnnotations = new ConcurrentHashMap<Constructor<?>, Annotation[][]>();
+    private static ClassAnnotationData data(Member member) {
+        return DATA.get(member.getDeclaringClass());
+    }
 
     static final String PROXY_METHOD_NAME = "annotationsMethod";
 
     public static boolean isClassDataRecorded(Class<?> clazz) {
-        return classAnnotations.containsKey(clazz);
+        return data(clazz).classAnnotations != null;
     }
 
     public static Annotation[] getClassAnnotations(Class<?> clazz) {
-        return classAnnotations.get(clazz);
+        return data(clazz).classAnnotations;
     }
 
     public static Annotation getClassAnnotation(Class<?> clazz, Class<? extends Annotation> annotation) {
-        return classAnnotationsByType.get(clazz).get(annotation);
+        return data(clazz).classAnnotationsByType.get(annotation);
     }
 
     public static boolean isClassAnnotationPresent(Class<?> clazz, Class<? extends Annotation> annotation) {
-        return classAnnotationsByType.get(clazz).containsKey(annotation);
+        return data(clazz).classAnnotationsByType.containsKey(annotation);
     }
 
     public static boolean isFieldDataRecorded(Field clazz) {
-        return fieldAnnotations.containsKey(clazz);
+        return data(clazz).fieldAnnotations.containsKey(clazz);
     }
 
     public static Annotation[] getFieldAnnotations(Field clazz) {
-        return fieldAnnotations.get(clazz);
+        return data(clazz).fieldAnnotations.get(clazz);
     }
 
     public static Annotation getFieldAnnotation(Field clazz, Class<? extends Annotation> annotation) {
-        return fieldAnnotationsByType.get(clazz).get(annotation);
+        return data(clazz).fieldAnnotationsByType.get(clazz).get(annotation);
     }
 
     public static boolean isFieldAnnotationPresent(Field clazz, Class<? extends Annotation> annotation) {
-        return fieldAnnotationsByType.get(clazz).containsKey(annotation);
+        return data(clazz).fieldAnnotationsByType.get(clazz).containsKey(annotation);
     }
 
     public static boolean isMethodDataRecorded(Method clazz) {
-        return methodAnnotations.containsKey(clazz);
+        return data(clazz).methodAnnotations.containsKey(clazz);
     }
 
     public static Annotation[] getMethodAnnotations(Method clazz) {
-        return methodAnnotations.get(clazz);
+        return data(clazz).methodAnnotations.get(clazz);
     }
 
     public static Annotation getMethodAnnotation(Method clazz, Class<? extends Annotation> annotation) {
-        return methodAnnotationsByType.get(clazz).get(annotation);
+        return data(clazz).methodAnnotationsByType.get(clazz).get(annotation);
     }
 
     public static boolean isMethodAnnotationPresent(Method clazz, Class<? extends Annotation> annotation) {
-        return methodAnnotationsByType.get(clazz).containsKey(annotation);
+        return data(clazz).methodAnnotationsByType.get(clazz).containsKey(annotation);
     }
 
     public static Annotation[][] getMethodParameterAnnotations(Method clazz) {
-        return parameterAnnotations.get(clazz);
+        return data(clazz).parameterAnnotations.get(clazz);
     }
 
     // constructor
 
     public static boolean isConstructorDataRecorded(Constructor<?> clazz) {
-        return constructorAnnotations.containsKey(clazz);
+        return data(clazz).constructorAnnotations.containsKey(clazz);
     }
 
     public static Annotation[] getConstructorAnnotations(Constructor<?> clazz) {
-        return constructorAnnotations.get(clazz);
+        return data(clazz).constructorAnnotations.get(clazz);
     }
 
     public static Annotation getConstructorAnnotation(Constructor<?> clazz, Class<? extends Annotation> annotation) {
-        return constructorAnnotationsByType.get(clazz).get(annotation);
+        return data(clazz).constructorAnnotationsByType.get(clazz).get(annotation);
     }
 
     public static boolean isConstructorAnnotationPresent(Constructor<?> clazz, Class<? extends Annotation> annotation) {
-        return constructorAnnotationsByType.get(clazz).containsKey(annotation);
+        return data(clazz).constructorAnnotationsByType.get(clazz).containsKey(annotation);
     }
 
     public static Annotation[][] getMethodParameterAnnotations(Constructor<?> clazz) {
-        return constructorParameterAnnotations.get(clazz);
+        return data(clazz).constructorParameterAnnotations.get(clazz);
     }
 
     static Class<?> createAnnotationsProxy(ClassLoader loader, AnnotationsAttribute annotations) {
@@ -210,21 +230,23 @@ public class AnnotationDataStore {
         // no annotations
         if (annotations == null) {
             Annotation[] ans = new Annotation[0];
-            classAnnotations.put(clazz, ans);
-            classAnnotationsByType.put(clazz, Collections.EMPTY_MAP);
+            ClassAnnotationData data = data(clazz);
+            data.classAnnotationsByType = Collections.EMPTY_MAP;
+            data.classAnnotations = ans;
             for(Annotation annotation : clazz.getDeclaredAnnotations()) {
                 changedClass.changeClassAnnotation(new ChangedAnnotationImpl(null, annotation, ChangeType.REMOVE, changedClass, annotation.annotationType()));
             }
         } else {
             final Class<?> pclass = createAnnotationsProxy(clazz.getClassLoader(), annotations);
-            classAnnotations.put(clazz, pclass.getAnnotations());
             Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<Class<? extends Annotation>, Annotation>();
-            classAnnotationsByType.put(clazz, anVals);
             int count = 0;
             for (Annotation a : pclass.getAnnotations()) {
                 anVals.put(a.annotationType(), a);
                 count++;
             }
+            ClassAnnotationData data = data(clazz);
+            data.classAnnotationsByType = anVals;
+            data.classAnnotations = pclass.getAnnotations();
             final Set<Class<? extends Annotation>> newAnnotations = new HashSet<Class<? extends Annotation>>(anVals.keySet());
             for(Annotation annotation : clazz.getDeclaredAnnotations()) {
                 final Annotation newAnnotation = anVals.get(annotation.annotationType());
@@ -248,14 +270,14 @@ public class AnnotationDataStore {
         // no annotations
         if (annotations == null) {
             Annotation[] ans = new Annotation[0];
-            fieldAnnotations.put(field, ans);
-            fieldAnnotationsByType.put(field, Collections.EMPTY_MAP);
+            data(field).fieldAnnotations.put(field, ans);
+            data(field).fieldAnnotationsByType.put(field, Collections.EMPTY_MAP);
             return;
         }
         Class<?> pclass = createAnnotationsProxy(field.getDeclaringClass().getClassLoader(), annotations);
-        fieldAnnotations.put(field, pclass.getAnnotations());
+        data(field).fieldAnnotations.put(field, pclass.getAnnotations());
         Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<Class<? extends Annotation>, Annotation>();
-        fieldAnnotationsByType.put(field, anVals);
+        data(field).fieldAnnotationsByType.put(field, anVals);
         int count = 0;
         for (Annotation a : pclass.getAnnotations()) {
             anVals.put(a.annotationType(), a);
@@ -267,14 +289,14 @@ public class AnnotationDataStore {
         // no annotations
         if (annotations == null) {
             Annotation[] ans = new Annotation[0];
-            methodAnnotations.put(method, ans);
-            methodAnnotationsByType.put(method, Collections.EMPTY_MAP);
+            data(method).methodAnnotations.put(method, ans);
+            data(method).methodAnnotationsByType.put(method, Collections.EMPTY_MAP);
             return;
         }
         Class<?> pclass = createAnnotationsProxy(method.getDeclaringClass().getClassLoader(), annotations);
-        methodAnnotations.put(method, pclass.getAnnotations());
+        data(method).methodAnnotations.put(method, pclass.getAnnotations());
         Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<Class<? extends Annotation>, Annotation>();
-        methodAnnotationsByType.put(method, anVals);
+        data(method).methodAnnotationsByType.put(method, anVals);
         int count = 0;
         for (Annotation a : pclass.getAnnotations()) {
             anVals.put(a.annotationType(), a);
@@ -286,7 +308,7 @@ public class AnnotationDataStore {
         // no annotations
         if (annotations == null) {
             Annotation[][] ans = new Annotation[method.getParameterAnnotations().length][0];
-            parameterAnnotations.put(method, ans);
+            data(method).parameterAnnotations.put(method, ans);
             return;
         }
 
@@ -297,7 +319,7 @@ public class AnnotationDataStore {
         }
         try {
             Method anMethod = pclass.getMethod(PROXY_METHOD_NAME, types);
-            parameterAnnotations.put(method, anMethod.getParameterAnnotations());
+            data(method).parameterAnnotations.put(method, anMethod.getParameterAnnotations());
 
         } catch (Exception e) {
             throw new RuntimeException(e);
@@ -309,14 +331,14 @@ public class AnnotationDataStore {
         // no annotations
         if (annotations == null) {
             Annotation[] ans = new Annotation[0];
-            constructorAnnotations.put(constructor, ans);
-            constructorAnnotationsByType.put(constructor, Collections.EMPTY_MAP);
+            data(constructor).constructorAnnotations.put(constructor, ans);
+            data(constructor).constructorAnnotationsByType.put(constructor, Collections.EMPTY_MAP);
             return;
         }
         Class<?> pclass = createAnnotationsProxy(constructor.getDeclaringClass().getClassLoader(), annotations);
-        constructorAnnotations.put(constructor, pclass.getAnnotations());
+        data(constructor).constructorAnnotations.put(constructor, pclass.getAnnotations());
         Map<Class<? extends Annotation>, Annotation> anVals = new HashMap<Class<? extends Annotation>, Annotation>();
-        constructorAnnotationsByType.put(constructor, anVals);
+        data(constructor).constructorAnnotationsByType.put(constructor, anVals);
         int count = 0;
         for (Annotation a : pclass.getAnnotations()) {
             anVals.put(a.annotationType(), a);
@@ -329,7 +351,7 @@ public class AnnotationDataStore {
         // no annotations
         if (annotations == null) {
             Annotation[][] ans = new Annotation[method.getParameterAnnotations().length][0];
-            constructorParameterAnnotations.put(method, ans);
+            data(method).constructorParameterAnnotations.put(method, ans);
             return;
         }
 
@@ -340,7 +362,7 @@ public class AnnotationDataStore {
         }
         try {
             Method anMethod = pclass.getMethod(PROXY_METHOD_NAME, types);
-            constructorParameterAnnotations.put(method, anMethod.getParameterAnnotations());
+            data(method).constructorParameterAnnotations.put(method, anMethod.getParameterAnnotations());
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
@@ -20,17 +20,15 @@ package org.fakereplace.data;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
-import javassist.bytecode.ClassFile;
 import javassist.bytecode.Descriptor;
-import javassist.bytecode.FieldInfo;
-import javassist.bytecode.MethodInfo;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
 import org.fakereplace.core.Constants;
 import org.fakereplace.util.DescriptorUtils;
 
@@ -38,6 +36,12 @@ import org.fakereplace.util.DescriptorUtils;
  * This class holds everything there is to know about a class that has been seen
  * by the transformer. This stores the information about the original class, not
  * about any modifications
+ * <p>
+ * For classes loaded by the transformer this is created lazily from the data
+ * recorded by {@link ClassDataPacker}.
+ * <p>
+ * As there is one of these for every replaceable class the members are held in
+ * sorted arrays rather than collections, and looked up using a binary search.
  *
  * @author stuart
  */
@@ -45,56 +49,51 @@ public class BaseClassData {
 
     private final String className;
     private final String internalName;
-    private final Set<MethodData> methods;
-    private final List<FieldData> fields;
-    private final ClassLoader loader;
+    /**
+     * sorted by name then descriptor
+     */
+    private final MethodData[] methods;
+    /**
+     * sorted by name
+     */
+    private final FieldData[] fields;
+    private final LoaderReference loader;
     private final String superClassName;
+    private final String[] interfaceNames;
     private final boolean replaceable;
 
-    public BaseClassData(ClassFile file, ClassLoader loader, boolean replaceable) {
-        className = file.getName();
+    /**
+     * this class and all its supertypes, resolved by {@link ClassHierarchyIndex}
+     */
+    private volatile BaseClassData[] hierarchy;
+
+    BaseClassData(String className, ClassLoader loader, String superClassName, String[] interfaceNames, boolean replaceable, MethodData[] methods, FieldData[] fields) {
+        this.className = className;
+        this.internalName = Descriptor.toJvmName(className).intern();
+        this.loader = ClassLoaderTracker.reference(loader);
+        this.superClassName = superClassName;
+        this.interfaceNames = interfaceNames;
         this.replaceable = replaceable;
-        internalName = Descriptor.toJvmName(file.getName());
-        this.loader = loader;
-        superClassName = file.getSuperclass();
-        boolean finalMethod = false;
-        Set<MethodData> meths = new HashSet<MethodData>();
-        for (Object o : file.getMethods()) {
-            String methodClassName = className;
-            MethodInfo m = (MethodInfo) o;
-            MemberType type = MemberType.NORMAL;
-            if ((m.getDescriptor().equals(Constants.ADDED_METHOD_DESCRIPTOR) && m.getName().equals(Constants.ADDED_METHOD_NAME))
-                    || (m.getDescriptor().equals(Constants.ADDED_STATIC_METHOD_DESCRIPTOR) && m.getName().equals(Constants.ADDED_STATIC_METHOD_NAME))
-                    || (m.getDescriptor().equals(Constants.ADDED_CONSTRUCTOR_DESCRIPTOR))) {
-                type = MemberType.ADDED_SYSTEM;
-            } else if (m.getAttribute(Constants.FINAL_METHOD_ATTRIBUTE) != null) {
-                finalMethod = true;
-            }
-
-            MethodData md = new MethodData(m.getName(), m.getDescriptor(), methodClassName, type, m.getAccessFlags(), finalMethod);
-            meths.add(md);
-        }
-        this.methods = Collections.unmodifiableSet(meths);
-        List<FieldData> fieldData = new ArrayList<>();
-        for (Object o : file.getFields()) {
-            FieldInfo m = (FieldInfo) o;
-            MemberType mt = MemberType.NORMAL;
-            fieldData.add(new FieldData(m, mt, className, m.getAccessFlags()));
-        }
-        this.fields = Collections.unmodifiableList(fieldData);
+        this.methods = SortedMembers.sortMethods(methods);
+        this.fields = SortedMembers.sortFields(fields);
     }
 
     public BaseClassData(Class<?> cls) {
-        className = cls.getName();
-        internalName = Descriptor.toJvmName(cls.getName());
-        this.loader = cls.getClassLoader();
+        className = cls.getName().intern();
+        internalName = Descriptor.toJvmName(className).intern();
+        this.loader = ClassLoaderTracker.reference(cls.getClassLoader());
         replaceable = false;
         if (cls.getSuperclass() != null) {
-            superClassName = cls.getSuperclass().getName();
+            superClassName = cls.getSuperclass().getName().intern();
         } else {
             superClassName = null;
         }
-        Set<MethodData> meths = new HashSet<MethodData>();
+        Class<?>[] interfaces = cls.getInterfaces();
+        interfaceNames = new String[interfaces.length];
+        for (int i = 0; i < interfaces.length; ++i) {
+            interfaceNames[i] = interfaces[i].getName().intern();
+        }
+        Set<MethodData> meths = new LinkedHashSet<MethodData>();
         for (Method m : cls.getDeclaredMethods()) {
             MemberType type = MemberType.NORMAL;
             final String descriptor = DescriptorUtils.getDescriptor(m);
@@ -115,19 +114,36 @@ public class BaseClassData {
             meths.add(md);
         }
 
-        this.methods = Collections.unmodifiableSet(meths);
-        List<FieldData> fieldData = new ArrayList<FieldData>();
-        for (Field m : cls.getDeclaredFields()) {
-            fieldData.add(new FieldData(m));
+        this.methods = sortMethods(meths);
+        Field[] declaredFields = cls.getDeclaredFields();
+        FieldData[] fieldData = new FieldData[declaredFields.length];
+        for (int i = 0; i < declaredFields.length; ++i) {
+            fieldData[i] = new FieldData(declaredFields[i]);
         }
-        this.fields = Collections.unmodifiableList(fieldData);
+        this.fields = SortedMembers.sortFields(fieldData);
     }
 
     public String getSuperClassName() {
         return superClassName;
     }
 
+    public Collection<String> getInterfaceNames() {
+        return Collections.unmodifiableList(Arrays.asList(interfaceNames));
+    }
+
+    BaseClassData[] getHierarchy() {
+        return hierarchy;
+    }
+
+    void setHierarchy(BaseClassData[] hierarchy) {
+        this.hierarchy = hierarchy;
+    }
+
     public ClassLoader getLoader() {
+        return loader.get();
+    }
+
+    LoaderReference getLoaderReference() {
         return loader;
     }
 
@@ -140,11 +156,11 @@ public class BaseClassData {
     }
 
     public Collection<MethodData> getMethods() {
-        return methods;
+        return Collections.unmodifiableList(Arrays.asList(methods));
     }
 
     public Collection<FieldData> getFields() {
-        return fields;
+        return Collections.unmodifiableList(Arrays.asList(fields));
     }
 
     public boolean isReplaceable() {
@@ -152,20 +168,14 @@ public class BaseClassData {
     }
 
     public FieldData getField(String fieldName) {
-        for(FieldData field : fields) {
-            if(field.getName().equals(fieldName)) {
-                return field;
-            }
-        }
-        return null;
+        return SortedMembers.findField(fields, fieldName);
     }
 
     public MethodData getMethodOrConstructor(String methodName, String methodDesc) {
-        for(MethodData method : methods) {
-            if(method.getMethodName().equals(methodName) && method.getDescriptor().equals(methodDesc)) {
-                return method;
-            }
-        }
-        return null;
+        return SortedMembers.findMethod(methods, methodName, methodDesc);
+    }
+
+    private static MethodData[] sortMethods(Set<MethodData> methods) {
+        return SortedMembers.sortMethods(methods.toArray(new MethodData[methods.size()]));
     }
 }
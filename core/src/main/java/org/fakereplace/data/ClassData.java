@@ -18,19 +18,26 @@
 package org.fakereplace.data;
 
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.fakereplace.com.google.common.base.Function;
-import org.fakereplace.com.google.common.collect.MapMaker;
+import org.fakereplace.classloading.LoaderReference;
 import org.fakereplace.util.DescriptorUtils;
 
 /**
  * This class holds everything there is to know about a class that has been seen
- * by the transformer
+ * by the transformer.
+ * <p>
+ * Instances are immutable, and the members are held in sorted arrays that are searched
+ * with a binary search. The index from reflection {@link Method} objects is only created
+ * if reflection actually asks for it.
  *
  * @author stuart
  */
@@ -38,11 +45,16 @@ public class ClassData {
 
     private final String className;
     private final String internalName;
-    private final Map<String, Map<String, Set<MethodData>>> methods = new MapMaker().makeMap();
-    private final Map<Method, MethodData> methodsByMethod = new MapMaker().makeComputingMap(new MethodResolver());
-    private final Map<String, FieldData> fields = new MapMaker().makeMap();
-    private final Set<MethodData> methodSet = new HashSet<MethodData>();
-    private final ClassLoader loader;
+    /**
+     * sorted by name then descriptor, see {@link SortedMembers}
+     */
+    private final MethodData[] methods;
+    /**
+     * sorted by name
+     */
+    private final FieldData[] fields;
+    private volatile ConcurrentMap<Method, MethodData> methodsByMethod;
+    private final LoaderReference loader;
     private final String superClassName;
     private final boolean signitureModified;
     private final boolean replaceable;
@@ -52,64 +64,68 @@ public class ClassData {
     ClassData(BaseClassData data, Set<MethodData> addMethods, Set<MethodData> removedMethods, Set<FieldData> addedFields, Set<FieldData> removedFields) {
         className = data.getClassName();
         internalName = data.getInternalName();
-        loader = data.getLoader();
+        loader = data.getLoaderReference();
         superClassName = data.getSuperClassName();
         signitureModified = removedFields.isEmpty() && removedMethods.isEmpty() && addedFields.isEmpty() && addMethods.isEmpty();
         replaceable = data.isReplaceable();
+        Set<MethodData> methods = new LinkedHashSet<MethodData>();
         for (MethodData m : data.getMethods()) {
             if (!removedMethods.contains(m)) {
-                addMethod(m);
+                methods.add(m);
             }
         }
+        methods.addAll(removedMethods);
+        methods.addAll(addMethods);
+        this.methods = SortedMembers.sortMethods(methods.toArray(new MethodData[methods.size()]));
+
+        //later fields with the same name replace earlier ones
+        Map<String, FieldData> fields = new LinkedHashMap<String, FieldData>();
         for (FieldData f : data.getFields()) {
             if (!removedFields.contains(f)) {
-                addField(f);
+                fields.put(f.getName(), f);
             }
         }
-
         for (FieldData f : removedFields) {
-            addField(f);
+            fields.put(f.getName(), f);
         }
         for (FieldData f : addedFields) {
-            addField(f);
-        }
-
-        for (MethodData m : removedMethods) {
-            addMethod(m);
-        }
-
-        for (MethodData m : addMethods) {
-            addMethod(m);
-        }
-
-        for (String nm : methods.keySet()) {
-            for (String i : methods.get(nm).keySet()) {
-                methodSet.addAll(methods.get(nm).get(i));
-            }
+            fields.put(f.getName(), f);
         }
+        this.fields = SortedMembers.sortFields(fields.values().toArray(new FieldData[fields.size()]));
     }
 
     public MethodData getData(Method method) {
-        MethodData res = methodsByMethod.get(method);
+        ConcurrentMap<Method, MethodData> index = methodsByMethod;
+        if (index == null) {
+            synchronized (this) {
+                index = methodsByMethod;
+                if (index == null) {
+                    methodsByMethod = index = new ConcurrentHashMap<Method, MethodData>();
+                }
+            }
+        }
+        MethodData res = index.get(method);
+        if (res == null) {
+            res = resolve(method);
+            index.putIfAbsent(method, res);
+        }
         if (res == NULL_METHOD_DATA) {
             return null;
         }
         return res;
     }
 
-    ClassData(BaseClassData data) {
-        className = data.getClassName();
-        internalName = data.getInternalName();
-        loader = data.getLoader();
-        superClassName = data.getSuperClassName();
-        replaceable = data.isReplaceable();
-        for (MethodData m : data.getMethods()) {
-            addMethod(m);
-        }
-        for (FieldData f : data.getFields()) {
-            addField(f);
+    /**
+     * Resolves a method against the class data of its declaring class, which is not
+     * necessarily this class if the method is inherited
+     */
+    private static MethodData resolve(Method method) {
+        ClassData dta = ClassDataStore.instance().getModifiedClassData(method.getDeclaringClass().getClassLoader(), method.getDeclaringClass().getName());
+        if (dta == null) {
+            return NULL_METHOD_DATA;
         }
-        signitureModified = false;
+        MethodData ret = SortedMembers.findMethod(dta.methods, method.getName(), DescriptorUtils.getDescriptor(method));
+        return ret == null ? NULL_METHOD_DATA : ret;
     }
 
     public boolean isSignitureModified() {
@@ -125,8 +141,8 @@ public class ClassData {
         if (superClassName == null) {
             return null;
         }
-        ClassData superClassInformation = ClassDataStore.instance().getModifiedClassData(loader, superClassName);
-        ClassLoader l = loader;
+        ClassLoader l = loader.get();
+        ClassData superClassInformation = ClassDataStore.instance().getModifiedClassData(l, superClassName);
         while (superClassInformation == null && l != null) {
             l = l.getParent();
             superClassInformation = ClassDataStore.instance().getModifiedClassData(l, superClassName);
@@ -134,16 +150,12 @@ public class ClassData {
         return superClassInformation;
     }
 
-    public FieldData getField(String field) {
-        return fields.get(field);
-    }
-
     public String getSuperClassName() {
         return superClassName;
     }
 
     public ClassLoader getLoader() {
-        return loader;
+        return loader.get();
     }
 
     public String getClassName() {
@@ -154,83 +166,39 @@ public class ClassData {
         return internalName;
     }
 
-    public void addMethod(MethodData data) {
-
-        if (!methods.containsKey(data.getMethodName())) {
-            methods.put(data.getMethodName(), new HashMap<String, Set<MethodData>>());
-        }
-        Map<String, Set<MethodData>> mts = methods.get(data.getMethodName());
-        if (!mts.containsKey(data.getArgumentDescriptor())) {
-            mts.put(data.getArgumentDescriptor(), new HashSet<MethodData>());
-        }
-        Set<MethodData> rr = mts.get(data.getArgumentDescriptor());
-        rr.add(data);
-
-    }
-
-    /**
-     * replaces a method if it already exists
-     *
-     */
-    public void replaceMethod(MethodData data) {
-        if (!methods.containsKey(data.getMethodName())) {
-            methods.put(data.getMethodName(), new HashMap<String, Set<MethodData>>());
-        }
-        Map<String, Set<MethodData>> mts = methods.get(data.getMethodName());
-        Set<MethodData> rr = new HashSet<MethodData>();
-        mts.put(data.getArgumentDescriptor(), rr);
-        rr.add(data);
-
-    }
-
-    public void addField(FieldData data) {
-        fields.put(data.getName(), data);
-    }
-
     public Collection<MethodData> getMethods() {
-        return methodSet;
+        return Collections.unmodifiableList(Arrays.asList(methods));
     }
 
     public Collection<FieldData> getFields() {
-        return fields.values();
+        return Collections.unmodifiableList(Arrays.asList(fields));
+    }
+
+    public FieldData getField(String field) {
+        return SortedMembers.findField(fields, field);
     }
 
     /**
      * gets the method data based on name and signature. If there is multiple
-     * methods with the same name and signature it is undefined which one will be
-     * returned
+     * methods with the same name and signature then methods that have not been
+     * removed are preferred, otherwise it is undefined which one will be returned
      *
      */
     public MethodData getMethodData(String name, String arguments) {
-        Map<String, Set<MethodData>> r = methods.get(name);
-        if (r == null) {
-            return null;
-        }
-        Set<MethodData> ms = r.get(arguments);
-
-        if (ms == null) {
+        int pos = SortedMembers.findFirstByArguments(methods, name, arguments);
+        if (pos < 0) {
             return null;
         }
-        return ms.iterator().next();
-    }
-
-    private static class MethodResolver implements Function<Method, MethodData> {
-
-        public MethodData apply(Method from) {
-            ClassData dta = ClassDataStore.instance().getModifiedClassData(from.getDeclaringClass().getClassLoader(), from.getDeclaringClass().getName());
-            if (dta == null) {
-                return NULL_METHOD_DATA;
+        for (int i = pos; i < methods.length; ++i) {
+            MethodData m = methods[i];
+            if (!m.getMethodName().equals(name) || !m.getArgumentDescriptor().equals(arguments)) {
+                break;
             }
-            String descriptor = DescriptorUtils.getDescriptor(from);
-            for (MethodData m : dta.getMethods()) {
-                if (m.getMethodName().equals(from.getName()) && descriptor.equals(m.getDescriptor())) {
-                    return m;
-                }
+            if (m.getType() != MemberType.REMOVED) {
+                return m;
             }
-            return NULL_METHOD_DATA;
-
         }
-
+        return methods[pos];
     }
 
     public boolean isReplaceable() {
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import org.fakereplace.core.Constants;
+
+/**
+ * Packs the member information of a class into a single byte array when the class
+ * is loaded. The {@link BaseClassData} is only created from this the first time it
+ * is actually needed, which for most classes is never.
+ * <p>
+ * The format is the class name, super class name and interface names, followed by the name, descriptor
+ * and access flags of each method and field, all written with {@link DataOutputStream}.
+ *
+ * @author stuart
+ */
+final class ClassDataPacker {
+
+    private static final int ADDED_SYSTEM = 1;
+    private static final int FINAL_METHOD = 2;
+
+    private ClassDataPacker() {
+
+    }
+
+    static byte[] pack(ClassFile file, boolean replaceable) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeBoolean(replaceable);
+            out.writeUTF(file.getName());
+            String superClass = file.getSuperclass();
+            out.writeBoolean(superClass != null);
+            if (superClass != null) {
+                out.writeUTF(superClass);
+            }
+            String[] interfaces = file.getInterfaces();
+            out.writeShort(interfaces.length);
+            for (String iface : interfaces) {
+                out.writeUTF(iface);
+            }
+            List<?> methods = file.getMethods();
+            out.writeShort(methods.size());
+            for (Object o : methods) {
+                MethodInfo m = (MethodInfo) o;
+                int flags = 0;
+                if ((m.getDescriptor().equals(Constants.ADDED_METHOD_DESCRIPTOR) && m.getName().equals(Constants.ADDED_METHOD_NAME))
+                        || (m.getDescriptor().equals(Constants.ADDED_STATIC_METHOD_DESCRIPTOR) && m.getName().equals(Constants.ADDED_STATIC_METHOD_NAME))
+                        || (m.getDescriptor().equals(Constants.ADDED_CONSTRUCTOR_DESCRIPTOR))) {
+                    flags = ADDED_SYSTEM;
+                } else if (m.getAttribute(Constants.FINAL_METHOD_ATTRIBUTE) != null) {
+                    flags = FINAL_METHOD;
+                }
+                out.writeUTF(m.getName());
+                out.writeUTF(m.getDescriptor());
+                out.writeShort(m.getAccessFlags());
+                out.writeByte(flags);
+            }
+            List<?> fields = file.getFields();
+            out.writeShort(fields.size());
+            for (Object o : fields) {
+                FieldInfo f = (FieldInfo) o;
+                out.writeUTF(f.getName());
+                out.writeUTF(f.getDescriptor());
+                out.writeShort(f.getAccessFlags());
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static BaseClassData unpack(byte[] data, ClassLoader loader) {
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            boolean replaceable = in.readBoolean();
+            String className = in.readUTF().intern();
+            String superClassName = in.readBoolean() ? in.readUTF().intern() : null;
+            String[] interfaceNames = new String[in.readUnsignedShort()];
+            for (int i = 0; i < interfaceNames.length; ++i) {
+                interfaceNames[i] = in.readUTF().intern();
+            }
+            MethodData[] methods = new MethodData[in.readUnsignedShort()];
+            for (int i = 0; i < methods.length; ++i) {
+                String name = in.readUTF();
+                String descriptor = in.readUTF();
+                int accessFlags = in.readUnsignedShort();
+                int flags = in.readUnsignedByte();
+                MemberType type = (flags & ADDED_SYSTEM) != 0 ? MemberType.ADDED_SYSTEM : MemberType.NORMAL;
+                methods[i] = new MethodData(name, descriptor, className, type, accessFlags, (flags & FINAL_METHOD) != 0);
+            }
+            FieldData[] fields = new FieldData[in.readUnsignedShort()];
+            for (int i = 0; i < fields.length; ++i) {
+                String name = in.readUTF();
+                String descriptor = in.readUTF();
+                int accessFlags = in.readUnsignedShort();
+                fields[i] = new FieldData(name, descriptor, MemberType.NORMAL, className, accessFlags);
+            }
+            return new BaseClassData(className, loader, superClassName, interfaceNames, replaceable, methods, fields);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
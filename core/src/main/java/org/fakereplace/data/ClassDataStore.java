@@ -25,7 +25,10 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
+import javassist.bytecode.ClassFile;
 import org.fakereplace.classloading.ClassIdentifier;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
 import org.fakereplace.core.BuiltinClassData;
 import org.fakereplace.com.google.common.collect.MapMaker;
 import org.fakereplace.manip.util.MapFunction;
@@ -35,10 +38,17 @@ public class ClassDataStore {
 
     private static final ClassDataStore INSTANCE = new ClassDataStore();
 
-    private final Map<String, Class<?>> proxyNameToReplacedClass = new ConcurrentHashMap<String, Class<?>>();
+    /**
+     * the classes are weakly referenced, they stay reachable through their class loader while it is alive
+     */
+    private final Map<String, Class<?>> proxyNameToReplacedClass = new MapMaker().weakValues().makeMap();
     private final Map<String, FieldAccessor> proxyNameToFieldAccessor = new ConcurrentHashMap<String, FieldAccessor>();
     private final Map<ClassLoader, ConcurrentMap<String, ClassData>> classData = new MapMaker().weakKeys().makeComputingMap(new MapFunction<ClassLoader, String, ClassData>(false));
     private final Map<ClassLoader, ConcurrentMap<String, BaseClassData>> baseClassData = new MapMaker().weakKeys().makeComputingMap(new MapFunction<ClassLoader, String, BaseClassData>(false));
+    /**
+     * member information recorded at load time, that has not been turned into {@link BaseClassData} yet
+     */
+    private final Map<ClassLoader, ConcurrentMap<String, byte[]>> packedClassData = new MapMaker().weakKeys().makeComputingMap(new MapFunction<ClassLoader, String, byte[]>(false));
     private final Map<String, MethodData> proxyNameToMethodData = new ConcurrentHashMap<String, MethodData>();
     private final Set<ClassIdentifier> replacedClasses = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
@@ -49,7 +59,10 @@ public class ClassDataStore {
     };
 
     private ClassDataStore() {
-
+        ClassLoaderTracker.addCleanupTask(() -> {
+            replacedClasses.removeIf(ClassIdentifier::isCollected);
+            proxyNameToFieldAccessor.values().removeIf(FieldAccessor::isCollected);
+        });
     }
 
     public void markClassReplaced(Class<?> clazz) {
@@ -57,11 +70,12 @@ public class ClassDataStore {
     }
 
     public boolean isClassReplaced(Class<?> clazz) {
-        return replacedClasses.contains(new ClassIdentifier(clazz.getName(), clazz.getClassLoader()));
+        return isClassReplaced(clazz.getName(), clazz.getClassLoader());
     }
 
     public boolean isClassReplaced(String name, ClassLoader loader) {
-        return replacedClasses.contains(new ClassIdentifier(name, loader));
+        LoaderReference reference = ClassLoaderTracker.find(loader);
+        return reference != null && replacedClasses.contains(new ClassIdentifier(name, reference));
     }
 
     public void saveClassData(ClassLoader loader, String className, ClassDataBuilder data) {
@@ -82,6 +96,18 @@ public class ClassDataStore {
         map.put(className, data);
     }
 
+    /**
+     * Records the members of a class as it is loaded. The {@link BaseClassData} is not created until
+     * it is requested by {@link #getBaseClassData(ClassLoader, String)}
+     */
+    public void saveClassData(ClassLoader loader, ClassFile file, boolean replaceable) {
+        ClassHierarchyIndex.classLoaded(file.getName(), loader);
+        if (loader == null) {
+            loader = NULL_LOADER;
+        }
+        packedClassData.get(loader).put(file.getName(), ClassDataPacker.pack(file, replaceable));
+    }
+
     public ClassData getModifiedClassData(ClassLoader loader, String className) {
         className = className.replace('/', '.');
         if (loader == null) {
@@ -108,11 +134,19 @@ public class ClassDataStore {
         if (loader == null) {
             loader = NULL_LOADER;
         }
-        Map<String, BaseClassData> map = baseClassData.get(loader);
+        ConcurrentMap<String, BaseClassData> map = baseClassData.get(loader);
         if (!map.containsKey(className)) {
-            // if this is a class that is not being instrumented it is safe to
-            // load the class and get the data
-            if (BuiltinClassData.skipInstrumentation(className)) {
+            ConcurrentMap<String, byte[]> packed = packedClassData.get(loader);
+            byte[] data = packed.get(className);
+            if (data != null) {
+                map.putIfAbsent(className, ClassDataPacker.unpack(data, loader == NULL_LOADER ? null : loader));
+                packed.remove(className, data);
+            } else if (map.containsKey(className)) {
+                // another thread unpacked the data after the check above
+                return map.get(className);
+            } else if (BuiltinClassData.skipInstrumentation(className)) {
+                // if this is a class that is not being instrumented it is safe to
+                // load the class and get the data
                 try {
                     if (loader != NULL_LOADER) {
                         Class<?> cls = loader.loadClass(className);
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.data;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.fakereplace.classloading.ClassIdentifier;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
+
+/**
+ * The {@link org.fakereplace.protocol.Fingerprint} of the class file each replaceable class was last loaded or
+ * redefined from. This tells whether a class file is different to the loaded class without relying on
+ * timestamps.
+ *
+ * @author Stuart Douglas
+ */
+public final class ClassFingerprints {
+
+    private static final Map<ClassIdentifier, Long> fingerprints = new ConcurrentHashMap<>();
+
+    static {
+        ClassLoaderTracker.addCleanupTask(() -> fingerprints.keySet().removeIf(ClassIdentifier::isCollected));
+    }
+
+    private ClassFingerprints() {
+
+    }
+
+    public static void record(String className, ClassLoader loader, long fingerprint) {
+        if (loader == null) {
+            return;
+        }
+        fingerprints.put(new ClassIdentifier(className.replace('/', '.'), loader), fingerprint);
+    }
+
+    /**
+     * @return the fingerprint of the class, or null if it has not been loaded by the given loader
+     */
+    public static Long get(String className, ClassLoader loader) {
+        if (loader == null) {
+            return null;
+        }
+        final LoaderReference reference = ClassLoaderTracker.find(loader);
+        if (reference == null) {
+            return null;
+        }
+        return fingerprints.get(new ClassIdentifier(className, reference));
+    }
+}
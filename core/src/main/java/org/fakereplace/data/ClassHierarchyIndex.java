@@ -0,0 +1,151 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
+
+/**
+ * Resolves the supertypes of a class from the {@link BaseClassData} that is recorded as
+ * classes are loaded, so the class hierarchy can be examined from inside a transformer
+ * without loading any classes.
+ * <p>
+ * Supertypes are looked for in the loader of the class and its parents. If that fails, for
+ * example because the loader does not delegate to its parent, the loader that most recently
+ * loaded a class of that name is used. A hierarchy that needed this is not cached, as that loader
+ * may belong to a different deployment the next time.
+ *
+ * @author stuart
+ */
+public class ClassHierarchyIndex {
+
+    private static final Map<String, LoaderReference> definingLoaders = new ConcurrentHashMap<>();
+
+    static {
+        ClassLoaderTracker.addCleanupTask(() -> definingLoaders.values().removeIf(LoaderReference::isCollected));
+    }
+
+    private ClassHierarchyIndex() {
+
+    }
+
+    static void classLoaded(String className, ClassLoader loader) {
+        if (loader != null) {
+            definingLoaders.put(className, ClassLoaderTracker.reference(loader));
+        }
+    }
+
+    /**
+     * @return the reference to the loader that most recently loaded a class of the given name, or null if there is none
+     */
+    public static LoaderReference getDefiningLoader(String className) {
+        return definingLoaders.get(className);
+    }
+
+    /**
+     * Returns the data for the given class and all of its superclasses and interfaces. The class
+     * itself is always first.
+     *
+     * @return the class hierarchy, or null if the data for one of the supertypes is not available
+     */
+    public static BaseClassData[] getHierarchy(BaseClassData data) {
+        BaseClassData[] hierarchy = data.getHierarchy();
+        if (hierarchy != null) {
+            return hierarchy;
+        }
+        final List<BaseClassData> result = new ArrayList<>();
+        final Set<String> seen = new HashSet<>();
+        final Deque<BaseClassData> queue = new ArrayDeque<>();
+        queue.add(data);
+        seen.add(data.getClassName());
+        boolean cacheable = true;
+        while (!queue.isEmpty()) {
+            final BaseClassData current = queue.poll();
+            result.add(current);
+            final String superClassName = current.getSuperClassName();
+            if (superClassName != null && seen.add(superClassName)) {
+                BaseClassData superData = findInLoaders(current.getLoader(), superClassName);
+                if (superData == null) {
+                    superData = findByDefiningLoader(current.getLoader(), superClassName);
+                    cacheable = false;
+                }
+                if (superData == null) {
+                    return null;
+                }
+                queue.add(superData);
+            }
+            for (String iface : current.getInterfaceNames()) {
+                if (seen.add(iface)) {
+                    BaseClassData ifaceData = findInLoaders(current.getLoader(), iface);
+                    if (ifaceData == null) {
+                        ifaceData = findByDefiningLoader(current.getLoader(), iface);
+                        cacheable = false;
+                    }
+                    if (ifaceData == null) {
+                        return null;
+                    }
+                    queue.add(ifaceData);
+                }
+            }
+        }
+        hierarchy = result.toArray(new BaseClassData[result.size()]);
+        if (cacheable) {
+            data.setHierarchy(hierarchy);
+        }
+        return hierarchy;
+    }
+
+    /**
+     * looks for the class in the given loader and its parents
+     */
+    private static BaseClassData findInLoaders(ClassLoader loader, String className) {
+        final ClassDataStore store = ClassDataStore.instance();
+        ClassLoader l = loader;
+        for (; ; ) {
+            final BaseClassData data = store.getBaseClassData(l, className);
+            if (data != null) {
+                return data;
+            }
+            if (l == null) {
+                return null;
+            }
+            l = l.getParent();
+        }
+    }
+
+    /**
+     * looks for the class in the loader that most recently loaded a class of that name
+     */
+    private static BaseClassData findByDefiningLoader(ClassLoader loader, String className) {
+        final LoaderReference defining = getDefiningLoader(className);
+        final ClassLoader definingLoader = defining == null ? null : defining.get();
+        if (definingLoader != null && definingLoader != loader) {
+            return ClassDataStore.instance().getBaseClassData(definingLoader, className);
+        }
+        return null;
+    }
+}
@@ -35,9 +35,20 @@ public class FieldData {
         this.pack = AccessFlag.isPackage(modifiers);
         this.priv = AccessFlag.isPrivate(modifiers);
         this.prot = AccessFlag.isProtected(modifiers);
-        this.type = info.getDescriptor();
-        this.name = info.getName();
-        this.className = className;
+        this.type = info.getDescriptor().intern();
+        this.name = info.getName().intern();
+        this.className = className.intern();
+        this.memberType = memberType;
+    }
+
+    FieldData(String name, String descriptor, MemberType memberType, String className, int modifiers) {
+        this.accessFlags = modifiers;
+        this.pack = AccessFlag.isPackage(modifiers);
+        this.priv = AccessFlag.isPrivate(modifiers);
+        this.prot = AccessFlag.isProtected(modifiers);
+        this.type = descriptor.intern();
+        this.name = name.intern();
+        this.className = className.intern();
         this.memberType = memberType;
     }
 
@@ -46,10 +57,10 @@ public class FieldData {
         this.pack = AccessFlag.isPackage(accessFlags);
         this.priv = AccessFlag.isPrivate(accessFlags);
         this.prot = AccessFlag.isProtected(accessFlags);
-        this.type = field.getType().getName();
+        this.type = field.getType().getName().intern();
         this.memberType = MemberType.NORMAL;
-        this.className = field.getDeclaringClass().getName();
-        this.name = field.getName();
+        this.className = field.getDeclaringClass().getName().intern();
+        this.name = field.getName().intern();
     }
 
     public FieldData(FieldData other, MemberType type) {
@@ -86,7 +97,7 @@ public class FieldData {
 
     @Override
     public int hashCode() {
-        return (className + name).hashCode();
+        return 31 * className.hashCode() + name.hashCode();
     }
 
     public String getName() {
@@ -18,10 +18,12 @@
 package org.fakereplace.data;
 
 import java.util.Collections;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
+import org.fakereplace.classloading.ClassLoaderTracker;
 import org.fakereplace.com.google.common.collect.MapMaker;
 
 /**
@@ -34,16 +36,31 @@ public class InstanceTracker {
 
     private static ConcurrentMap<String, Set<Object>> data = new ConcurrentHashMap<String, Set<Object>>();
 
+    static {
+        // once all the instances of a type have been collected there is no need to keep the entry
+        ClassLoaderTracker.addCleanupTask(() -> {
+            for (Map.Entry<String, Set<Object>> entry : data.entrySet()) {
+                if (entry.getValue().isEmpty()) {
+                    data.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        });
+    }
+
     public static void add(String type, Object object) {
-        Set<Object> set = data.get(type);
-        if(set == null) {
-            set = Collections.newSetFromMap(new MapMaker().weakKeys().<Object, Boolean>makeMap());
-            Set<Object> existing = data.putIfAbsent(type, set);
-            if(existing != null) {
-                set = existing;
+        Set<Object> set;
+        do {
+            set = data.get(type);
+            if (set == null) {
+                set = Collections.newSetFromMap(new MapMaker().weakKeys().<Object, Boolean>makeMap());
+                Set<Object> existing = data.putIfAbsent(type, set);
+                if (existing != null) {
+                    set = existing;
+                }
             }
-        }
-        set.add(object);
+            set.add(object);
+            // the set may have been removed by the cleanup task while it was empty
+        } while (data.get(type) != set);
     }
 
     public static Set<?> get(String type) {
@@ -57,11 +57,11 @@ public class MethodData {
     private final boolean finalMethod;
 
     public MethodData(String name, String descriptor, String className, MemberType type, int accessFlags, boolean finalMethod) {
-        this.methodName = name;
-        this.descriptor = descriptor;
-        this.returnTypeDescriptor = DescriptorUtils.getReturnType(descriptor);
-        this.argumentDescriptor = DescriptorUtils.getArgumentString(descriptor);
-        this.className = className;
+        this.methodName = name.intern();
+        this.descriptor = descriptor.intern();
+        this.returnTypeDescriptor = DescriptorUtils.getReturnType(descriptor).intern();
+        this.argumentDescriptor = DescriptorUtils.getArgumentString(descriptor).intern();
+        this.className = className.intern();
         this.type = type;
         this.accessFlags = accessFlags;
         this.methodNo = 0;
@@ -69,11 +69,11 @@ public class MethodData {
     }
 
     public MethodData(String name, String descriptor, String className, MemberType type, int accessFlags, int methodNo) {
-        this.methodName = name;
-        this.descriptor = descriptor;
-        this.returnTypeDescriptor = DescriptorUtils.getReturnType(descriptor);
-        this.argumentDescriptor = DescriptorUtils.getArgumentString(descriptor);
-        this.className = className;
+        this.methodName = name.intern();
+        this.descriptor = descriptor.intern();
+        this.returnTypeDescriptor = DescriptorUtils.getReturnType(descriptor).intern();
+        this.argumentDescriptor = DescriptorUtils.getArgumentString(descriptor).intern();
+        this.className = className.intern();
         this.type = type;
         this.accessFlags = accessFlags;
         this.methodNo = methodNo;
@@ -103,7 +103,9 @@ public class MethodData {
 
     @Override
     public int hashCode() {
-        return (className + methodName + descriptor).hashCode();
+        int result = className.hashCode();
+        result = 31 * result + methodName.hashCode();
+        return 31 * result + descriptor.hashCode();
     }
 
     public String getClassName() {
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Helpers for the sorted member arrays used by {@link BaseClassData} and {@link ClassData}.
+ * <p>
+ * Methods are sorted by name and then descriptor. As the argument part of a descriptor
+ * always ends in ')' this is also the order by name, then argument descriptor, then
+ * return type, so the same array can be searched by either full or argument descriptor.
+ *
+ * @author stuart
+ */
+final class SortedMembers {
+
+    private static final Comparator<MethodData> METHOD_ORDER = new Comparator<MethodData>() {
+        @Override
+        public int compare(MethodData o1, MethodData o2) {
+            int cmp = o1.getMethodName().compareTo(o2.getMethodName());
+            if (cmp != 0) {
+                return cmp;
+            }
+            cmp = o1.getDescriptor().compareTo(o2.getDescriptor());
+            if (cmp != 0) {
+                return cmp;
+            }
+            return o1.getClassName().compareTo(o2.getClassName());
+        }
+    };
+
+    private static final Comparator<FieldData> FIELD_ORDER = new Comparator<FieldData>() {
+        @Override
+        public int compare(FieldData o1, FieldData o2) {
+            return o1.getName().compareTo(o2.getName());
+        }
+    };
+
+    private SortedMembers() {
+
+    }
+
+    static MethodData[] sortMethods(MethodData[] methods) {
+        Arrays.sort(methods, METHOD_ORDER);
+        return methods;
+    }
+
+    static FieldData[] sortFields(FieldData[] fields) {
+        Arrays.sort(fields, FIELD_ORDER);
+        return fields;
+    }
+
+    static FieldData findField(FieldData[] fields, String name) {
+        int low = 0;
+        int high = fields.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = fields[mid].getName().compareTo(name);
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return fields[mid];
+            }
+        }
+        return null;
+    }
+
+    static MethodData findMethod(MethodData[] methods, String name, String descriptor) {
+        int pos = firstMethod(methods, name, descriptor, false);
+        if (pos < methods.length && methods[pos].getMethodName().equals(name) && methods[pos].getDescriptor().equals(descriptor)) {
+            return methods[pos];
+        }
+        return null;
+    }
+
+    /**
+     * Returns the index of the first method with the given name and argument descriptor,
+     * or -1 if there is no such method
+     */
+    static int findFirstByArguments(MethodData[] methods, String name, String arguments) {
+        int pos = firstMethod(methods, name, arguments, true);
+        if (pos < methods.length && methods[pos].getMethodName().equals(name) && methods[pos].getArgumentDescriptor().equals(arguments)) {
+            return pos;
+        }
+        return -1;
+    }
+
+    /**
+     * finds the lowest index whose method is not ordered before the given name and descriptor
+     */
+    private static int firstMethod(MethodData[] methods, String name, String descriptor, boolean arguments) {
+        int low = 0;
+        int high = methods.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            MethodData method = methods[mid];
+            int cmp = method.getMethodName().compareTo(name);
+            if (cmp == 0) {
+                cmp = (arguments ? method.getArgumentDescriptor() : method.getDescriptor()).compareTo(descriptor);
+            }
+            if (cmp < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -59,7 +59,7 @@ public class ConstructorInvocationManipulator implements ClassManipulator {
     }
 
     public boolean transformClass(ClassFile file, ClassLoader loader, boolean modifiableClass, final Set<MethodInfo> modifiedMethods) {
-        Map<String, Set<ConstructorRewriteData>> constructorRewrites = new HashMap<>(data.getManipulationData(loader));
+        Map<String, Set<ConstructorRewriteData>> constructorRewrites = data.getManipulationData(loader);
         Map<Integer, ConstructorRewriteData> methodCallLocations = new HashMap<Integer, ConstructorRewriteData>();
         // first we need to scan the constant pool looking for
         // CONSTANT_method_info_ref structures
@@ -19,7 +19,6 @@ package org.fakereplace.manip;
 
 import java.lang.reflect.Modifier;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,6 +27,7 @@ import org.fakereplace.api.environment.CurrentEnvironment;
 import org.fakereplace.core.Agent;
 import org.fakereplace.core.Constants;
 import org.fakereplace.data.BaseClassData;
+import org.fakereplace.data.ClassHierarchyIndex;
 import org.fakereplace.data.ClassDataStore;
 import org.fakereplace.data.MethodData;
 import org.fakereplace.logging.Logger;
@@ -110,27 +110,18 @@ public class FakeMethodCallManipulator implements ClassManipulator {
 
                     BaseClassData data = ClassDataStore.instance().getBaseClassData(loader, className);
                     if(data != null) {
-                        boolean noClassData = false;
+                        //the hierarchy is resolved from the recorded class data, so no classes are loaded here
+                        final BaseClassData[] hierarchy = ClassHierarchyIndex.getHierarchy(data);
                         MethodData method = null;
-                        try {
-                            Class<?> mainClass = loader.loadClass(className);
-                            Set<Class> allClasses = new HashSet<>();
-                            addToAllClasses(mainClass, allClasses);
-                            for(Class clazz : allClasses) {
-                                data = ClassDataStore.instance().getBaseClassData(clazz.getClassLoader(), clazz.getName());
-                                if(data == null) {
-                                    noClassData = true;
-                                    break;
-                                }
-                                method = data.getMethodOrConstructor(methodName, methodDesc);
+                        if (hierarchy != null) {
+                            for (BaseClassData clazz : hierarchy) {
+                                method = clazz.getMethodOrConstructor(methodName, methodDesc);
                                 if(method != null) {
                                     break;
                                 }
                             }
-                        } catch (ClassNotFoundException e) {
-                            noClassData = true;
                         }
-                        if (!noClassData) {
+                        if (hierarchy != null) {
                             if (method == null) {
                                 //this is a new method
                                 //lets deal with it
@@ -212,16 +203,6 @@ public class FakeMethodCallManipulator implements ClassManipulator {
         }
     }
 
-    private void addToAllClasses(Class<?> clazz, Set<Class> allClasses) {
-        while ( clazz != null) {
-            allClasses.add(clazz);
-            for(Class<?> iface : clazz.getInterfaces()) {
-                addToAllClasses(iface, allClasses);
-            }
-            clazz = clazz.getSuperclass();
-        }
-    }
-
     private void handleFakeMethodCall(ClassFile file, Set<MethodInfo> modifiedMethods, MethodInfo m, CodeIterator it, int index, int op, FakeMethodCallData data) throws BadBytecode {
         //NOP out the whole thing
         it.writeByte(CodeIterator.NOP, index );
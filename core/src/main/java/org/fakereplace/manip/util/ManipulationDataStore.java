@@ -17,51 +17,89 @@
 
 package org.fakereplace.manip.util;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.fakereplace.com.google.common.collect.MapMaker;
 
 /**
  * class that figures out which maniluation should be applied based on the
  * classloader of the relative classes.
+ * <p>
+ * The filtered view for each class loader is computed once and cached, as it is
+ * needed for every class that is transformed. The cached views are discarded
+ * whenever the manipulation data changes.
  *
  * @param <T>
  * @author stuart
  */
 public class ManipulationDataStore<T extends ClassLoaderFiltered<T>> {
+    /**
+     * incremented every time the data in any store changes
+     */
+    private static final AtomicInteger modificationCount = new AtomicInteger();
+
     private final ClassLoader NULL_CLASS_LOADER = new ClassLoader() {
     };
 
     private final Map<ClassLoader, ConcurrentMap<String, Set<T>>> cldata = new MapMaker().weakKeys().makeComputingMap(new MapFunction<ClassLoader, String, Set<T>>(false));
 
+    /**
+     * the immutable views of the data that applies to a given class loader. This is replaced
+     * with an empty map every time the data changes
+     */
+    private volatile ConcurrentMap<ClassLoader, Map<String, Set<T>>> views = new MapMaker().weakKeys().makeMap();
+
     public Map<String, Set<T>> getManipulationData(ClassLoader loader) {
         if (loader == null) {
             loader = NULL_CLASS_LOADER;
         }
+        final ConcurrentMap<ClassLoader, Map<String, Set<T>>> views = this.views;
+        Map<String, Set<T>> view = views.get(loader);
+        if (view == null) {
+            // the views are discarded after the data is modified, so a view that is built
+            // from data that is modified concurrently is never used again
+            view = createView(loader);
+            Map<String, Set<T>> existing = views.putIfAbsent(loader, view);
+            if (existing != null) {
+                view = existing;
+            }
+        }
+        return view;
+    }
+
+    private Map<String, Set<T>> createView(ClassLoader loader) {
         Map<String, Set<T>> ret = new HashMap<String, Set<T>>();
         for (Entry<ClassLoader, ConcurrentMap<String, Set<T>>> centry : cldata.entrySet()) {
             for (Entry<String, Set<T>> e : centry.getValue().entrySet()) {
-                Set<T> set = new HashSet<T>();
-                ret.put(e.getKey(), set);
                 for (ClassLoaderFiltered<T> f : e.getValue()) {
                     if (includeClassLoader(loader, f.getClassLoader())) {
+                        Set<T> set = ret.get(e.getKey());
+                        if (set == null) {
+                            ret.put(e.getKey(), set = new HashSet<T>());
+                        }
                         set.add(f.getInstance());
                     }
                 }
             }
         }
-
-        return ret;
+        if (ret.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        for (Entry<String, Set<T>> e : ret.entrySet()) {
+            e.setValue(Collections.unmodifiableSet(e.getValue()));
+        }
+        return Collections.unmodifiableMap(ret);
     }
 
-    public void add(String name, T mdata) {
+    public synchronized void add(String name, T mdata) {
         ClassLoader loader = mdata.getClassLoader();
         if (loader == null) {
             loader = NULL_CLASS_LOADER;
@@ -75,7 +113,22 @@ public class ManipulationDataStore<T extends ClassLoaderFiltered<T>> {
                 store = existing;
             }
         }
-        store.add(mdata);
+        if (store.add(mdata)) {
+            modified();
+        }
+    }
+
+    private void modified() {
+        views = new MapMaker().weakKeys().makeMap();
+        modificationCount.incrementAndGet();
+    }
+
+    /**
+     * Classes that have already been transformed only pick up changes to the manipulation
+     * data when they are retransformed, this can be used to tell if any data changed.
+     */
+    public static int getModificationCount() {
+        return modificationCount.get();
     }
 
     /**
@@ -108,19 +161,16 @@ public class ManipulationDataStore<T extends ClassLoaderFiltered<T>> {
                 '}';
     }
 
-    public void remove(String className, ClassLoader classLoader) {
+    public synchronized void remove(String className, ClassLoader classLoader) {
+        final ClassLoader loader = classLoader;
         if (classLoader == null) {
             classLoader = NULL_CLASS_LOADER;
         }
         Map<String, Set<T>> data = cldata.get(classLoader);
-        if (data.containsKey(className)) {
-            Set<T> set = data.get(className);
-            Iterator<T> i = set.iterator();
-            while (i.hasNext()) {
-                T val = i.next();
-                if (val.getClassLoader() == classLoader) {
-                    i.remove();
-                }
+        Set<T> set = data.get(className);
+        if (set != null) {
+            if (set.removeIf(val -> val.getClassLoader() == loader)) {
+                modified();
             }
         }
     }
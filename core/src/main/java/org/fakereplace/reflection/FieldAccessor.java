@@ -17,43 +17,288 @@
 
 package org.fakereplace.reflection;
 
+import java.lang.ref.WeakReference;
+import java.util.concurrent.ConcurrentMap;
+
+import org.fakereplace.com.google.common.collect.MapMaker;
 import org.fakereplace.runtime.FieldDataStore;
+import org.fakereplace.runtime.FieldReferenceDataStore;
+import sun.reflect.Reflection;
 
 /**
- * Class that knows how to set and get replaced fields. This is very inefficent,
- * and should be replaced with bytecode generation based reflection
+ * Class that knows how to set and get replaced fields.
+ * <p>
+ * There is one accessor per added field, and it is resolved once per proxy class
+ * by {@link FieldReflection}. The typed accessors follow the widening rules of
+ * {@link java.lang.reflect.Field}, and callers that have passed the access
+ * check are remembered so the check is only done once per calling class.
  *
  * @author stuart
  */
 public class FieldAccessor {
 
-    private final Class<?> declaringClass;
-    private final Integer mapKey;
+    /**
+     * weakly referenced so the accessor does not keep the class loader alive
+     */
+    private final WeakReference<Class<?>> declaringClass;
+    private final int mapKey;
     private final boolean staticField;
+    /**
+     * the descriptor of a primitive field, or 'L' for object and array fields
+     */
+    private final char type;
+    private final ConcurrentMap<Class<?>, Boolean> permittedCallers = new MapMaker().weakKeys().makeMap();
 
     public FieldAccessor(Class<?> declaringClass, int mapKey, boolean staticField) {
-        this.declaringClass = declaringClass;
+        this.declaringClass = new WeakReference<Class<?>>(declaringClass);
         this.mapKey = mapKey;
         this.staticField = staticField;
+        String descriptor = FieldReferenceDataStore.instance().getFieldDescriptor(mapKey);
+        this.type = descriptor == null || descriptor.length() != 1 ? 'L' : descriptor.charAt(0);
+    }
+
+    void checkAccess(Class<?> caller, int modifiers) throws IllegalAccessException {
+        if (caller == null || permittedCallers.containsKey(caller)) {
+            return;
+        }
+        Reflection.ensureMemberAccess(caller, getDeclaringClass(), null, modifiers);
+        permittedCallers.put(caller, Boolean.TRUE);
     }
 
     public void set(Object object, Object value) throws IllegalAccessException {
-        if(staticField) {
-            FieldDataStore.setValue(declaringClass, value, mapKey);
+        if (type != 'L') {
+            value = widen(value);
+        }
+        if (staticField) {
+            FieldDataStore.setValue(getDeclaringClass(), value, mapKey);
         } else {
             FieldDataStore.setValue(object, value, mapKey);
         }
     }
 
     public Object get(Object object) throws IllegalAccessException {
-        if(staticField) {
-            return FieldDataStore.getValue(declaringClass, mapKey);
+        if (staticField) {
+            return FieldDataStore.getValue(getDeclaringClass(), mapKey);
         } else {
             return FieldDataStore.getValue(object, mapKey);
         }
     }
 
+    public void setBoolean(Object object, boolean value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public void setByte(Object object, byte value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public void setChar(Object object, char value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public void setShort(Object object, short value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public void setInt(Object object, int value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public void setLong(Object object, long value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public void setFloat(Object object, float value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public void setDouble(Object object, double value) throws IllegalAccessException {
+        setPrimitive(object, value);
+    }
+
+    public boolean getBoolean(Object object) throws IllegalAccessException {
+        if (type != 'Z') {
+            throw conversionError("boolean");
+        }
+        return (Boolean) get(object);
+    }
+
+    public byte getByte(Object object) throws IllegalAccessException {
+        if (type != 'B') {
+            throw conversionError("byte");
+        }
+        return ((Number) get(object)).byteValue();
+    }
+
+    public char getChar(Object object) throws IllegalAccessException {
+        if (type != 'C') {
+            throw conversionError("char");
+        }
+        return (Character) get(object);
+    }
+
+    public short getShort(Object object) throws IllegalAccessException {
+        if (type != 'S' && type != 'B') {
+            throw conversionError("short");
+        }
+        return ((Number) get(object)).shortValue();
+    }
+
+    public int getInt(Object object) throws IllegalAccessException {
+        switch (type) {
+            case 'B':
+            case 'S':
+            case 'I':
+                return ((Number) get(object)).intValue();
+            case 'C':
+                return (Character) get(object);
+            default:
+                throw conversionError("int");
+        }
+    }
+
+    public long getLong(Object object) throws IllegalAccessException {
+        switch (type) {
+            case 'B':
+            case 'S':
+            case 'I':
+            case 'J':
+                return ((Number) get(object)).longValue();
+            case 'C':
+                return (Character) get(object);
+            default:
+                throw conversionError("long");
+        }
+    }
+
+    public float getFloat(Object object) throws IllegalAccessException {
+        switch (type) {
+            case 'B':
+            case 'S':
+            case 'I':
+            case 'J':
+            case 'F':
+                return ((Number) get(object)).floatValue();
+            case 'C':
+                return (Character) get(object);
+            default:
+                throw conversionError("float");
+        }
+    }
+
+    public double getDouble(Object object) throws IllegalAccessException {
+        switch (type) {
+            case 'B':
+            case 'S':
+            case 'I':
+            case 'J':
+            case 'F':
+            case 'D':
+                return ((Number) get(object)).doubleValue();
+            case 'C':
+                return (Character) get(object);
+            default:
+                throw conversionError("double");
+        }
+    }
+
     public Class<?> getDeclaringClass() {
-        return declaringClass;
+        return declaringClass.get();
+    }
+
+    /**
+     * @return true if the declaring class has been garbage collected
+     */
+    public boolean isCollected() {
+        return declaringClass.get() == null;
+    }
+
+    private void setPrimitive(Object object, Object value) throws IllegalAccessException {
+        if (type == 'L') {
+            throw new IllegalArgumentException("Can not set object field " + getDeclaringClass().getName() + " to " + value.getClass().getName());
+        }
+        set(object, value);
+    }
+
+    /**
+     * converts a boxed value to the wrapper type of this field, using the same widening
+     * conversions as {@link java.lang.reflect.Field#set(Object, Object)}
+     */
+    private Object widen(Object value) {
+        if (value instanceof Character) {
+            char c = (Character) value;
+            switch (type) {
+                case 'C':
+                    return value;
+                case 'I':
+                    return (int) c;
+                case 'J':
+                    return (long) c;
+                case 'F':
+                    return (float) c;
+                case 'D':
+                    return (double) c;
+                default:
+                    break;
+            }
+        } else if (value instanceof Boolean) {
+            if (type == 'Z') {
+                return value;
+            }
+        } else if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long || value instanceof Float || value instanceof Double) {
+            Number n = (Number) value;
+            int rank = numericRank(value);
+            switch (type) {
+                case 'B':
+                    if (rank <= 0) {
+                        return n.byteValue();
+                    }
+                    break;
+                case 'S':
+                    if (rank <= 1) {
+                        return n.shortValue();
+                    }
+                    break;
+                case 'I':
+                    if (rank <= 2) {
+                        return n.intValue();
+                    }
+                    break;
+                case 'J':
+                    if (rank <= 3) {
+                        return n.longValue();
+                    }
+                    break;
+                case 'F':
+                    if (rank <= 4) {
+                        return n.floatValue();
+                    }
+                    break;
+                case 'D':
+                    return n.doubleValue();
+                default:
+                    break;
+            }
+        }
+        throw new IllegalArgumentException("Can not set " + type + " field " + getDeclaringClass().getName() + " to " + (value == null ? "null value" : value.getClass().getName()));
+    }
+
+    private static int numericRank(Object value) {
+        if (value instanceof Byte) {
+            return 0;
+        } else if (value instanceof Short) {
+            return 1;
+        } else if (value instanceof Integer) {
+            return 2;
+        } else if (value instanceof Long) {
+            return 3;
+        } else if (value instanceof Float) {
+            return 4;
+        }
+        return 5;
+    }
+
+    private IllegalArgumentException conversionError(String target) {
+        return new IllegalArgumentException("Attempt to get " + type + " field " + getDeclaringClass().getName() + " as " + target);
     }
 }
@@ -39,6 +39,17 @@ import sun.reflect.Reflection;
  */
 public class FieldReflection {
 
+    /**
+     * Each proxy class declares a single added field, so the accessor for a field can be
+     * cached against the declaring class of the proxy field
+     */
+    private static final ClassValue<FieldAccessor> ACCESSORS = new ClassValue<FieldAccessor>() {
+        @Override
+        protected FieldAccessor computeValue(Class<?> proxyClass) {
+            return ClassDataStore.instance().getFieldAccessor(proxyClass.getName());
+        }
+    };
+
     public static Class<?> getDeclaringClass(Field f) {
         Class<?> c = f.getDeclaringClass();
         if (c.getName().startsWith(Constants.GENERATED_CLASS_PACKAGE)) {
@@ -198,174 +209,92 @@ public class FieldReflection {
     }
 
     public static void set(Field f, Object object, Object val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).set(object, val);
     }
 
     public static void setBoolean(Field f, Object object, boolean val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setBoolean(object, val);
     }
 
     public static void setByte(Field f, Object object, byte val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setByte(object, val);
     }
 
     public static void setChar(Field f, Object object, char val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setChar(object, val);
     }
 
     public static void setDouble(Field f, Object object, double val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setDouble(object, val);
     }
 
     public static void setFloat(Field f, Object object, float val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setFloat(object, val);
     }
 
     public static void setInt(Field f, Object object, int val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setInt(object, val);
     }
 
     public static void setLong(Field f, Object object, long val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setLong(object, val);
     }
 
     public static void setShort(Field f, Object object, short val) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        accessor.set(object, val);
+        accessor(f).setShort(object, val);
     }
 
     public static Object get(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return accessor.get(object);
+        return accessor(f).get(object);
     }
 
     public static boolean getBoolean(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return (Boolean) accessor.get(object);
+        return accessor(f).getBoolean(object);
     }
 
     public static byte getByte(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return (Byte) accessor.get(object);
-
+        return accessor(f).getByte(object);
     }
 
     public static char getChar(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return (Character) accessor.get(object);
-
+        return accessor(f).getChar(object);
     }
 
-    public static Double getDouble(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return (Double) accessor.get(object);
+    public static double getDouble(Field f, Object object) throws IllegalAccessException {
+        return accessor(f).getDouble(object);
     }
 
     public static float getFloat(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return (Float) accessor.get(object);
+        return accessor(f).getFloat(object);
     }
 
     public static int getInt(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return (Integer) accessor.get(object);
+        return accessor(f).getInt(object);
     }
 
     public static long getLong(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
-        if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
-        }
-        return (Long) accessor.get(object);
+        return accessor(f).getLong(object);
     }
 
-    public static Object getShort(Field f, Object object) throws IllegalAccessException {
-        FieldAccessor accessor = ClassDataStore.instance().getFieldAccessor(f.getDeclaringClass().getName());
+    public static short getShort(Field f, Object object) throws IllegalAccessException {
+        return accessor(f).getShort(object);
+    }
+
+    /**
+     * Returns the cached accessor for the field, performing an access check if required
+     */
+    private static FieldAccessor accessor(Field f) throws IllegalAccessException {
+        FieldAccessor accessor = ACCESSORS.get(f.getDeclaringClass());
         if (!Modifier.isPublic(f.getModifiers()) && !f.isAccessible()) {
-            Class<?> caller = findCallerClass();
-            Reflection.ensureMemberAccess(caller, accessor.getDeclaringClass(), null, f.getModifiers());
+            accessor.checkAccess(findCallerClass(), f.getModifiers());
         }
-        return (Short) accessor.get(object);
+        return accessor;
     }
 
-
     private static Class findCallerClass() {
-        Class<?> c =  Reflection.getCallerClass(3);
+        Class<?> c =  Reflection.getCallerClass(4);
         if(c == FieldReflection.class) {
-            return Reflection.getCallerClass(4);
+            return Reflection.getCallerClass(5);
         }
         return c;
     }
@@ -32,7 +32,6 @@ import org.fakereplace.data.MemberType;
 import org.fakereplace.data.MethodData;
 import org.fakereplace.data.ModifiedMethod;
 import org.fakereplace.util.DescriptorUtils;
-import sun.reflect.Reflection;
 
 /**
  * This class has some method related reflection calls delegated to it at
@@ -49,40 +48,11 @@ public class MethodReflection {
     }
 
     public static Object invoke(Method method, Object instance, Object[] args) throws IllegalArgumentException, IllegalAccessException, InvocationTargetException {
-        if (!Modifier.isStatic(method.getModifiers())) {
-            MethodData info = ClassDataStore.instance().getMethodInformation(method.getDeclaringClass().getName());
-            try {
-                Method invoke = info.getMethodToInvoke(method.getDeclaringClass());
-                Object[] newAgrs = prependInstanceToParams(instance, args);
-                return invokeWithPermissionCheck(method, invoke, null, newAgrs);
-            } catch (NoSuchMethodException e) {
-                throw new RuntimeException(e);
-            } catch (SecurityException e) {
-                throw new RuntimeException(e);
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            }
-        }
-
-        return invokeWithPermissionCheck(method, method, instance, args);
-    }
-
-    private static Object invokeWithPermissionCheck(final Method permissionCheckMethod, final Method method, final Object instance, final Object[] params) throws IllegalAccessException, InvocationTargetException {
-        if (!Modifier.isPublic(permissionCheckMethod.getModifiers()) && !permissionCheckMethod.isAccessible()) {
-            Class<?> caller = sun.reflect.Reflection.getCallerClass(2);
-            Reflection.ensureMemberAccess(caller, permissionCheckMethod.getDeclaringClass(), null, permissionCheckMethod.getModifiers());
-            try {
-                //we need to lookup a new method
-                //which is very yuck
-                final Method lookedUpMethod = method.getDeclaringClass().getDeclaredMethod(method.getName(), method.getParameterTypes());
-                lookedUpMethod.setAccessible(true);
-                return lookedUpMethod.invoke(instance, params);
-            } catch (NoSuchMethodException e) {
-                throw new RuntimeException(e);
-            }
-        } else {
-            return method.invoke(instance, params);
+        final ProxyInvoker invoker = ProxyInvoker.forMethod(method);
+        if (!Modifier.isPublic(method.getModifiers()) && !method.isAccessible()) {
+            invoker.checkAccess(sun.reflect.Reflection.getCallerClass(2));
         }
+        return invoker.invokeMethod(instance, args);
     }
 
     public static Method[] getDeclaredMethods(Class<?> clazz) {
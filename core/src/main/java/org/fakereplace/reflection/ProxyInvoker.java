@@ -0,0 +1,198 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.reflection;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.WrongMethodTypeException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentMap;
+
+import org.fakereplace.com.google.common.collect.MapMaker;
+import org.fakereplace.core.ConstructorArgument;
+import org.fakereplace.data.ClassDataStore;
+import org.fakereplace.data.MethodData;
+import sun.reflect.Reflection;
+
+/**
+ * Invoker for a fake method or constructor, built once per proxy class.
+ * <p>
+ * Every proxy class declares exactly one fake member, so the invoker can be
+ * cached against the proxy class itself. This means that the method data lookup,
+ * the search for the real method to invoke and the setAccessible call are only
+ * done the first time a given member is invoked reflectively, rather than on
+ * every call.
+ * <p>
+ * Callers that have passed the access check are remembered, so the check is
+ * also only performed once per calling class.
+ *
+ * @author stuart
+ */
+final class ProxyInvoker {
+
+    private static final MethodHandle WRAP_TARGET_EXCEPTION;
+
+    static {
+        try {
+            WRAP_TARGET_EXCEPTION = MethodHandles.lookup().findStatic(ProxyInvoker.class, "wrapTargetException", MethodType.methodType(Object.class, Throwable.class));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static final ClassValue<ProxyInvoker> METHOD_INVOKERS = new ClassValue<ProxyInvoker>() {
+        @Override
+        protected ProxyInvoker computeValue(Class<?> proxyClass) {
+            return createMethodInvoker(proxyClass);
+        }
+    };
+
+    private static final ClassValue<ProxyInvoker> CONSTRUCTOR_INVOKERS = new ClassValue<ProxyInvoker>() {
+        @Override
+        protected ProxyInvoker computeValue(Class<?> proxyClass) {
+            return createConstructorInvoker(proxyClass);
+        }
+    };
+
+    /**
+     * For methods this has the type (Object, Object[])Object, for constructors
+     * (Object[])Object
+     */
+    private final MethodHandle handle;
+
+    /**
+     * the class that the fake member was added to, which is what access is checked against
+     */
+    private final Class<?> declaringClass;
+
+    private final int modifiers;
+
+    private final ConcurrentMap<Class<?>, Boolean> permittedCallers = new MapMaker().weakKeys().makeMap();
+
+    private ProxyInvoker(MethodHandle handle, Class<?> declaringClass, int modifiers) {
+        this.handle = handle;
+        this.declaringClass = declaringClass;
+        this.modifiers = modifiers;
+    }
+
+    static ProxyInvoker forMethod(Method method) {
+        return METHOD_INVOKERS.get(method.getDeclaringClass());
+    }
+
+    static ProxyInvoker forConstructor(Constructor<?> constructor) {
+        return CONSTRUCTOR_INVOKERS.get(constructor.getDeclaringClass());
+    }
+
+    /**
+     * Performs the access check that {@link Method#invoke(Object, Object...)} would perform
+     * for the fake member, unless the caller has already been checked.
+     */
+    void checkAccess(Class<?> caller) throws IllegalAccessException {
+        if (caller == null || permittedCallers.containsKey(caller)) {
+            return;
+        }
+        Reflection.ensureMemberAccess(caller, declaringClass, null, modifiers);
+        permittedCallers.put(caller, Boolean.TRUE);
+    }
+
+    Object invokeMethod(Object instance, Object[] args) throws IllegalArgumentException, InvocationTargetException {
+        final Object[] params = args == null ? new Object[0] : args;
+        try {
+            return (Object) handle.invokeExact(instance, params);
+        } catch (TargetException e) {
+            throw new InvocationTargetException(e.getCause());
+        } catch (ClassCastException | NullPointerException | WrongMethodTypeException e) {
+            throw new IllegalArgumentException(e);
+        } catch (IllegalArgumentException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    Object newInstance(Object[] args) throws InvocationTargetException {
+        final Object[] params = args == null ? new Object[0] : args;
+        try {
+            return (Object) handle.invokeExact(params);
+        } catch (TargetException e) {
+            throw new InvocationTargetException(e.getCause());
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ProxyInvoker createMethodInvoker(Class<?> proxyClass) {
+        try {
+            MethodData data = ClassDataStore.instance().getMethodInformation(proxyClass.getName());
+            Class<?> realClass = ClassDataStore.instance().getRealClassFromProxyName(proxyClass.getName());
+            Method method = data.getMethodToInvoke(proxyClass);
+            method.setAccessible(true);
+            MethodHandle target = wrapExceptions(MethodHandles.lookup().unreflect(method));
+            target = target.asType(target.type().generic());
+            if (data.isStatic()) {
+                target = target.asSpreader(Object[].class, target.type().parameterCount());
+                target = MethodHandles.dropArguments(target, 0, Object.class);
+            } else {
+                target = target.asSpreader(Object[].class, target.type().parameterCount() - 1);
+            }
+            target = target.asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+            return new ProxyInvoker(target, realClass, data.getMethod(proxyClass).getModifiers());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ProxyInvoker createConstructorInvoker(Class<?> proxyClass) {
+        try {
+            MethodData data = ClassDataStore.instance().getMethodInformation(proxyClass.getName());
+            Class<?> realClass = ClassDataStore.instance().getRealClassFromProxyName(proxyClass.getName());
+            Constructor<?> constructor = realClass.getConstructor(int.class, Object[].class, ConstructorArgument.class);
+            constructor.setAccessible(true);
+            MethodHandle target = MethodHandles.lookup().unreflectConstructor(constructor);
+            target = MethodHandles.insertArguments(target, 0, data.getMethodNo());
+            target = MethodHandles.insertArguments(target, 1, (Object) null);
+            target = wrapExceptions(target);
+            target = target.asType(MethodType.methodType(Object.class, Object[].class));
+            return new ProxyInvoker(target, realClass, data.getConstructor(proxyClass).getModifiers());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Wraps anything thrown by the target in a {@link TargetException}, so it can be told apart
+     * from failures caused by converting the arguments
+     */
+    private static MethodHandle wrapExceptions(MethodHandle target) {
+        MethodHandle handler = MethodHandles.dropArguments(WRAP_TARGET_EXCEPTION, 1, target.type().parameterList());
+        return MethodHandles.catchException(target, Throwable.class, handler.asType(handler.type().changeReturnType(target.type().returnType())));
+    }
+
+    private static Object wrapTargetException(Throwable t) {
+        throw new TargetException(t);
+    }
+
+    private static final class TargetException extends RuntimeException {
+        TargetException(Throwable cause) {
+            super(null, cause, false, false);
+        }
+    }
+}
@@ -42,11 +42,36 @@ public class FieldDataStore {
             return ret;
         } else {
             String type = FieldReferenceDataStore.instance().getFieldDescriptor(field);
-            if(type.length() == 1) {
+            return defaultValue(type);
+        }
+    }
+
+    /**
+     * returns the value an unset field of the given type has
+     */
+    public static Object defaultValue(String descriptor) {
+        if (descriptor == null || descriptor.length() != 1) {
+            return null;
+        }
+        switch (descriptor.charAt(0)) {
+            case 'Z':
+                return Boolean.FALSE;
+            case 'B':
+                return (byte) 0;
+            case 'C':
+                return (char) 0;
+            case 'S':
+                return (short) 0;
+            case 'I':
                 return 0;
-            } else {
+            case 'J':
+                return 0L;
+            case 'F':
+                return 0f;
+            case 'D':
+                return 0d;
+            default:
                 return null;
-            }
         }
     }
 
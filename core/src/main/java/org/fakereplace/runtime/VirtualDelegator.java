@@ -18,11 +18,12 @@
 package org.fakereplace.runtime;
 
 import java.lang.reflect.Method;
-import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
 
 import org.fakereplace.api.environment.CurrentEnvironment;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
 import org.fakereplace.core.Constants;
 
 public class VirtualDelegator {
@@ -34,18 +35,20 @@ public class VirtualDelegator {
      */
     private static final Set<VirtualDelegatorData> delegatingMethods = new CopyOnWriteArraySet<VirtualDelegatorData>();
 
+    static {
+        ClassLoaderTracker.addCleanupTask(() -> delegatingMethods.removeIf(d -> d.getLoader().isCollected()));
+    }
+
     public static void add(ClassLoader loader, String className, String methodName, String methodDesc) {
-        delegatingMethods.add(new VirtualDelegatorData(loader, className, methodName, methodDesc));
+        delegatingMethods.add(new VirtualDelegatorData(ClassLoaderTracker.reference(loader), className, methodName, methodDesc));
     }
 
     public static void clear(ClassLoader classLoader, String className) {
-        Iterator<VirtualDelegatorData> it = delegatingMethods.iterator();
-        while (it.hasNext()) {
-            VirtualDelegatorData i = it.next();
-            if (i.getLoader() == classLoader && className.equals(i.getClassName())) {
-                it.remove();
-            }
+        LoaderReference loader = ClassLoaderTracker.find(classLoader);
+        if (loader == null) {
+            return;
         }
+        delegatingMethods.removeIf(i -> i.getLoader() == loader && className.equals(i.getClassName()));
     }
 
     public static boolean contains(Object val, String callingClassName, String methodName, String methodDesc) {
@@ -57,8 +60,9 @@ public class VirtualDelegator {
             if (c.getName().equals(callingClassName)) {
                 return false;
             }
-            VirtualDelegatorData i = new VirtualDelegatorData(c.getClassLoader(), c.getName(), methodName, methodDesc);
-            if (delegatingMethods.contains(i)) {
+            //this is called for every rewritten virtual call, so loaders that are not tracked are skipped rather than tracked
+            LoaderReference loader = ClassLoaderTracker.find(c.getClassLoader());
+            if (loader != null && delegatingMethods.contains(new VirtualDelegatorData(loader, c.getName(), methodName, methodDesc))) {
                 return true;
             }
             c = c.getSuperclass();
@@ -76,12 +80,12 @@ public class VirtualDelegator {
     }
 
     private static class VirtualDelegatorData {
-        private final ClassLoader loader;
+        private final LoaderReference loader;
         private final String className;
         private final String methodName;
         private final String methodDesc;
 
-        public ClassLoader getLoader() {
+        public LoaderReference getLoader() {
             return loader;
         }
 
@@ -97,7 +101,7 @@ public class VirtualDelegator {
             return methodDesc;
         }
 
-        public VirtualDelegatorData(ClassLoader loader, String className, String methodName, String methodDesc) {
+        public VirtualDelegatorData(LoaderReference loader, String className, String methodName, String methodDesc) {
             super();
             this.loader = loader;
             this.className = className;
@@ -129,10 +133,7 @@ public class VirtualDelegator {
                     return false;
             } else if (!className.equals(other.className))
                 return false;
-            if (loader == null) {
-                if (other.loader != null)
-                    return false;
-            } else if (!loader.equals(other.loader))
+            if (loader != other.loader)
                 return false;
             if (methodDesc == null) {
                 if (other.methodDesc != null)
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.classloading.LoaderReference;
+import org.fakereplace.util.FingerprintTable;
+
+/**
+ * The content fingerprints of the classes and resources of a deployment, as last applied from a client.
+ * <p>
+ * Once a deployment has a fingerprint for an entry, the entry is only sent again if the content
+ * actually changes, no matter what its timestamp says. Entries without a fingerprint yet fall
+ * back to the timestamp check of the environment.
+ * <p>
+ * The fingerprints belong to the class loader of the deployment, when the deployment is redeployed with a new
+ * class loader, or its class loader is collected, they are all dropped.
+ * <p>
+ * The content of larger entries is also kept, up to a total of fakereplace.delta-cache-size bytes per
+ * deployment, so the client can send these as a {@link Delta} against it. The least recently used
+ * content is dropped first.
+ *
+ * @author Stuart Douglas
+ */
+final class DeploymentFingerprints {
+
+    private static final ConcurrentMap<String, DeploymentFingerprints> deployments = new ConcurrentHashMap<>();
+
+    private static final long MAX_CONTENT_SIZE = Long.getLong("fakereplace.delta-cache-size", 32 * 1024 * 1024);
+
+    static {
+        ClassLoaderTracker.addCleanupTask(() -> deployments.values().removeIf(DeploymentFingerprints::isUndeployed));
+    }
+
+    private final String deploymentName;
+
+    private final FingerprintTable classes = new FingerprintTable();
+    private final FingerprintTable resources = new FingerprintTable();
+
+    private final LinkedHashMap<String, byte[]> content = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long contentSize;
+
+    private volatile LoaderReference loader;
+
+    private DeploymentFingerprints(String deploymentName) {
+        this.deploymentName = deploymentName;
+    }
+
+    static DeploymentFingerprints forDeployment(String deploymentName) {
+        return deployments.computeIfAbsent(deploymentName, DeploymentFingerprints::new);
+    }
+
+    /**
+     * Returns the fingerprints to record the entries applied to the given class loader in. If the deployment has been
+     * redeployed since the last entries were recorded these are dropped, and new fingerprints are returned.
+     */
+    synchronized DeploymentFingerprints forLoader(ClassLoader classLoader) {
+        if (classLoader == null) {
+            return this;
+        }
+        final LoaderReference current = loader;
+        if (current == null) {
+            loader = ClassLoaderTracker.reference(classLoader);
+            return this;
+        } else if (current.get() == classLoader) {
+            return this;
+        }
+        final DeploymentFingerprints redeployed = new DeploymentFingerprints(deploymentName);
+        redeployed.loader = ClassLoaderTracker.reference(classLoader);
+        deployments.put(deploymentName, redeployed);
+        return redeployed;
+    }
+
+    private boolean isUndeployed() {
+        final LoaderReference current = loader;
+        return current != null && current.isCollected();
+    }
+
+    FingerprintTable getClasses() {
+        return classes;
+    }
+
+    FingerprintTable getResources() {
+        return resources;
+    }
+
+    /**
+     * @return the last content of a class or resource, or null if it is not known
+     */
+    synchronized byte[] getContent(String key) {
+        return content.get(key);
+    }
+
+    synchronized void putContent(String key, byte[] data) {
+        if (data.length > MAX_CONTENT_SIZE) {
+            return;
+        }
+        byte[] old = content.put(key, data);
+        contentSize += data.length - (old == null ? 0 : old.length);
+        Iterator<Map.Entry<String, byte[]>> it = content.entrySet().iterator();
+        while (contentSize > MAX_CONTENT_SIZE) {
+            contentSize -= it.next().getValue().length;
+            it.remove();
+        }
+    }
+
+    static String classKey(String className) {
+        return "class:" + className;
+    }
+
+    static String resourceKey(String resource) {
+        return "resource:" + resource;
+    }
+}
@@ -17,23 +17,43 @@
 
 package org.fakereplace.server;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.instrument.ClassDefinition;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.fakereplace.api.environment.ChangedClasses;
 import org.fakereplace.api.environment.CurrentEnvironment;
+import org.fakereplace.api.environment.Environment;
+import org.fakereplace.api.environment.ResourceUpdate;
 import org.fakereplace.core.Agent;
+import org.fakereplace.data.ClassFingerprints;
 import org.fakereplace.logging.Logger;
+import org.fakereplace.protocol.Delta;
+import org.fakereplace.protocol.Frames;
 import org.fakereplace.replacement.AddedClass;
+import org.fakereplace.util.FileReader;
+import org.fakereplace.util.FingerprintTable;
 
 /**
  * An implementation of the fakereplace client server protocol.
@@ -61,6 +81,34 @@ import org.fakereplace.replacement.AddedClass;
  * class name
  * class bytes length
  * class bytes
+ * <p>
+ * Version 2 of the protocol starts with the magic number 0xCAFEDEB0, followed by the version and the
+ * compression the client supports. The server replies with the same magic number, the version it will use and
+ * the compression it has chosen. The same messages are then sent as {@link Frames}:
+ * <p>
+ * Client - an INDEX frame with the archive name and the timestamp and content fingerprint of each class and resource
+ * <p>
+ * Server - an UPDATES frame with the names of the classes and resources that it wants. Entries the server has a
+ * fingerprint for are only wanted if the fingerprint has changed, see {@link DeploymentFingerprints}
+ * <p>
+ * If both sides support deltas, the server follows this with a SIGNATURES frame, that has the {@link Delta}
+ * signature of its current version of each of these entries that it has one for.
+ * <p>
+ * Client - a CLASS or RESOURCE frame for each of these, or a CLASS_DELTA or RESOURCE_DELTA frame against the
+ * signature the server sent, followed by an END frame. Large resources are sent as a series of RESOURCE_PART
+ * frames instead, which are streamed to a {@link ResourceUpdate} as they arrive rather than held in memory.
+ * <p>
+ * Server - a RESULT frame with the status. If the client asked for status reports in the handshake, this is
+ * preceded by STATUS frames as each class is transformed and redefined and each resource is replaced, with
+ * the time taken, see {@link ProgressReporter}
+ * <p>
+ * A version 2 connection is a session, the client can start another round with a new INDEX frame, and the
+ * session ends when the client closes the connection. A session that waits longer than
+ * fakereplace.session-idle-timeout milliseconds for the next round is closed by the server, and a client that
+ * stops answering within fakereplace.session-timeout milliseconds during a round is disconnected.
+ * <p>
+ * Several sessions can run at once. The update checks and the redefinitions all go through a single
+ * queue, so they happen one at a time in the order they were requested.
  *
  * @author Stuart Douglas
  */
@@ -68,42 +116,63 @@ public class FakereplaceProtocol {
 
     private static final Logger log = Logger.getLogger(FakereplaceProtocol.class);
 
+    private static final int SESSION_TIMEOUT = Integer.getInteger("fakereplace.session-timeout", 60 * 1000);
+
+    private static final int SESSION_IDLE_TIMEOUT = Integer.getInteger("fakereplace.session-idle-timeout", 5 * 60 * 1000);
+
+    private static final ExecutorService applyQueue = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Fakereplace Apply Thread");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public static void run(Socket socket) {
+        run(socket, null);
+    }
+
+    /**
+     * Runs a session, releasing the slot while it waits for the client to start the next round
+     */
+    static void run(Socket socket, SessionSlot slot) {
         DataOutputStream output = null;
         try {
             log.trace("Fakereplace update is running");
-            final DataInputStream input = new DataInputStream(socket.getInputStream());
-            output = new DataOutputStream(socket.getOutputStream());
-            final Map<String, Long> classes = new HashMap<String, Long>();
-            final Map<String, Long> resources = new HashMap<String, Long>();
+            socket.setSoTimeout(SESSION_TIMEOUT);
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
             int magic = input.readInt();
-            if (magic != 0xCAFEDEAF) {
+            if (magic == Frames.MAGIC) {
+                try {
+                    runFramed(socket, slot, input, output);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                return;
+            } else if (magic != 0xCAFEDEAF) {
                 System.err.println("Fakereplace server error, wrong magic number");
                 return;
             }
+            final Map<String, Long> classes = new HashMap<String, Long>();
+            final Map<String, Long> resources = new HashMap<String, Long>();
             final String archiveName = readString(input);
 
             readAvailable(input, classes);
             readAvailable(input, resources);
 
-
-
-            final ChangedClasses classesToReplace = CurrentEnvironment.getEnvironment().getUpdatedClasses(archiveName, classes);
+            final ChangedClasses classesToReplace = queue(() -> CurrentEnvironment.getEnvironment().getUpdatedClasses(archiveName, classes));
 
             log.info("Fakereplace is checking for updates classes. Client sent " + classes.size() + " classes, " + classesToReplace.getChanged().size() + " need to be replaced");
-            final Map<String, Class> classMap = new HashMap<String, Class>();
             output.writeInt(classesToReplace.getChanged().size() + classesToReplace.getNewClasses().size());
             for (Class clazz : classesToReplace.getChanged()) {
                 final String cname = clazz.getName();
                 output.writeInt(cname.length());
                 output.write(cname.getBytes());
-                classMap.put(cname, clazz);
             }
             for (String cname : classesToReplace.getNewClasses()) {
                 output.writeInt(cname.length());
                 output.write(cname.getBytes());
             }
-            final Set<String> resourcesToReplace = CurrentEnvironment.getEnvironment().getUpdatedResources(archiveName, resources);
+            final Set<String> resourcesToReplace = queue(() -> CurrentEnvironment.getEnvironment().getUpdatedResources(archiveName, resources));
             output.writeInt(resourcesToReplace.size());
             for (String cname : resourcesToReplace) {
                 output.writeInt(cname.length());
@@ -112,24 +181,13 @@ public class FakereplaceProtocol {
 
             output.flush();
 
-            final Set<ClassDefinition> classDefinitions = new HashSet<ClassDefinition>();
-            final Set<Class<?>> replacedClasses = new HashSet<Class<?>>();
-            final List<AddedClass> addedClassList = new ArrayList<AddedClass>();
+            final Map<String, byte[]> replacedClasses = new HashMap<String, byte[]>();
             int noClasses = input.readInt();
             for (int i = 0; i < noClasses; ++i) {
                 final String className = readString(input);
-                int length = input.readInt();
-                byte[] buffer = new byte[length];
-                for (int j = 0; j < length; ++j) {
-                    buffer[j] = (byte) input.read();
-                }
-                final Class theClass = classMap.get(className);
-                if (theClass != null) {
-                    classDefinitions.add(new ClassDefinition(theClass, buffer));
-                    replacedClasses.add(theClass);
-                } else {
-                    addedClassList.add(new AddedClass(className, buffer, classesToReplace.getClassLoader()));
-                }
+                byte[] buffer = new byte[input.readInt()];
+                input.readFully(buffer);
+                replacedClasses.put(className, buffer);
             }
 
             final Map<String, byte[]> replacedResources = new HashMap<String, byte[]>();
@@ -137,25 +195,26 @@ public class FakereplaceProtocol {
             int noResources = input.readInt();
             for (int i = 0; i < noResources; ++i) {
                 final String resourceName = readString(input);
-                int length = input.readInt();
-                byte[] buffer = new byte[length];
-                for (int j = 0; j < length; ++j) {
-                    buffer[j] = (byte) input.read();
-                }
+                byte[] buffer = new byte[input.readInt()];
+                input.readFully(buffer);
                 replacedResources.put(resourceName, buffer);
             }
 
-            Agent.redefine(classDefinitions.toArray( new ClassDefinition[classDefinitions.size()]), addedClassList.toArray(new AddedClass[addedClassList.size()]));
-            CurrentEnvironment.getEnvironment().updateResource(archiveName, replacedResources);
+            queue(() -> apply(archiveName, classesToReplace, replacedClasses, replacedResources, Collections.<String, ResourceUpdate>emptyMap(), null));
             output.writeInt(0);
+            output.flush();
         } catch (Exception e) {
             try {
                 output.writeInt(1);
+                output.flush();
             } catch (IOException e1) {
                 //ignore
             }
             e.printStackTrace();
         } finally {
+            if (slot != null) {
+                slot.release();
+            }
             try {
                 //write the result to
                 socket.close();
@@ -165,6 +224,432 @@ public class FakereplaceProtocol {
         }
     }
 
+    /**
+     * Runs version 2 of the protocol, once the magic number has been read
+     */
+    private static void runFramed(final Socket socket, final SessionSlot slot, final DataInputStream input, final DataOutputStream output) throws IOException {
+        final int version = input.readInt();
+        final int compression = input.readInt();
+        final boolean deflate = (compression & Frames.COMPRESSION_DEFLATE) != 0;
+        final boolean delta = (compression & Frames.DELTA) != 0;
+        final boolean statusReports = (compression & Frames.STATUS_REPORTS) != 0;
+        output.writeInt(Frames.MAGIC);
+        output.writeInt(Math.min(version, Frames.VERSION));
+        output.writeInt((deflate ? Frames.COMPRESSION_DEFLATE : 0) | (delta ? Frames.DELTA : 0) | (statusReports ? Frames.STATUS_REPORTS : 0));
+        output.flush();
+        try (Frames frames = new Frames(input, output)) {
+            frames.setDeflate(deflate);
+            while (true) {
+                final Frames.Frame index;
+                if (slot != null) {
+                    slot.release();
+                }
+                socket.setSoTimeout(SESSION_IDLE_TIMEOUT);
+                try {
+                    index = frames.read(Frames.INDEX);
+                } catch (EOFException e) {
+                    //the client has ended the session
+                    return;
+                } catch (SocketTimeoutException e) {
+                    log.info("Fakereplace is closing a session that has been idle for " + SESSION_IDLE_TIMEOUT + "ms");
+                    return;
+                }
+                socket.setSoTimeout(SESSION_TIMEOUT);
+                if (slot != null) {
+                    slot.acquire();
+                }
+                runRound(frames, index, delta, statusReports);
+            }
+        }
+    }
+
+    /**
+     * Runs a single round of updates in a version 2 session
+     */
+    private static void runRound(final Frames frames, final Frames.Frame index, final boolean delta, final boolean statusReports) throws IOException {
+        final String archiveName = index.readString();
+        final Map<String, IndexEntry> classes = readIndex(index);
+        final Map<String, IndexEntry> resources = readIndex(index);
+        final ClassLoader deploymentLoader = deploymentLoader(archiveName, classes.keySet());
+        final DeploymentFingerprints fingerprints = DeploymentFingerprints.forDeployment(archiveName).forLoader(deploymentLoader);
+
+        final ChangedClasses classesToReplace;
+        final Set<String> resourcesToReplace;
+        try {
+            classesToReplace = queue(() -> findChangedClasses(archiveName, classes, fingerprints));
+            resourcesToReplace = queue(() -> findChangedResources(archiveName, resources, fingerprints));
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+        log.info("Fakereplace is checking for updates classes. Client sent " + classes.size() + " classes, " + classesToReplace.getChanged().size() + " need to be replaced");
+
+        final Frames.Payload updates = new Frames.Payload();
+        updates.writeInt(classesToReplace.getChanged().size() + classesToReplace.getNewClasses().size());
+        for (Class<?> clazz : classesToReplace.getChanged()) {
+            updates.writeString(clazz.getName());
+        }
+        for (String cname : classesToReplace.getNewClasses()) {
+            updates.writeString(cname);
+        }
+        updates.writeInt(resourcesToReplace.size());
+        for (String resource : resourcesToReplace) {
+            updates.writeString(resource);
+        }
+        frames.write(Frames.UPDATES, updates);
+
+        //the versions the client can send deltas against
+        final Map<String, byte[]> classBases = new HashMap<String, byte[]>();
+        final Map<String, byte[]> resourceBases = new HashMap<String, byte[]>();
+        if (delta) {
+            writeSignatures(frames, classesToReplace, resourcesToReplace, fingerprints, classBases, resourceBases);
+        }
+
+        final Map<String, byte[]> replacedClasses = new HashMap<String, byte[]>();
+        final Map<String, byte[]> replacedResources = new HashMap<String, byte[]>();
+        final Map<String, ResourceUpdate> streamedResources = new HashMap<String, ResourceUpdate>();
+        try {
+            readEntries(frames, archiveName, classBases, resourceBases, replacedClasses, replacedResources, streamedResources);
+
+            int status = 0;
+            final ProgressReporter progress = statusReports ? new ProgressReporter() : null;
+            try {
+                final Future<Void> task = applyQueue.submit(() -> apply(archiveName, classesToReplace, replacedClasses, replacedResources, streamedResources, progress));
+                if (progress != null) {
+                    progress.writeUntilDone(frames, task);
+                }
+                get(task);
+            } catch (Exception e) {
+                e.printStackTrace();
+                status = 1;
+                if (progress != null) {
+                    Throwable cause = e;
+                    while (cause.getCause() != null && cause.getCause() != cause) {
+                        cause = cause.getCause();
+                    }
+                    progress.report(ProgressReporter.KIND_STAGE, "apply", ProgressReporter.FAILED, -1, cause.toString());
+                    progress.writeUntilDone(frames, CompletableFuture.completedFuture(null));
+                }
+            }
+            //only the entries that were applied are known to match the client, if the replacement failed
+            //nothing is recorded, so the entries that were sent are sent again next time
+            if (status == 0) {
+                final DeploymentFingerprints applied = deploymentLoader != null ? fingerprints : fingerprints.forLoader(classesToReplace.getClassLoader());
+                final Set<String> sentResources = new HashSet<String>(replacedResources.keySet());
+                sentResources.addAll(streamedResources.keySet());
+                recordFingerprints(classes, applied.getClasses(), replacedClasses.keySet());
+                recordFingerprints(resources, applied.getResources(), sentResources);
+                if (delta) {
+                    recordContent(replacedClasses, applied, true);
+                    recordContent(replacedResources, applied, false);
+                }
+            }
+            final Frames.Payload result = new Frames.Payload();
+            result.writeInt(status);
+            frames.write(Frames.RESULT, result);
+        } finally {
+            //discards anything that was not committed
+            for (ResourceUpdate update : streamedResources.values()) {
+                try {
+                    update.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the classes and resources the client sends, up to the END frame
+     */
+    private static void readEntries(final Frames frames, final String archiveName, final Map<String, byte[]> classBases, final Map<String, byte[]> resourceBases, final Map<String, byte[]> replacedClasses, final Map<String, byte[]> replacedResources, final Map<String, ResourceUpdate> streamedResources) throws IOException {
+        for (Frames.Frame frame = frames.read(); frame.getType() != Frames.END; frame = frames.read()) {
+            if (frame.getType() == Frames.CLASS) {
+                replacedClasses.put(frame.readString(), frame.readData());
+            } else if (frame.getType() == Frames.RESOURCE) {
+                replacedResources.put(frame.readString(), frame.readData());
+            } else if (frame.getType() == Frames.CLASS_DELTA) {
+                final String name = frame.readString();
+                replacedClasses.put(name, Delta.apply(getBase(classBases, name), frame));
+            } else if (frame.getType() == Frames.RESOURCE_DELTA) {
+                final String name = frame.readString();
+                replacedResources.put(name, Delta.apply(getBase(resourceBases, name), frame));
+            } else if (frame.getType() == Frames.RESOURCE_PART) {
+                final String name = frame.readString();
+                ResourceUpdate update = streamedResources.get(name);
+                if (update == null) {
+                    update = CurrentEnvironment.getEnvironment().startResourceUpdate(archiveName, name);
+                    streamedResources.put(name, update);
+                }
+                final byte[] chunk = frame.readData();
+                update.getOutputStream().write(chunk);
+            } else {
+                throw new IOException("Unexpected frame type " + frame.getType());
+            }
+        }
+    }
+
+    /**
+     * Writes the signatures of the current versions of the wanted entries. For classes that the deployment has not
+     * kept the content of, this is the class file that the class was loaded from.
+     */
+    private static void writeSignatures(final Frames frames, final ChangedClasses classesToReplace, final Set<String> resourcesToReplace, final DeploymentFingerprints fingerprints, final Map<String, byte[]> classBases, final Map<String, byte[]> resourceBases) throws IOException {
+        for (Class<?> clazz : classesToReplace.getChanged()) {
+            byte[] base = fingerprints.getContent(DeploymentFingerprints.classKey(clazz.getName()));
+            if (base == null) {
+                base = readClassFile(clazz);
+            }
+            if (base != null && base.length >= Delta.MIN_SIZE) {
+                classBases.put(clazz.getName(), base);
+            }
+        }
+        for (String resource : resourcesToReplace) {
+            final byte[] base = fingerprints.getContent(DeploymentFingerprints.resourceKey(resource));
+            if (base != null) {
+                resourceBases.put(resource, base);
+            }
+        }
+        final Frames.Payload signatures = new Frames.Payload();
+        writeSignatures(signatures, classBases);
+        writeSignatures(signatures, resourceBases);
+        frames.write(Frames.SIGNATURES, signatures);
+    }
+
+    private static void writeSignatures(final Frames.Payload payload, final Map<String, byte[]> bases) throws IOException {
+        payload.writeInt(bases.size());
+        for (Map.Entry<String, byte[]> entry : bases.entrySet()) {
+            payload.writeString(entry.getKey());
+            Delta.writeSignature(payload, entry.getValue());
+        }
+    }
+
+    private static byte[] readClassFile(final Class<?> clazz) {
+        final ClassLoader loader = clazz.getClassLoader();
+        if (loader == null) {
+            return null;
+        }
+        try (InputStream in = loader.getResourceAsStream(clazz.getName().replace('.', '/') + ".class")) {
+            return in == null ? null : FileReader.readFileBytes(in);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static byte[] getBase(final Map<String, byte[]> bases, final String name) throws IOException {
+        final byte[] base = bases.get(name);
+        if (base == null) {
+            throw new IOException("Delta sent for " + name + " which has no signature");
+        }
+        return base;
+    }
+
+    /**
+     * keeps the content of the larger entries that were sent, so the next change can be sent as a delta
+     */
+    private static void recordContent(final Map<String, byte[]> replaced, final DeploymentFingerprints fingerprints, final boolean classes) {
+        for (Map.Entry<String, byte[]> entry : replaced.entrySet()) {
+            if (entry.getValue().length >= Delta.MIN_SIZE && entry.getValue().length <= Delta.MAX_SIZE) {
+                fingerprints.putContent(classes ? DeploymentFingerprints.classKey(entry.getKey()) : DeploymentFingerprints.resourceKey(entry.getKey()), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Returns the class loader the deployment currently uses, so the fingerprints of an earlier deployment
+     * are not used after a redeploy. Returns null if the environment does not know it.
+     */
+    private static ClassLoader deploymentLoader(final String archiveName, final Set<String> classNames) {
+        final Environment environment = CurrentEnvironment.getEnvironment();
+        final ClassLoader loader = environment.getClassLoader(archiveName, null);
+        if (loader != null) {
+            return loader;
+        }
+        for (String className : classNames) {
+            final ClassLoader classLoader = environment.getClassLoader(archiveName, className);
+            if (classLoader != null) {
+                return classLoader;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the classes to replace. Classes that the deployment has a fingerprint for are only replaced if the
+     * fingerprint has changed. Classes that were loaded but never replaced are compared to the class file they were
+     * loaded from, the environment decides about the rest based on their timestamps.
+     */
+    private static ChangedClasses findChangedClasses(final String archiveName, final Map<String, IndexEntry> classes, final DeploymentFingerprints fingerprints) {
+        final Map<String, Long> unknown = new HashMap<String, Long>();
+        final Set<String> changed = new HashSet<String>();
+        partition(classes, fingerprints.getClasses(), unknown, changed);
+        seed(archiveName, classes, fingerprints.getClasses(), unknown, changed);
+        final ChangedClasses byTimestamp = unknown.isEmpty() ? ChangedClasses.EMPTY : CurrentEnvironment.getEnvironment().getUpdatedClasses(archiveName, unknown);
+        final ChangedClasses byContent = changed.isEmpty() ? ChangedClasses.EMPTY : CurrentEnvironment.getEnvironment().getClasses(archiveName, changed);
+        if (byContent == ChangedClasses.EMPTY) {
+            return byTimestamp;
+        } else if (byTimestamp == ChangedClasses.EMPTY) {
+            return byContent;
+        }
+        final Set<Class<?>> changedClasses = new HashSet<Class<?>>(byTimestamp.getChanged());
+        changedClasses.addAll(byContent.getChanged());
+        final Set<String> newClasses = new HashSet<String>(byTimestamp.getNewClasses());
+        newClasses.addAll(byContent.getNewClasses());
+        final ClassLoader loader = byContent.getClassLoader() != null ? byContent.getClassLoader() : byTimestamp.getClassLoader();
+        return new ChangedClasses(changedClasses, newClasses, loader);
+    }
+
+    private static Set<String> findChangedResources(final String archiveName, final Map<String, IndexEntry> resources, final DeploymentFingerprints fingerprints) {
+        final Map<String, Long> unknown = new HashMap<String, Long>();
+        final Set<String> changed = new HashSet<String>();
+        partition(resources, fingerprints.getResources(), unknown, changed);
+        final Set<String> result = new HashSet<String>();
+        if (!unknown.isEmpty()) {
+            result.addAll(CurrentEnvironment.getEnvironment().getUpdatedResources(archiveName, unknown));
+        }
+        if (!changed.isEmpty()) {
+            result.addAll(CurrentEnvironment.getEnvironment().getResources(archiveName, changed));
+        }
+        return result;
+    }
+
+    /**
+     * splits the index into the entries that have no fingerprint yet, and those whose fingerprint has changed
+     */
+    private static void partition(final Map<String, IndexEntry> index, final FingerprintTable fingerprints, final Map<String, Long> unknown, final Set<String> changed) {
+        for (Map.Entry<String, IndexEntry> entry : index.entrySet()) {
+            if (!fingerprints.contains(entry.getKey())) {
+                unknown.put(entry.getKey(), entry.getValue().timestamp);
+            } else if (fingerprints.get(entry.getKey(), 0) != entry.getValue().fingerprint) {
+                changed.add(entry.getKey());
+            }
+        }
+    }
+
+    /**
+     * Compares the classes that have no fingerprint in the deployment yet to the class file they were loaded from.
+     * Unchanged classes are added to the fingerprints of the deployment, so they are not checked again.
+     */
+    private static void seed(final String archiveName, final Map<String, IndexEntry> index, final FingerprintTable fingerprints, final Map<String, Long> unknown, final Set<String> changed) {
+        final Environment environment = CurrentEnvironment.getEnvironment();
+        final Iterator<String> it = unknown.keySet().iterator();
+        while (it.hasNext()) {
+            final String className = it.next();
+            final Long loaded = ClassFingerprints.get(className, environment.getClassLoader(archiveName, className));
+            if (loaded == null) {
+                continue;
+            }
+            it.remove();
+            final long fingerprint = index.get(className).fingerprint;
+            if (loaded == fingerprint) {
+                fingerprints.put(className, fingerprint);
+            } else {
+                changed.add(className);
+            }
+        }
+    }
+
+    /**
+     * records the fingerprints the client sent for the entries that were applied
+     */
+    private static void recordFingerprints(final Map<String, IndexEntry> index, final FingerprintTable fingerprints, final Set<String> applied) {
+        for (String name : applied) {
+            final IndexEntry entry = index.get(name);
+            if (entry != null) {
+                fingerprints.put(name, entry.fingerprint);
+            }
+        }
+    }
+
+    /**
+     * Runs a task on the apply queue and waits for the result
+     */
+    static <T> T queue(final Callable<T> task) throws Exception {
+        return get(applyQueue.submit(task));
+    }
+
+    /**
+     * waits for a task on the apply queue, and rethrows the exception it failed with
+     */
+    private static <T> T get(final Future<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * redefines the classes and replaces the resources that the client has sent
+     *
+     * @param progress told what happens to each class and resource, may be null
+     */
+    private static Void apply(final String archiveName, final ChangedClasses classesToReplace, final Map<String, byte[]> replacedClasses, final Map<String, byte[]> replacedResources, final Map<String, ResourceUpdate> streamedResources, final ProgressReporter progress) throws Exception {
+        final Map<String, Class<?>> classMap = new HashMap<String, Class<?>>();
+        for (Class<?> clazz : classesToReplace.getChanged()) {
+            classMap.put(clazz.getName(), clazz);
+        }
+        final List<ClassDefinition> classDefinitions = new ArrayList<ClassDefinition>();
+        final List<AddedClass> addedClassList = new ArrayList<AddedClass>();
+        for (Map.Entry<String, byte[]> entry : replacedClasses.entrySet()) {
+            final Class<?> theClass = classMap.get(entry.getKey());
+            if (theClass != null) {
+                classDefinitions.add(new ClassDefinition(theClass, entry.getValue()));
+            } else {
+                addedClassList.add(new AddedClass(entry.getKey(), entry.getValue(), classesToReplace.getClassLoader()));
+            }
+        }
+        Agent.redefine(classDefinitions.toArray(new ClassDefinition[classDefinitions.size()]), addedClassList.toArray(new AddedClass[addedClassList.size()]), true, progress);
+        if (progress != null) {
+            for (ClassDefinition definition : classDefinitions) {
+                progress.report(ProgressReporter.KIND_CLASS, definition.getDefinitionClass().getName(), ProgressReporter.REDEFINED, -1, null);
+            }
+            for (AddedClass added : addedClassList) {
+                progress.report(ProgressReporter.KIND_CLASS, added.getClassName(), ProgressReporter.ADDED, -1, null);
+            }
+        }
+        final long resourceStart = System.nanoTime();
+        CurrentEnvironment.getEnvironment().updateResource(archiveName, replacedResources);
+        if (progress != null) {
+            //these are replaced in a single call, so they are not timed on their own
+            for (String resource : replacedResources.keySet()) {
+                progress.report(ProgressReporter.KIND_RESOURCE, resource, ProgressReporter.REPLACED, -1, null);
+            }
+        }
+        for (Map.Entry<String, ResourceUpdate> entry : streamedResources.entrySet()) {
+            final long start = System.nanoTime();
+            entry.getValue().commit();
+            if (progress != null) {
+                progress.report(ProgressReporter.KIND_RESOURCE, entry.getKey(), ProgressReporter.REPLACED, System.nanoTime() - start, null);
+            }
+        }
+        if (progress != null) {
+            progress.report(ProgressReporter.KIND_STAGE, "resources", ProgressReporter.FINISHED, System.nanoTime() - resourceStart, null);
+        }
+        return null;
+    }
+
+    private static Map<String, IndexEntry> readIndex(final Frames.Frame frame) throws IOException {
+        final Map<String, IndexEntry> result = new HashMap<String, IndexEntry>();
+        int count = frame.readInt();
+        for (int i = 0; i < count; ++i) {
+            final String name = frame.readString();
+            result.put(name, new IndexEntry(frame.readLong(), frame.readLong()));
+        }
+        return result;
+    }
+
+    private static final class IndexEntry {
+        private final long timestamp;
+        private final long fingerprint;
+
+        private IndexEntry(long timestamp, long fingerprint) {
+            this.timestamp = timestamp;
+            this.fingerprint = fingerprint;
+        }
+    }
+
     private static void readAvailable(final DataInputStream input, final Map<String, Long> resources) throws IOException {
         int noResources = input.readInt();
         for (int i = 0; i < noResources; ++i) {
@@ -175,12 +660,8 @@ public class FakereplaceProtocol {
     }
 
     private static String readString(final DataInputStream input) throws IOException {
-        int toread = input.readInt();
-        byte[] buf = new byte[toread];
-        int read = 0;
-        while (toread > 0 && (read = input.read(buf, read, toread)) != -1) {
-            toread -= read;
-        }
+        byte[] buf = new byte[input.readInt()];
+        input.readFully(buf);
         return new String(buf);
     }
 
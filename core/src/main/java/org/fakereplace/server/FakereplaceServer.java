@@ -21,14 +21,35 @@ package org.fakereplace.server;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
+ * Accepts client connections and runs each of them on its own session thread, so a slow client
+ * does not hold up any others. The number of sessions that can be running an update at once is limited by the
+ * fakereplace.max-sessions system property, sessions that are waiting for their next update do not count, and are
+ * closed once they have been idle for longer than fakereplace.session-idle-timeout.
+ *
  * @author Stuart Douglas
  */
 public class FakereplaceServer implements Runnable {
 
+    private static final int MAX_SESSIONS = Integer.getInteger("fakereplace.max-sessions", 8);
+
     private final int port;
 
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    private final Semaphore activeSessions = new Semaphore(MAX_SESSIONS);
+
+    private final ExecutorService sessions = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Fakereplace Session " + sessionCount.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
     public FakereplaceServer(int port) {
         this.port = port;
     }
@@ -41,7 +62,13 @@ public class FakereplaceServer implements Runnable {
             while (true) {
                 try {
                     final Socket realSocket = socket.accept();
-                    FakereplaceProtocol.run(realSocket);
+                    final SessionSlot slot = new SessionSlot(activeSessions);
+                    if (slot.tryAcquire()) {
+                        sessions.execute(() -> FakereplaceProtocol.run(realSocket, slot));
+                    } else {
+                        System.err.println("Fakereplace server is already running " + MAX_SESSIONS + " sessions, connection rejected");
+                        realSocket.close();
+                    }
                 } catch (Throwable t) {
                     System.err.println("Fakereplace server error");
                     t.printStackTrace();
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.server;
+
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.fakereplace.core.RedefineListener;
+import org.fakereplace.protocol.Frames;
+
+/**
+ * Collects the progress of a round as STATUS frames, which are written to the client by the session thread
+ * while the apply thread does the work.
+ * <p>
+ * A status is the kind of entry, its name, its state, the time in nanoseconds or -1 if it was not measured
+ * on its own, and a message that is empty unless the state is failed. Stages have the same form, with the
+ * name of the stage.
+ *
+ * @author Stuart Douglas
+ */
+final class ProgressReporter implements RedefineListener {
+
+    static final int KIND_CLASS = 0;
+    static final int KIND_RESOURCE = 1;
+    static final int KIND_STAGE = 2;
+
+    static final int TRANSFORMED = 0;
+    static final int REDEFINED = 1;
+    static final int ADDED = 2;
+    static final int REPLACED = 3;
+    static final int FAILED = 4;
+    static final int FINISHED = 5;
+
+    private final BlockingQueue<Frames.Payload> pending = new LinkedBlockingQueue<Frames.Payload>();
+
+    void report(int kind, String name, int state, long nanos, String message) {
+        try {
+            final Frames.Payload payload = new Frames.Payload();
+            payload.writeByte(kind);
+            payload.writeString(name);
+            payload.writeByte(state);
+            payload.writeLong(nanos);
+            payload.writeString(message == null ? "" : message);
+            pending.add(payload);
+        } catch (IOException e) {
+            //cannot happen, the payload is in memory
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Writes the statuses to the client as they are reported, until the task has completed
+     */
+    void writeUntilDone(final Frames frames, final Future<?> task) throws IOException {
+        while (!task.isDone() || !pending.isEmpty()) {
+            final Frames.Payload payload;
+            try {
+                payload = pending.poll(50, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+            }
+            if (payload != null) {
+                frames.write(Frames.STATUS, payload);
+                //statuses are sent as soon as there are no more waiting
+                if (pending.isEmpty()) {
+                    frames.flush();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void classTransformed(String className, long nanos) {
+        report(KIND_CLASS, className, TRANSFORMED, nanos, null);
+    }
+
+    @Override
+    public void classFailed(String className, Throwable cause) {
+        report(KIND_CLASS, className, FAILED, -1, String.valueOf(cause));
+    }
+
+    @Override
+    public void classesRedefined(long nanos) {
+        report(KIND_STAGE, "redefine", FINISHED, nanos, null);
+    }
+
+    @Override
+    public void integrationFinished(long nanos) {
+        report(KIND_STAGE, "integration", FINISHED, nanos, null);
+    }
+}
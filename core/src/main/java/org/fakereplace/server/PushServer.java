@@ -0,0 +1,190 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.instrument.ClassDefinition;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.fakereplace.api.environment.ChangedClasses;
+import org.fakereplace.api.environment.CurrentEnvironment;
+import org.fakereplace.core.Agent;
+import org.fakereplace.logging.Logger;
+import org.fakereplace.replacement.AddedClass;
+import org.fakereplace.util.ClassNameReader;
+
+/**
+ * A local endpoint that class files can be pushed to by path, so an IDE or build hook can replace classes as
+ * soon as they are compiled, without packaging anything or sending the class bytes.
+ * <p>
+ * The protocol is line based UTF-8 text, so it can be driven with something as simple as netcat. Each line
+ * is the absolute path of a class file, and an empty line or the end of the input ends the batch. The
+ * agent reads the files, finds the loaded classes through the current environment and redefines the whole
+ * batch at once, then replies with a single line, either {@code OK <redefined> <added> <ignored>} or
+ * {@code ERROR <message>}. A line of the form {@code @<name>} sets the deployment that the following batches
+ * belong to, which is only needed for environments that have more than one deployment.
+ * <p>
+ * The endpoint is only bound to the loopback address, and only reads files that end in {@code .class}, as
+ * it will otherwise read any file the JVM can read. It is not authenticated, so any process on the host
+ * can redefine classes through it.
+ *
+ * @author Stuart Douglas
+ */
+public class PushServer implements Runnable {
+
+    private static final Logger log = Logger.getLogger(PushServer.class);
+
+    private final int port;
+
+    public PushServer(int port) {
+        this.port = port;
+    }
+
+    @Override
+    public void run() {
+        try {
+            final ServerSocket socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+            System.out.println("Fakereplace push listening on port " + port);
+            while (true) {
+                try {
+                    final Socket realSocket = socket.accept();
+                    final Thread thread = new Thread(() -> handle(realSocket), "Fakereplace Push Session");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (Throwable t) {
+                    System.err.println("Fakereplace push server error");
+                    t.printStackTrace();
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Fakereplace push server could not start");
+            e.printStackTrace();
+        }
+    }
+
+    private static void handle(final Socket socket) {
+        try (Socket s = socket) {
+            final BufferedReader input = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            final Writer output = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            String deploymentName = "";
+            final List<Path> batch = new ArrayList<>();
+            String line;
+            do {
+                line = input.readLine();
+                if (line != null && line.startsWith("@")) {
+                    deploymentName = line.substring(1);
+                } else if (line != null && !line.isEmpty()) {
+                    batch.add(Paths.get(line));
+                } else if (!batch.isEmpty()) {
+                    output.write(push(deploymentName, batch));
+                    output.write('\n');
+                    output.flush();
+                    batch.clear();
+                }
+            } while (line != null);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * reads and redefines a batch of class files
+     *
+     * @return the reply line
+     */
+    private static String push(final String deploymentName, final List<Path> paths) {
+        final Map<String, byte[]> classes = new HashMap<>();
+        for (Path path : paths) {
+            if (!path.isAbsolute()) {
+                return "ERROR " + path + " is not an absolute path";
+            }
+            if (path.getFileName() == null || !path.getFileName().toString().endsWith(".class")) {
+                return "ERROR " + path + " is not a class file";
+            }
+            final byte[] bytes;
+            try {
+                bytes = read(path);
+            } catch (IOException e) {
+                return "ERROR could not read " + path + ": " + e;
+            }
+            final String className = ClassNameReader.readClassName(bytes, bytes.length);
+            if (className == null) {
+                return "ERROR " + path + " is not a class file";
+            }
+            classes.put(className, bytes);
+        }
+        try {
+            return FakereplaceProtocol.queue(() -> redefine(deploymentName, classes));
+        } catch (Exception e) {
+            log.error("Could not replace pushed classes", e);
+            return "ERROR " + e;
+        }
+    }
+
+    private static String redefine(final String deploymentName, final Map<String, byte[]> classes) throws Exception {
+        final ChangedClasses found = CurrentEnvironment.getEnvironment().getClasses(deploymentName, classes.keySet());
+        final List<ClassDefinition> definitions = new ArrayList<>();
+        final List<AddedClass> added = new ArrayList<>();
+        for (Class<?> clazz : found.getChanged()) {
+            definitions.add(new ClassDefinition(clazz, classes.get(clazz.getName())));
+        }
+        if (found.getClassLoader() != null) {
+            for (String className : found.getNewClasses()) {
+                added.add(new AddedClass(className, classes.get(className), found.getClassLoader()));
+            }
+        }
+        if (!definitions.isEmpty() || !added.isEmpty()) {
+            log.info("Fakereplace is replacing " + definitions.size() + " pushed classes and adding " + added.size());
+            Agent.redefine(definitions.toArray(new ClassDefinition[definitions.size()]), added.toArray(new AddedClass[added.size()]));
+        }
+        return "OK " + definitions.size() + " " + added.size() + " " + (classes.size() - definitions.size() - added.size());
+    }
+
+    /**
+     * reads a class file through a read only mapping, which avoids copying it through an intermediate buffer
+     */
+    private static byte[] read(final Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            final long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File is too large");
+            }
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            final byte[] bytes = new byte[(int) size];
+            buffer.get(bytes);
+            return bytes;
+        }
+    }
+}
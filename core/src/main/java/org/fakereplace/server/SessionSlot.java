@@ -0,0 +1,65 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.server;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * The place a session holds among the fakereplace.max-sessions sessions that can run at once. A session only
+ * holds it while it is doing something, so idle sessions do not keep other clients out.
+ *
+ * @author Stuart Douglas
+ */
+final class SessionSlot {
+
+    private final Semaphore slots;
+
+    private boolean held;
+
+    SessionSlot(Semaphore slots) {
+        this.slots = slots;
+    }
+
+    boolean tryAcquire() {
+        if (!held) {
+            held = slots.tryAcquire();
+        }
+        return held;
+    }
+
+    void acquire() throws IOException {
+        if (held) {
+            return;
+        }
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        held = true;
+    }
+
+    void release() {
+        if (held) {
+            held = false;
+            slots.release();
+        }
+    }
+}
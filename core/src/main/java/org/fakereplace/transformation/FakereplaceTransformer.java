@@ -37,4 +37,25 @@ public interface FakereplaceTransformer {
      */
     boolean transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final ClassFile file, Set<Class<?>> classesToRetransform, ChangedClassImpl changedClass, Set<MethodInfo> modifiedMethods) throws IllegalClassFormatException, BadBytecode, DuplicateMemberException;
 
+    /**
+     * The names of the classes this transformer needs to see, in java format. This is only used
+     * for integration transformers returned from {@link org.fakereplace.api.Extension#getTransformers()},
+     * which will then not be invoked for any other classes.
+     * <p>
+     * If both this and {@link #getTransformedClassPrefixes()} return null the transformer is
+     * invoked for every class.
+     */
+    default Set<String> getTransformedClassNames() {
+        return null;
+    }
+
+    /**
+     * Package or class name prefixes of the classes this transformer needs to see, in java format.
+     *
+     * @see #getTransformedClassNames()
+     */
+    default Set<String> getTransformedClassPrefixes() {
+        return null;
+    }
+
 }
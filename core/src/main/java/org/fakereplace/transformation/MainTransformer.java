@@ -53,7 +53,10 @@ import org.fakereplace.core.AgentOption;
 import org.fakereplace.core.AgentOptions;
 import org.fakereplace.core.ClassChangeNotifier;
 import org.fakereplace.core.DefaultEnvironment;
+import org.fakereplace.core.RedefineListener;
+import org.fakereplace.data.ClassDataStore;
 import org.fakereplace.logging.Logger;
+import org.fakereplace.manip.util.ManipulationDataStore;
 import org.fakereplace.replacement.notification.ChangedClassImpl;
 import org.fakereplace.util.DescriptorUtils;
 import javassist.ClassPool;
@@ -80,6 +83,21 @@ public class MainTransformer implements ClassFileTransformer {
 
     private final Set<String> loadedClassChangeAwares = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
 
+    /**
+     * classes that are being retransformed because they reference a class that has new rewrites
+     */
+    private final Set<Class<?>> retransformingReferrers = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+
+    /**
+     * the unmodified bytes of the class that is being transformed by the current thread
+     */
+    private static final ThreadLocal<byte[]> classfileBuffers = new ThreadLocal<>();
+
+    /**
+     * the listener for the redefinition that the current thread is performing
+     */
+    private final ThreadLocal<RedefineListener> redefineListeners = new ThreadLocal<>();
+
     private static final Set<ClassLoader> integrationClassloader = Collections.newSetFromMap(new MapMaker().weakKeys().<ClassLoader, Boolean>makeMap());
 
     private final List<ChangedClass> changedClasses = new CopyOnWriteArrayList<>();
@@ -109,7 +127,26 @@ public class MainTransformer implements ClassFileTransformer {
     }
 
     @Override
-    public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+    public byte[] transform(final ClassLoader loader, final String className, final Class<?> redefinedClass, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+        final RedefineListener listener = redefinedClass == null || className == null ? null : redefineListeners.get();
+        if (listener == null) {
+            return transformClass(loader, className, redefinedClass, protectionDomain, classfileBuffer);
+        }
+        final long start = System.nanoTime();
+        try {
+            final byte[] result = transformClass(loader, className, redefinedClass, protectionDomain, classfileBuffer);
+            listener.classTransformed(className.replace('/', '.'), System.nanoTime() - start);
+            return result;
+        } catch (IllegalClassFormatException | RuntimeException e) {
+            listener.classFailed(className.replace('/', '.'), e);
+            throw e;
+        }
+    }
+
+    private byte[] transformClass(final ClassLoader loader, final String className, final Class<?> redefinedClass, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) throws IllegalClassFormatException {
+        // referrers that are retransformed to pick up new rewrites have not actually changed,
+        // so they are transformed as if they were being loaded
+        final Class<?> classBeingRedefined = redefinedClass != null && retransformingReferrers.contains(redefinedClass) ? null : redefinedClass;
         if (className == null) {
             //TODO: deal with lambdas
             return classfileBuffer;
@@ -164,10 +201,18 @@ public class MainTransformer implements ClassFileTransformer {
         try {
             Set<MethodInfo> modifiedMethods = new HashSet<>();
             file = new ClassFile(new DataInputStream(new ByteArrayInputStream(classfileBuffer)));
-            for (final FakereplaceTransformer transformer : transformers) {
-                if (transformer.transform(loader, className, classBeingRedefined, protectionDomain, file, classesToRetransform, changedClass, modifiedMethods)) {
-                    changed = true;
+            ReferenceIndex.recordReferences(loader, file);
+            final int modificationCount = ManipulationDataStore.getModificationCount();
+            final byte[] previousBuffer = classfileBuffers.get();
+            classfileBuffers.set(classfileBuffer);
+            try {
+                for (final FakereplaceTransformer transformer : transformers) {
+                    if (transformer.transform(loader, className, classBeingRedefined, protectionDomain, file, classesToRetransform, changedClass, modifiedMethods)) {
+                        changed = true;
+                    }
                 }
+            } finally {
+                classfileBuffers.set(previousBuffer);
             }
             if (!changed) {
                 UnmodifiedFileIndex.markClassUnmodified(className);
@@ -178,35 +223,7 @@ public class MainTransformer implements ClassFileTransformer {
                         ClassPool classPool = new ClassPool();
                         classPool.appendClassPath(new LoaderClassPath(loader));
                         classPool.appendSystemPath();
-                        for (MethodInfo method : modifiedMethods) {
-                            if (method.getCodeAttribute() != null) {
-                                method.getCodeAttribute().computeMaxStack();
-                                try {
-                                    method.rebuildStackMap(classPool);
-                                } catch (BadBytecode e) {
-                                    Throwable root = e;
-                                    while (!(root instanceof NotFoundException) && root != null && root.getCause() != root) {
-                                        root = root.getCause();
-                                    }
-
-                                    if (root instanceof NotFoundException) {
-                                        NotFoundException cause = (NotFoundException) root;
-                                        Bytecode bytecode = new Bytecode(file.getConstPool());
-                                        bytecode.addNew(NoClassDefFoundError.class.getName());
-                                        bytecode.add(Opcode.DUP);
-                                        bytecode.addLdc(cause.getMessage());
-                                        bytecode.addInvokespecial(NoClassDefFoundError.class.getName(), "<init>", "(Ljava/lang/String;)V");
-                                        bytecode.add(Opcode.ATHROW);
-                                        method.setCodeAttribute(bytecode.toCodeAttribute());
-                                        method.getCodeAttribute().computeMaxStack();
-                                        method.getCodeAttribute().setMaxLocals(DescriptorUtils.maxLocalsFromParameters(method.getDescriptor()) + 1);
-                                        method.rebuildStackMap(classPool);
-                                    } else {
-                                        throw e;
-                                    }
-                                }
-                            }
-                        }
+                        rebuildStackMaps(file, modifiedMethods, classPool, true);
                     }
                 } catch (BadBytecode e) {
                     throw new RuntimeException(e);
@@ -228,16 +245,34 @@ public class MainTransformer implements ClassFileTransformer {
                     }
                 }
 
-                if (!classesToRetransform.isEmpty()) {
+                // if the class was redefined and this added new rewrites then the classes that
+                // reference it need to be retransformed for the rewrites to take effect
+                final String referencedClass = classBeingRedefined != null && ManipulationDataStore.getModificationCount() != modificationCount ? file.getName() : null;
+                if (!classesToRetransform.isEmpty() || referencedClass != null) {
                     synchronized (this) {
                         retransformationOutstandingCount++;
                     }
+                    final Set<Class<?>> referrers = new HashSet<>();
                     Thread t = new Thread(() -> {
                         try {
-                            Agent.getInstrumentation().retransformClasses(classesToRetransform.toArray(new Class[classesToRetransform.size()]));
+                            if (referencedClass != null) {
+                                // classes that have been replaced are left alone, as retransforming them
+                                // would replace them again
+                                for (Class<?> referrer : ReferenceIndex.getLoadedReferrers(referencedClass)) {
+                                    if (referrer != classBeingRedefined && Agent.getInstrumentation().isModifiableClass(referrer) && !ClassDataStore.instance().isClassReplaced(referrer)) {
+                                        referrers.add(referrer);
+                                    }
+                                }
+                                retransformingReferrers.addAll(referrers);
+                                classesToRetransform.addAll(referrers);
+                            }
+                            if (!classesToRetransform.isEmpty()) {
+                                Agent.getInstrumentation().retransformClasses(classesToRetransform.toArray(new Class[classesToRetransform.size()]));
+                            }
                         } catch (UnmodifiableClassException e) {
                             log.error("Failed to retransform classes", e);
                         } finally {
+                            retransformingReferrers.removeAll(referrers);
                             synchronized (MainTransformer.this) {
                                 retransformationOutstandingCount--;
                                 notifyAll();
@@ -262,6 +297,44 @@ public class MainTransformer implements ClassFileTransformer {
         }
     }
 
+    /**
+     * Recomputes the max stack and stack map of methods that have been modified.
+     *
+     * @param replaceUnresolvable if true a method that references a class that cannot be found is replaced by one
+     *                            that throws NoClassDefFoundError, otherwise the failure is thrown
+     */
+    public static void rebuildStackMaps(ClassFile file, Set<MethodInfo> modifiedMethods, ClassPool classPool, boolean replaceUnresolvable) throws BadBytecode {
+        for (MethodInfo method : modifiedMethods) {
+            if (method.getCodeAttribute() != null) {
+                method.getCodeAttribute().computeMaxStack();
+                try {
+                    method.rebuildStackMap(classPool);
+                } catch (BadBytecode e) {
+                    Throwable root = e;
+                    while (!(root instanceof NotFoundException) && root != null && root.getCause() != root) {
+                        root = root.getCause();
+                    }
+
+                    if (replaceUnresolvable && root instanceof NotFoundException) {
+                        NotFoundException cause = (NotFoundException) root;
+                        Bytecode bytecode = new Bytecode(file.getConstPool());
+                        bytecode.addNew(NoClassDefFoundError.class.getName());
+                        bytecode.add(Opcode.DUP);
+                        bytecode.addLdc(cause.getMessage());
+                        bytecode.addInvokespecial(NoClassDefFoundError.class.getName(), "<init>", "(Ljava/lang/String;)V");
+                        bytecode.add(Opcode.ATHROW);
+                        method.setCodeAttribute(bytecode.toCodeAttribute());
+                        method.getCodeAttribute().computeMaxStack();
+                        method.getCodeAttribute().setMaxLocals(DescriptorUtils.maxLocalsFromParameters(method.getDescriptor()) + 1);
+                        method.rebuildStackMap(classPool);
+                    } else {
+                        throw e;
+                    }
+                }
+            }
+        }
+    }
+
     private void queueIntegration() {
         //retransformed classes should trigger this as well
         synchronized (this) {
@@ -273,6 +346,17 @@ public class MainTransformer implements ClassFileTransformer {
         }
     }
 
+    /**
+     * Sets the listener for the redefinition that the current thread is about to perform, or clears it if null
+     */
+    public void setRedefineListener(RedefineListener listener) {
+        if (listener == null) {
+            redefineListeners.remove();
+        } else {
+            redefineListeners.set(listener);
+        }
+    }
+
     public synchronized void addTransformer(FakereplaceTransformer transformer) {
         final FakereplaceTransformer[] transformers = new FakereplaceTransformer[this.transformers.length + 1];
         for (int i = 0; i < this.transformers.length; ++i) {
@@ -295,6 +379,17 @@ public class MainTransformer implements ClassFileTransformer {
     }
 
 
+    /**
+     * Returns the bytes of the class that is currently being transformed by this thread, as
+     * they were passed to the transformer. This allows transformers to fingerprint the class
+     * without reading it again.
+     *
+     * @return the class bytes, or null if no class is being transformed
+     */
+    public static byte[] getClassfileBuffer() {
+        return classfileBuffers.get();
+    }
+
     public static byte[] getIntegrationClass(ClassLoader c, String name) {
         if (!integrationClassloader.contains(c)) {
             return null;
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.transformation;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.ConstPool;
+import org.fakereplace.classloading.ClassIdentifier;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.core.Constants;
+
+/**
+ * Index of the classes that reference the fields and methods of a given class, built from the constant
+ * pool of every class as it is loaded. Recording only looks at the names in the constant pool, whether the
+ * referenced classes are replaceable is not checked until their referrers are needed, which is only when
+ * they are redefined.
+ * <p>
+ * Rewrites that are registered when a class is redefined only take effect when a class is
+ * transformed, so this is used to find the already loaded classes that need to be
+ * retransformed.
+ *
+ * @author Stuart Douglas
+ */
+public class ReferenceIndex {
+
+    private static final Map<String, Set<ClassIdentifier>> referrers = new ConcurrentHashMap<>();
+
+    /**
+     * Tracking a new class loader can cause classes to be loaded, these are not recorded
+     */
+    private static final ThreadLocal<Boolean> recording = new ThreadLocal<>();
+
+    static {
+        ClassLoaderTracker.addCleanupTask(() -> {
+            Iterator<Set<ClassIdentifier>> it = referrers.values().iterator();
+            while (it.hasNext()) {
+                Set<ClassIdentifier> set = it.next();
+                set.removeIf(ClassIdentifier::isCollected);
+                if (set.isEmpty()) {
+                    it.remove();
+                }
+            }
+        });
+    }
+
+    private ReferenceIndex() {
+
+    }
+
+    /**
+     * Records the classes whose fields and methods are referenced by the given class
+     */
+    public static void recordReferences(ClassLoader loader, ClassFile file) {
+        //classes loaded by the bootstrap loader cannot see replaceable classes
+        if (loader == null || recording.get() != null) {
+            return;
+        }
+        final String className = file.getName();
+        final ConstPool pool = file.getConstPool();
+        Set<String> referenced = null;
+        for (int i = 1; i < pool.getSize(); ++i) {
+            final String owner;
+            switch (pool.getTag(i)) {
+                case ConstPool.CONST_Fieldref:
+                    owner = pool.getFieldrefClassName(i);
+                    break;
+                case ConstPool.CONST_Methodref:
+                    owner = pool.getMethodrefClassName(i);
+                    break;
+                case ConstPool.CONST_InterfaceMethodref:
+                    owner = pool.getInterfaceMethodrefClassName(i);
+                    break;
+                default:
+                    continue;
+            }
+            if (owner == null || owner.equals(className) || owner.startsWith("java.") || owner.startsWith(Constants.GENERATED_CLASS_PACKAGE)) {
+                continue;
+            }
+            if (referenced == null) {
+                referenced = new HashSet<>();
+            }
+            referenced.add(owner);
+        }
+        if (referenced == null) {
+            return;
+        }
+        recording.set(Boolean.TRUE);
+        try {
+            final ClassIdentifier referrer = new ClassIdentifier(className, loader);
+            for (String owner : referenced) {
+                referrers.computeIfAbsent(owner, k -> ConcurrentHashMap.newKeySet()).add(referrer);
+            }
+        } finally {
+            recording.remove();
+        }
+    }
+
+    /**
+     * @return the classes that reference the fields and methods of the given class
+     */
+    public static Set<ClassIdentifier> getReferrers(String className) {
+        final Set<ClassIdentifier> result = referrers.get(className);
+        if (result == null) {
+            return Collections.emptySet();
+        }
+        return result;
+    }
+
+    /**
+     * Resolves the referrers of a class to the loaded classes. Classes that are not loaded or have
+     * been collected are ignored. This is only called for a class that is being redefined, which
+     * makes it replaceable.
+     */
+    public static Set<Class<?>> getLoadedReferrers(String className) {
+        final Set<Class<?>> result = new HashSet<>();
+        for (ClassIdentifier identifier : getReferrers(className)) {
+            final ClassLoader loader = identifier.getLoader();
+            if (loader == null) {
+                continue;
+            }
+            try {
+                final Class<?> clazz = Class.forName(identifier.getClassName(), false, loader);
+                if (clazz.getClassLoader() == loader) {
+                    result.add(clazz);
+                }
+            } catch (ClassNotFoundException | LinkageError e) {
+                //the class failed to load, so there is nothing to retransform
+            }
+        }
+        return result;
+    }
+}
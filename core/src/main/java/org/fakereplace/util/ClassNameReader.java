@@ -0,0 +1,117 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * Reads the name of a class directly from its class file bytes. Only the constant pool is
+ * walked, which is much cheaper than parsing the whole class with javassist when all that
+ * is needed is the name.
+ *
+ * @author Stuart Douglas
+ */
+public final class ClassNameReader {
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private ClassNameReader() {
+
+    }
+
+    /**
+     * @return the dotted name of the class, or null if the bytes are not a valid class file
+     */
+    public static String readClassName(byte[] bytes, int length) {
+        try {
+            if (length < 10 || readInt(bytes, 0) != MAGIC) {
+                return null;
+            }
+            final int count = readShort(bytes, 8);
+            //offsets of the entries in the constant pool, indexed by constant pool index
+            final int[] offsets = new int[count];
+            int pos = 10;
+            for (int i = 1; i < count; ++i) {
+                if (pos >= length) {
+                    return null;
+                }
+                offsets[i] = pos;
+                final int tag = bytes[pos];
+                switch (tag) {
+                    case 1: //Utf8
+                        pos += 3 + readShort(bytes, pos + 1);
+                        break;
+                    case 7: //Class
+                    case 8: //String
+                    case 16: //MethodType
+                    case 19: //Module
+                    case 20: //Package
+                        pos += 3;
+                        break;
+                    case 15: //MethodHandle
+                        pos += 4;
+                        break;
+                    case 3: //Integer
+                    case 4: //Float
+                    case 9: //Fieldref
+                    case 10: //Methodref
+                    case 11: //InterfaceMethodref
+                    case 12: //NameAndType
+                    case 17: //Dynamic
+                    case 18: //InvokeDynamic
+                        pos += 5;
+                        break;
+                    case 5: //Long
+                    case 6: //Double
+                        pos += 9;
+                        //these take up two entries
+                        ++i;
+                        break;
+                    default:
+                        return null;
+                }
+            }
+            if (pos + 4 > length) {
+                return null;
+            }
+            //skip the access flags
+            final int thisClass = readShort(bytes, pos + 2);
+            if (thisClass <= 0 || thisClass >= count || bytes[offsets[thisClass]] != 7) {
+                return null;
+            }
+            final int nameOffset = offsets[readShort(bytes, offsets[thisClass] + 1)];
+            if (bytes[nameOffset] != 1) {
+                return null;
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, nameOffset + 1, length - nameOffset - 1));
+            return in.readUTF().replace('/', '.');
+        } catch (ArrayIndexOutOfBoundsException | IOException e) {
+            return null;
+        }
+    }
+
+    private static int readShort(byte[] bytes, int pos) {
+        return ((bytes[pos] & 0xFF) << 8) | (bytes[pos + 1] & 0xFF);
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return (readShort(bytes, pos) << 16) | readShort(bytes, pos + 2);
+    }
+}
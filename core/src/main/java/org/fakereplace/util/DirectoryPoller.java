@@ -0,0 +1,340 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.util;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Detects changes in directory trees that do not have a native watch, by comparing
+ * the file system against a snapshot of modification times.
+ * <p>
+ * The snapshot of each directory is just the sorted entry names plus the modification time
+ * and length of each entry. A directory is only listed again if its own modification time has
+ * changed, and the files in a directory are only checked if it is not natively watched,
+ * so a pass over a tree where nothing has changed mostly consists of a stat per directory.
+ * <p>
+ * Passes are incremental, each call to {@link #poll(EventSink)} examines at most a fixed number of
+ * entries and the next call carries on from where it stopped.
+ * <p>
+ * A root may also be a single file, such as an archive, in which case just its modification time
+ * and length are checked.
+ * <p>
+ * This class is not thread safe, apart from {@link #removeRoot(File)} it must only be used by the watch thread.
+ *
+ * @author Stuart Douglas
+ */
+final class DirectoryPoller<T> {
+
+    private static final long DIRECTORY = -1;
+
+    /**
+     * directories modified this recently are listed again on the next pass, as a change made in the
+     * same clock tick as the listing would not change the modification time
+     */
+    private static final long RECENT_MODIFICATION = 2000;
+
+    private final int budget;
+    private final Predicate<File> nativelyWatched;
+
+    private final Map<File, T> roots = new LinkedHashMap<>();
+    private final Map<File, DirectorySnapshot> snapshots = new HashMap<>();
+    /**
+     * modification time and length of roots that are files rather than directories
+     */
+    private final Map<File, long[]> fileSnapshots = new HashMap<>();
+    private final Deque<PendingDirectory<T>> pending = new ArrayDeque<>();
+    /**
+     * roots that have been visited at least once. This is tracked separately from the snapshots, as the snapshots
+     * of a root are dropped when it is deleted, and when it comes back everything in it has to be reported.
+     */
+    private final Set<File> seenRoots = new HashSet<>();
+
+    /**
+     * @param budget          the maximum number of entries examined by a single call to {@link #poll(EventSink)}
+     * @param nativelyWatched returns true for directories whose files are reported by a native watch
+     */
+    DirectoryPoller(int budget, Predicate<File> nativelyWatched) {
+        this.budget = budget;
+        this.nativelyWatched = nativelyWatched;
+    }
+
+    synchronized void addRoot(File root, T owner) {
+        roots.put(root, owner);
+    }
+
+    synchronized void removeRoot(File root) {
+        roots.remove(root);
+        seenRoots.remove(root);
+    }
+
+    /**
+     * Carries on the current pass over the watched trees, starting a new pass if the last one is complete.
+     *
+     * @return true if any changes were reported
+     */
+    boolean poll(EventSink<T> sink) {
+        if (pending.isEmpty()) {
+            startPass();
+        }
+        boolean changed = false;
+        int remaining = budget;
+        while (remaining > 0 && !pending.isEmpty()) {
+            PendingDirectory<T> next = pending.poll();
+            if (!isRooted(next.root)) {
+                removeSnapshots(next.dir);
+                fileSnapshots.remove(next.dir);
+                continue;
+            }
+            --remaining;
+            if (next.dir == next.root) {
+                markSeen(next.root);
+                if (!next.dir.isDirectory()) {
+                    if (snapshots.containsKey(next.dir)) {
+                        //a directory root that has been deleted, everything in it is reported when it comes back
+                        removeSnapshots(next.dir);
+                    } else {
+                        changed |= pollFile(next, sink);
+                    }
+                    continue;
+                }
+            }
+            DirectorySnapshot snapshot = snapshots.get(next.dir);
+            long modified = next.dir.lastModified();
+            if (modified == 0) {
+                //the directory has gone, the parent listing reports it
+                removeSnapshots(next.dir);
+                continue;
+            }
+            if (snapshot == null) {
+                snapshot = list(next.dir, modified);
+                snapshots.put(next.dir, snapshot);
+                for (int i = 0; i < snapshot.names.length; ++i) {
+                    File file = new File(next.dir, snapshot.names[i]);
+                    if (snapshot.modified[i] == DIRECTORY) {
+                        pending.push(new PendingDirectory<>(file, next.root, next.owner, next.report));
+                    } else if (next.report) {
+                        sink.event(next.owner, file, WatchServiceFileSystemWatcher.FileChangeEvent.Type.ADDED);
+                        changed = true;
+                    }
+                }
+                remaining -= snapshot.names.length;
+                continue;
+            }
+            if (modified != snapshot.directoryModified || snapshot.recent) {
+                //entries have been added or removed
+                DirectorySnapshot current = list(next.dir, modified);
+                remaining -= current.names.length;
+                changed |= compareEntries(next, snapshot, current, sink);
+                snapshots.put(next.dir, current);
+                snapshot = current;
+            } else if (!nativelyWatched.test(next.dir)) {
+                remaining -= snapshot.names.length;
+                changed |= compareFiles(next, snapshot, sink);
+            }
+            for (int i = 0; i < snapshot.names.length; ++i) {
+                if (snapshot.modified[i] == DIRECTORY) {
+                    pending.push(new PendingDirectory<>(new File(next.dir, snapshot.names[i]), next.root, next.owner, true));
+                }
+            }
+        }
+        return changed;
+    }
+
+    private synchronized void startPass() {
+        for (Map.Entry<File, T> root : roots.entrySet()) {
+            //roots that have not been seen before are scanned silently
+            boolean seen = seenRoots.contains(root.getKey());
+            pending.add(new PendingDirectory<>(root.getKey(), root.getKey(), root.getValue(), seen));
+        }
+    }
+
+    private synchronized void markSeen(File root) {
+        if (roots.containsKey(root)) {
+            seenRoots.add(root);
+        }
+    }
+
+    private synchronized boolean isRooted(File root) {
+        return roots.containsKey(root);
+    }
+
+    /**
+     * reports the files that have been added to or removed from a directory, and any files that
+     * have been modified if the directory is not natively watched
+     */
+    private boolean compareEntries(PendingDirectory<T> dir, DirectorySnapshot old, DirectorySnapshot current, EventSink<T> sink) {
+        final boolean checkModified = !nativelyWatched.test(dir.dir);
+        boolean changed = false;
+        int i = 0;
+        int j = 0;
+        while (i < old.names.length || j < current.names.length) {
+            int cmp = i == old.names.length ? 1 : j == current.names.length ? -1 : old.names[i].compareTo(current.names[j]);
+            if (cmp < 0) {
+                File file = new File(dir.dir, old.names[i]);
+                if (old.modified[i] == DIRECTORY) {
+                    removeSnapshots(file);
+                }
+                sink.event(dir.owner, file, WatchServiceFileSystemWatcher.FileChangeEvent.Type.REMOVED);
+                changed = true;
+                ++i;
+            } else if (cmp > 0) {
+                //new directories are walked when the children are pushed, and report their contents then
+                sink.event(dir.owner, new File(dir.dir, current.names[j]), WatchServiceFileSystemWatcher.FileChangeEvent.Type.ADDED);
+                changed = true;
+                ++j;
+            } else {
+                if (checkModified && current.modified[j] != DIRECTORY
+                        && (current.modified[j] != old.modified[i] || current.lengths[j] != old.lengths[i])) {
+                    sink.event(dir.owner, new File(dir.dir, current.names[j]), WatchServiceFileSystemWatcher.FileChangeEvent.Type.MODIFIED);
+                    changed = true;
+                }
+                ++i;
+                ++j;
+            }
+        }
+        return changed;
+    }
+
+    private boolean pollFile(PendingDirectory<T> root, EventSink<T> sink) {
+        final long modified = root.dir.lastModified();
+        final long length = root.dir.length();
+        final long[] snapshot = fileSnapshots.get(root.dir);
+        if (snapshot == null) {
+            if (modified == 0) {
+                return false;
+            }
+            fileSnapshots.put(root.dir, new long[] {modified, length});
+            if (root.report) {
+                sink.event(root.owner, root.dir, WatchServiceFileSystemWatcher.FileChangeEvent.Type.ADDED);
+            }
+            return root.report;
+        } else if (modified == 0) {
+            fileSnapshots.remove(root.dir);
+            sink.event(root.owner, root.dir, WatchServiceFileSystemWatcher.FileChangeEvent.Type.REMOVED);
+            return true;
+        } else if (modified != snapshot[0] || length != snapshot[1]) {
+            snapshot[0] = modified;
+            snapshot[1] = length;
+            sink.event(root.owner, root.dir, WatchServiceFileSystemWatcher.FileChangeEvent.Type.MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * checks the files of a directory whose entries have not changed for modifications
+     */
+    private boolean compareFiles(PendingDirectory<T> dir, DirectorySnapshot snapshot, EventSink<T> sink) {
+        boolean changed = false;
+        for (int i = 0; i < snapshot.names.length; ++i) {
+            if (snapshot.modified[i] == DIRECTORY) {
+                continue;
+            }
+            File file = new File(dir.dir, snapshot.names[i]);
+            long modified = file.lastModified();
+            long length = file.length();
+            if (modified != snapshot.modified[i] || length != snapshot.lengths[i]) {
+                snapshot.modified[i] = modified;
+                snapshot.lengths[i] = length;
+                sink.event(dir.owner, file, WatchServiceFileSystemWatcher.FileChangeEvent.Type.MODIFIED);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private void removeSnapshots(File dir) {
+        String prefix = dir.getPath() + File.separator;
+        Iterator<File> it = snapshots.keySet().iterator();
+        while (it.hasNext()) {
+            File file = it.next();
+            if (file.equals(dir) || file.getPath().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static DirectorySnapshot list(File dir, long modified) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        String[] names = new String[files.length];
+        long[] times = new long[files.length];
+        long[] lengths = new long[files.length];
+        for (int i = 0; i < files.length; ++i) {
+            names[i] = files[i].getName();
+            if (files[i].isDirectory()) {
+                times[i] = DIRECTORY;
+            } else {
+                times[i] = files[i].lastModified();
+                lengths[i] = files[i].length();
+            }
+        }
+        boolean recent = System.currentTimeMillis() - modified < RECENT_MODIFICATION;
+        return new DirectorySnapshot(modified, recent, names, times, lengths);
+    }
+
+    interface EventSink<T> {
+        void event(T owner, File file, WatchServiceFileSystemWatcher.FileChangeEvent.Type type);
+    }
+
+    private static final class DirectorySnapshot {
+        private final long directoryModified;
+        private final boolean recent;
+        private final String[] names;
+        private final long[] modified;
+        private final long[] lengths;
+
+        private DirectorySnapshot(long directoryModified, boolean recent, String[] names, long[] modified, long[] lengths) {
+            this.directoryModified = directoryModified;
+            this.recent = recent;
+            this.names = names;
+            this.modified = modified;
+            this.lengths = lengths;
+        }
+    }
+
+    private static final class PendingDirectory<T> {
+        private final File dir;
+        private final File root;
+        private final T owner;
+        /**
+         * false during the first scan of a root, when everything that is found is already there
+         */
+        private final boolean report;
+
+        private PendingDirectory(File dir, File root, T owner, boolean report) {
+            this.dir = dir;
+            this.root = root;
+            this.owner = owner;
+            this.report = report;
+        }
+    }
+}
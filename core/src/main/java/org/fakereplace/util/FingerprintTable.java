@@ -0,0 +1,115 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.util;
+
+/**
+ * A table of content fingerprints keyed by path. The fingerprints are stored in a
+ * primitive array using open addressing, so there is no per entry object overhead
+ * apart from the key.
+ *
+ * @author Stuart Douglas
+ */
+public class FingerprintTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private String[] keys = new String[INITIAL_CAPACITY];
+    private long[] values = new long[INITIAL_CAPACITY];
+    private int size;
+
+    public synchronized void put(String path, long fingerprint) {
+        if ((size + 1) * 4 > keys.length * 3) {
+            resize(keys.length * 2);
+        }
+        int i = indexOf(keys, path);
+        if (keys[i] == null) {
+            keys[i] = path;
+            size++;
+        }
+        values[i] = fingerprint;
+    }
+
+    public synchronized boolean contains(String path) {
+        return keys[indexOf(keys, path)] != null;
+    }
+
+    /**
+     * @return the fingerprint, or the given default if there is no entry for the path
+     */
+    public synchronized long get(String path, long defaultValue) {
+        int i = indexOf(keys, path);
+        return keys[i] == null ? defaultValue : values[i];
+    }
+
+    public synchronized void remove(String path) {
+        int i = indexOf(keys, path);
+        if (keys[i] == null) {
+            return;
+        }
+        keys[i] = null;
+        size--;
+        // shift back any entries that were displaced past the removed slot
+        final int mask = keys.length - 1;
+        int j = i;
+        for (; ; ) {
+            j = (j + 1) & mask;
+            if (keys[j] == null) {
+                return;
+            }
+            int home = hash(keys[j]) & mask;
+            if ((j > i && (home <= i || home > j)) || (j < i && home <= i && home > j)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                keys[j] = null;
+                i = j;
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        final String[] oldKeys = keys;
+        final long[] oldValues = values;
+        keys = new String[capacity];
+        values = new long[capacity];
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] != null) {
+                int j = indexOf(keys, oldKeys[i]);
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private static int indexOf(String[] keys, String key) {
+        final int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (keys[i] != null && !keys[i].equals(key)) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -18,6 +18,7 @@
 package org.fakereplace.util;
 
 import com.sun.nio.file.SensitivityWatchEventModifier;
+import org.fakereplace.logging.Logger;
 
 import java.io.File;
 import java.io.IOException;
@@ -28,134 +29,132 @@ import java.nio.file.Paths;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Deque;
+import java.util.EnumSet;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
 import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
 
+/**
+ * Watches directory trees for changes.
+ * <p>
+ * Native watches are only registered for the directories that are explicitly requested with
+ * {@link #watchDirectory(File, File)}, which are generally the directories that contain loaded classes.
+ * The rest of each tree is covered by a {@link DirectoryPoller}. If native watches can not be
+ * registered, for example because the inotify watch limit has been reached, everything is polled.
+ */
 public class WatchServiceFileSystemWatcher implements Runnable, AutoCloseable {
 
+    private static final Logger log = Logger.getLogger(WatchServiceFileSystemWatcher.class);
+
     private static final AtomicInteger threadIdCounter = new AtomicInteger(0);
-    private static int WAIT_TIME = Integer.getInteger("fakereplace.wait-time", 500);
+    /**
+     * the longest time a batch waits for the file system to be quiet before it is delivered
+     */
+    private static final int WAIT_TIME = Integer.getInteger("fakereplace.wait-time", 500);
+    /**
+     * the initial quiet window, this doubles up to {@link #WAIT_TIME} while events keep arriving
+     */
+    private static final int MIN_WAIT_TIME = Math.min(WAIT_TIME, Integer.getInteger("fakereplace.min-wait-time", 100));
+    /**
+     * upper bound on how long events are collected into a single batch, so a file that is being
+     * written continuously does not hold back changes indefinitely
+     */
+    private static final int MAX_BATCH_TIME = Integer.getInteger("fakereplace.max-batch-time", 10000);
+    /**
+     * how often the directories without a native watch are polled
+     */
+    private static final int POLL_INTERVAL = Math.max(1, Integer.getInteger("fakereplace.poll-interval", 1000));
+    /**
+     * the maximum number of directory entries examined each time the poller runs
+     */
+    private static final int POLL_BATCH_SIZE = Integer.getInteger("fakereplace.poll-batch-size", 20000);
+    /**
+     * the maximum number of directories that get a native watch, everything else is polled
+     */
+    private static final int MAX_WATCHED_DIRECTORIES = Integer.getInteger("fakereplace.max-watched-directories", 1024);
     public static final String THREAD_NAME = "fakereplace-file-watcher";
 
     private WatchService watchService;
     private final Map<File, PathData> files = Collections.synchronizedMap(new HashMap<>());
     private final Map<WatchKey, PathData> pathDataByKey = Collections.synchronizedMap(new IdentityHashMap<>());
+    private final Map<File, WatchKey> nativeDirectories = new ConcurrentHashMap<>();
+    /**
+     * natively watched directories whose key was cancelled, normally because the directory was deleted. The
+     * watch is registered again if the directory comes back, for example after a clean build.
+     */
+    private final Map<File, PathData> droppedDirectories = new HashMap<>();
+    private final DirectoryPoller<PathData> poller;
+    private final int maxWatchedDirectories;
 
+    /**
+     * the events that have been collected but not delivered yet, this is only used by the thread that calls
+     * {@link #tick(long)}
+     */
+    private final Map<FileChangeCallback, Map<File, Set<FileChangeEvent.Type>>> batch = new LinkedHashMap<>();
+    private final DirectoryPoller.EventSink<PathData> sink = (pathData, file, type) -> addEvent(pathData, file, type);
+    private long nextPoll;
+    private long quietWindow;
+    private long quietWindowEnd;
+    private long batchEnd;
+
+    private volatile boolean nativeWatchesAvailable = true;
     private volatile boolean stopped = false;
     private final Thread watchThread;
 
     public WatchServiceFileSystemWatcher() {
+        this(POLL_BATCH_SIZE, MAX_WATCHED_DIRECTORIES, true);
+    }
+
+    /**
+     * Creates a watcher that does not have its own thread, changes are only looked for when {@link #tick(long)} is
+     * called.
+     *
+     * @param pollBatchSize         the maximum number of directory entries examined each time the poller runs
+     * @param maxWatchedDirectories the maximum number of directories that get a native watch
+     */
+    public WatchServiceFileSystemWatcher(int pollBatchSize, int maxWatchedDirectories) {
+        this(pollBatchSize, maxWatchedDirectories, false);
+    }
+
+    private WatchServiceFileSystemWatcher(int pollBatchSize, int maxWatchedDirectories, boolean background) {
+        this.poller = new DirectoryPoller<>(pollBatchSize, nativeDirectories::containsKey);
+        this.maxWatchedDirectories = maxWatchedDirectories;
         try {
             watchService = FileSystems.getDefault().newWatchService();
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        watchThread = new Thread(this, THREAD_NAME + threadIdCounter);
-        watchThread.setDaemon(true);
-        watchThread.start();
+        if (background) {
+            watchThread = new Thread(this, THREAD_NAME + threadIdCounter);
+            watchThread.setDaemon(true);
+            watchThread.start();
+        } else {
+            watchThread = null;
+        }
     }
 
     @Override
     public void run() {
+        long next = System.currentTimeMillis();
         while (!stopped) {
             try {
-                final WatchKey key = watchService.take();
-                if (key != null) {
-                    try {
-                        PathData pathData = pathDataByKey.get(key);
-                        if (pathData != null) {
-                            List<WatchEvent<?>> events = new ArrayList<>(key.pollEvents());
-                            final List<FileChangeEvent> results = new ArrayList<>();
-                            List<WatchEvent<?>> latest;
-                            do {
-                                //we need to wait till nothing has changed in 500ms to make sure we have picked up all the changes
-                                Thread.sleep(WAIT_TIME);
-                                latest = key.pollEvents();
-                                events.addAll(latest);
-                            } while (!latest.isEmpty());
-                            final Set<File> addedFiles = new HashSet<>();
-                            final Set<File> deletedFiles = new HashSet<>();
-                            for (WatchEvent<?> event : events) {
-                                Path eventPath = (Path) event.context();
-                                File targetFile = ((Path) key.watchable()).resolve(eventPath).toFile();
-                                FileChangeEvent.Type type;
-
-                                if (event.kind() == ENTRY_CREATE) {
-                                    type = FileChangeEvent.Type.ADDED;
-                                    addedFiles.add(targetFile);
-                                    if (targetFile.isDirectory()) {
-                                        try {
-                                            addWatchedDirectory(pathData, targetFile);
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
-                                } else if (event.kind() == ENTRY_MODIFY) {
-                                    type = FileChangeEvent.Type.MODIFIED;
-                                } else if (event.kind() == ENTRY_DELETE) {
-                                    type = FileChangeEvent.Type.REMOVED;
-                                    deletedFiles.add(targetFile);
-                                } else {
-                                    continue;
-                                }
-                                results.add(new FileChangeEvent(targetFile, type));
-                            }
-                            key.pollEvents().clear();
-
-                            //now we need to prune the results, to remove duplicates
-                            //e.g. if the file is modified after creation we only want to
-                            //show the create event
-                            final List<FileChangeEvent> newEvents = new ArrayList<>();
-                            Iterator<FileChangeEvent> it = results.iterator();
-                            while (it.hasNext()) {
-                                FileChangeEvent event = it.next();
-                                boolean added = addedFiles.contains(event.getFile());
-                                boolean deleted = deletedFiles.contains(event.getFile());
-                                if (event.getType() == FileChangeEvent.Type.MODIFIED) {
-                                    if (added || deleted) {
-                                        it.remove();
-                                    }
-                                } else if (event.getType() == FileChangeEvent.Type.ADDED) {
-                                    if (deleted) {
-                                        it.remove();
-                                        newEvents.add(new FileChangeEvent(event.getFile(), FileChangeEvent.Type.MODIFIED)); //if it was both deleted and added it was modified
-                                    }
-                                } else if (event.getType() == FileChangeEvent.Type.REMOVED) {
-                                    if (added) {
-                                        it.remove();
-                                    }
-                                }
-                            }
-                            results.addAll(newEvents);
-
-                            if (!results.isEmpty()) {
-                                for (FileChangeCallback callback : pathData.callbacks) {
-                                    invokeCallback(callback, results);
-                                }
-                            }
-                        }
-                    } finally {
-                        //if the key is no longer valid remove it from the files list
-                        if (!key.reset()) {
-                            files.remove(key.watchable());
-                        }
-                    }
-                }
+                long wait = next - System.currentTimeMillis();
+                WatchKey key = wait > 0 ? watchService.poll(wait, TimeUnit.MILLISECONDS) : null;
+                next = step(key, System.currentTimeMillis());
             } catch (InterruptedException e) {
                 //ignore
             } catch (ClosedWatchServiceException cwse) {
@@ -166,29 +165,231 @@ public class WatchServiceFileSystemWatcher implements Runnable, AutoCloseable {
         }
     }
 
-    public synchronized void watchPath(File file, FileChangeCallback callback) {
+    /**
+     * Takes the native events that are ready, runs the poller if it is due, and delivers the batch once the
+     * file system has been quiet for long enough. The watch thread does this whenever an event arrives or the
+     * returned time is reached, a watcher without its own thread needs this to be called instead.
+     *
+     * @param now the current time in milliseconds
+     * @return the time this should be called again if no events arrive before then
+     */
+    public long tick(long now) {
+        return step(watchService.poll(), now);
+    }
+
+    private long step(WatchKey key, long now) {
+        boolean changed = key != null && drainKeys(key);
+        if (batch.isEmpty()) {
+            if (now >= nextPoll) {
+                restoreDroppedDirectories();
+                poller.poll(sink);
+                nextPoll = now + POLL_INTERVAL;
+            }
+            if (batch.isEmpty()) {
+                return nextPoll;
+            }
+            //now keep going until nothing has changed for the length of the quiet window, so a build that
+            //touches many directories ends up as a single batch. The window starts short so a single saved
+            //file is picked up quickly, and grows while events keep arriving
+            quietWindow = MIN_WAIT_TIME;
+            quietWindowEnd = now + quietWindow;
+            batchEnd = now + MAX_BATCH_TIME;
+            return quietWindowEnd;
+        }
+        if (!changed && now < quietWindowEnd) {
+            return quietWindowEnd;
+        }
+        //changes to polled directories that are part of the same build belong in this batch as well
+        if (poller.poll(sink)) {
+            changed = true;
+        }
+        if (changed && now <= batchEnd) {
+            quietWindow = Math.min(quietWindow * 2, WAIT_TIME);
+            quietWindowEnd = now + quietWindow;
+            return quietWindowEnd;
+        }
+        nextPoll = now + POLL_INTERVAL;
+        final List<Map.Entry<FileChangeCallback, Map<File, Set<FileChangeEvent.Type>>>> delivered = new ArrayList<>(batch.entrySet());
+        batch.clear();
+        for (Map.Entry<FileChangeCallback, Map<File, Set<FileChangeEvent.Type>>> entry : delivered) {
+            List<FileChangeEvent> results = coalesce(entry.getValue());
+            if (!results.isEmpty()) {
+                invokeCallback(entry.getKey(), results);
+            }
+        }
+        return nextPoll;
+    }
+
+    /**
+     * Adds the events of the given key, and any other keys that are ready, to the batch
+     *
+     * @return true if there were any events
+     */
+    private boolean drainKeys(WatchKey key) {
+        boolean changed = false;
+        do {
+            changed |= drainKey(key);
+        } while ((key = watchService.poll()) != null);
+        return changed;
+    }
+
+    /**
+     * Adds the pending events of a key to the batch of every callback that is interested in them, and
+     * resets the key so further events are queued again.
+     */
+    private boolean drainKey(WatchKey key) {
+        final Path dir = (Path) key.watchable();
+        boolean changed = false;
         try {
-            PathData data = files.get(file);
-            if (data == null) {
-                Set<File> allDirectories = doScan(file).keySet();
-                Path path = Paths.get(file.toURI());
-                data = new PathData(path);
-                for (File dir : allDirectories) {
-                    addWatchedDirectory(data, dir);
+            PathData pathData = pathDataByKey.get(key);
+            List<WatchEvent<?>> events = key.pollEvents();
+            if (pathData == null) {
+                return false;
+            }
+            for (WatchEvent<?> event : events) {
+                Path eventPath = (Path) event.context();
+                if (eventPath == null) {
+                    //overflow
+                    continue;
+                }
+                File targetFile = dir.resolve(eventPath).toFile();
+                FileChangeEvent.Type type;
+                //new sub directories are not registered, the poller will pick up their contents
+                if (event.kind() == ENTRY_CREATE) {
+                    type = FileChangeEvent.Type.ADDED;
+                } else if (event.kind() == ENTRY_MODIFY) {
+                    type = FileChangeEvent.Type.MODIFIED;
+                } else if (event.kind() == ENTRY_DELETE) {
+                    type = FileChangeEvent.Type.REMOVED;
+                } else {
+                    continue;
                 }
-                files.put(file, data);
+                addEvent(pathData, targetFile, type);
+                changed = true;
             }
-            data.callbacks.add(callback);
+        } finally {
+            //if the key is no longer valid stop tracking it, the poller covers the directory from now on
+            if (!key.reset()) {
+                synchronized (this) {
+                    PathData pathData = pathDataByKey.remove(key);
+                    if (pathData != null) {
+                        pathData.keys.remove(key);
+                        droppedDirectories.put(dir.toFile(), pathData);
+                    }
+                    nativeDirectories.remove(dir.toFile(), key);
+                }
+            }
+        }
+        return changed;
+    }
+
+    private void addEvent(PathData pathData, File file, FileChangeEvent.Type type) {
+        final List<FileChangeCallback> callbacks;
+        synchronized (this) {
+            callbacks = new ArrayList<>(pathData.callbacks);
+        }
+        for (FileChangeCallback callback : callbacks) {
+            batch.computeIfAbsent(callback, c -> new LinkedHashMap<>())
+                    .computeIfAbsent(file, f -> EnumSet.noneOf(FileChangeEvent.Type.class))
+                    .add(type);
+        }
+    }
+
+    /**
+     * Reduces all the events seen for each file to a single event. If a file was both added and
+     * removed it is reported as modified, otherwise an add or remove takes precedence over a modification.
+     */
+    private static List<FileChangeEvent> coalesce(Map<File, Set<FileChangeEvent.Type>> events) {
+        final List<FileChangeEvent> results = new ArrayList<>(events.size());
+        for (Map.Entry<File, Set<FileChangeEvent.Type>> entry : events.entrySet()) {
+            Set<FileChangeEvent.Type> types = entry.getValue();
+            boolean added = types.contains(FileChangeEvent.Type.ADDED);
+            boolean deleted = types.contains(FileChangeEvent.Type.REMOVED);
+            FileChangeEvent.Type type;
+            if (added && deleted) {
+                type = FileChangeEvent.Type.MODIFIED;
+            } else if (added) {
+                type = FileChangeEvent.Type.ADDED;
+            } else if (deleted) {
+                type = FileChangeEvent.Type.REMOVED;
+            } else {
+                type = FileChangeEvent.Type.MODIFIED;
+            }
+            results.add(new FileChangeEvent(entry.getKey(), type));
+        }
+        return results;
+    }
 
+    /**
+     * Starts watching a directory tree, or a single file. The tree is covered by the poller until directories
+     * in it are given a native watch with {@link #watchDirectory(File, File)}.
+     */
+    public synchronized void watchPath(File file, FileChangeCallback callback) {
+        PathData data = files.get(file);
+        if (data == null) {
+            data = new PathData(Paths.get(file.toURI()));
+            files.put(file, data);
+            poller.addRoot(file, data);
+        }
+        data.callbacks.add(callback);
+    }
+
+    /**
+     * Registers a native watch for a directory inside a watched tree, as long as the limit on native
+     * watches has not been reached. If registration fails the poller is used for all directories.
+     *
+     * @param root the root of the tree, as passed to {@link #watchPath(File, FileChangeCallback)}
+     * @param dir  the directory to watch
+     */
+    public synchronized void watchDirectory(File root, File dir) {
+        PathData data = files.get(root);
+        if (data == null || !nativeWatchesAvailable || nativeDirectories.containsKey(dir) || nativeDirectories.size() >= maxWatchedDirectories) {
+            return;
+        }
+        try {
+            addWatchedDirectory(data, dir);
         } catch (IOException e) {
-            throw new RuntimeException(e);
+            nativeWatchesAvailable = false;
+            log.info("Could not watch " + dir + ", falling back to polling for changes: " + e.getMessage());
         }
     }
 
+    /**
+     * registers the native watches of dropped directories that exist again, this is done before the poller runs so
+     * anything that is written after the poller has listed them is reported by the native watch
+     */
+    private synchronized void restoreDroppedDirectories() {
+        Iterator<Map.Entry<File, PathData>> it = droppedDirectories.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<File, PathData> entry = it.next();
+            if (!entry.getKey().isDirectory()) {
+                continue;
+            }
+            it.remove();
+            if (!nativeWatchesAvailable || nativeDirectories.containsKey(entry.getKey())) {
+                continue;
+            }
+            try {
+                addWatchedDirectory(entry.getValue(), entry.getKey());
+            } catch (IOException e) {
+                nativeWatchesAvailable = false;
+                log.info("Could not watch " + entry.getKey() + ", falling back to polling for changes: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * @return true if changes to the files in the directory are reported by a native watch rather than the poller
+     */
+    public boolean isWatchedNatively(File dir) {
+        return nativeDirectories.containsKey(dir);
+    }
+
     private void addWatchedDirectory(PathData data, File dir) throws IOException {
         Path path = Paths.get(dir.toURI());
         WatchKey key = path.register(watchService, new WatchEvent.Kind[] {ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY}, SensitivityWatchEventModifier.HIGH);
         pathDataByKey.put(key, data);
+        nativeDirectories.put(dir, key);
         data.keys.add(key);
     }
 
@@ -198,9 +399,12 @@ public class WatchServiceFileSystemWatcher implements Runnable, AutoCloseable {
             data.callbacks.remove(callback);
             if (data.callbacks.isEmpty()) {
                 files.remove(file);
+                poller.removeRoot(file);
+                droppedDirectories.values().removeIf(d -> d == data);
                 for (WatchKey key : data.keys) {
                     key.cancel();
                     pathDataByKey.remove(key);
+                    nativeDirectories.remove(((Path) key.watchable()).toFile(), key);
                 }
 
             }
@@ -210,33 +414,14 @@ public class WatchServiceFileSystemWatcher implements Runnable, AutoCloseable {
     @Override
     public void close() throws IOException {
         this.stopped = true;
-        watchThread.interrupt();
+        if (watchThread != null) {
+            watchThread.interrupt();
+        }
         if (watchService != null) {
             watchService.close();
         }
     }
 
-
-    private static Map<File, Long> doScan(File file) {
-        final Map<File, Long> results = new HashMap<>();
-
-        final Deque<File> toScan = new ArrayDeque<File>();
-        toScan.add(file);
-        while (!toScan.isEmpty()) {
-            File next = toScan.pop();
-            if (next.isDirectory()) {
-                results.put(next, next.lastModified());
-                File[] list = next.listFiles();
-                if (list != null) {
-                    for (File f : list) {
-                        toScan.push(new File(f.getAbsolutePath()));
-                    }
-                }
-            }
-        }
-        return results;
-    }
-
     private static void invokeCallback(FileChangeCallback callback, List<FileChangeEvent> results) {
         try {
             callback.handleChanges(results);
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.classloading;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.function.BooleanSupplier;
+
+import org.fakereplace.classloading.ClassIdentifier;
+import org.fakereplace.classloading.ClassLoaderTracker;
+import org.fakereplace.data.ClassHierarchyIndex;
+import org.fakereplace.transformation.ReferenceIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Loads classes through a loader that is then dropped, and checks that once it has been collected
+ * the tracker counts it and the data recorded for its classes is removed.
+ * <p>
+ * Surefire loads every test class, so these classes are also loaded by the application class loader. Only
+ * the entries that belong to the dropped loader are checked.
+ */
+public class LoaderCollectionTest {
+
+    private static final String COLLECTABLE = "a.org.fakereplace.test.classloading.Collectable";
+    private static final String REFERRER = "a.org.fakereplace.test.classloading.CollectableReferrer";
+
+    private static final long TIMEOUT = 30000;
+
+    @Test
+    public void testCollectedLoaderIsRemoved() throws Exception {
+        final int collected = ClassLoaderTracker.getCollectedLoaderCount();
+        final ClassIdentifier identifier = loadAndDrop();
+
+        Assert.assertTrue("loader was not collected", waitFor(() -> {
+            System.gc();
+            return identifier.isCollected();
+        }));
+        Assert.assertTrue("loader was not counted as collected", waitFor(() -> ClassLoaderTracker.getCollectedLoaderCount() > collected));
+        Assert.assertTrue("referrers were not removed", waitFor(() -> !ReferenceIndex.getReferrers(COLLECTABLE).contains(identifier)));
+        Assert.assertTrue("defining loaders were not removed", waitFor(() -> ClassHierarchyIndex.getDefiningLoader(COLLECTABLE) == null
+                && ClassHierarchyIndex.getDefiningLoader(REFERRER) == null));
+        Assert.assertNull(identifier.getLoader());
+    }
+
+    /**
+     * Loads the classes in a new loader, and returns the identifier of the referrer that was recorded for it
+     */
+    private ClassIdentifier loadAndDrop() throws Exception {
+        final URL classes = getClass().getProtectionDomain().getCodeSource().getLocation();
+        final URLClassLoader loader = new URLClassLoader(new URL[]{classes}, null);
+        try {
+            Assert.assertEquals("1", loader.loadClass(REFERRER).newInstance().toString());
+        } finally {
+            loader.close();
+        }
+        Assert.assertSame(loader, ClassHierarchyIndex.getDefiningLoader(COLLECTABLE).get());
+        ClassIdentifier result = null;
+        for (ClassIdentifier identifier : ReferenceIndex.getReferrers(COLLECTABLE)) {
+            if (identifier.getClassName().equals(REFERRER) && identifier.getLoader() == loader) {
+                result = identifier;
+            }
+        }
+        Assert.assertNotNull("referrer was not recorded", result);
+        Assert.assertFalse(result.isCollected());
+        return result;
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) throws InterruptedException {
+        final long end = System.currentTimeMillis() + TIMEOUT;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > end) {
+                return false;
+            }
+            Thread.sleep(50);
+            ClassLoaderTracker.purge();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.ClassFile;
+import org.fakereplace.core.Constants;
+import org.fakereplace.core.PreInstrumenter;
+import org.fakereplace.data.BaseClassData;
+import org.fakereplace.data.ClassDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Instruments classes at build time, and checks that the agent does not instrument them again when they are loaded.
+ */
+public class PreInstrumenterTest {
+
+    @Test
+    public void testInstrument() throws IOException {
+        final PreInstrumenter instrumenter = new PreInstrumenter(getClass().getClassLoader());
+        final byte[] original = readClass(Instrumented.class);
+        Assert.assertFalse(PreInstrumenter.isPreInstrumented(toClassFile(original)));
+
+        final byte[] instrumented = instrumenter.instrument(original);
+        Assert.assertNotNull(instrumented);
+        final ClassFile file = toClassFile(instrumented);
+        Assert.assertTrue(PreInstrumenter.isPreInstrumented(file));
+        Assert.assertEquals(Instrumented.class.getName(), file.getName());
+        Assert.assertNotNull(file.getMethod(Constants.ADDED_METHOD_NAME));
+
+        //marked classes are left alone
+        Assert.assertNull(instrumenter.instrument(instrumented));
+    }
+
+    @Test
+    public void testAgentSkipsPreInstrumentedClasses() throws Exception {
+        final PreInstrumenter instrumenter = new PreInstrumenter(getClass().getClassLoader());
+        final AttributeInfo marker = toClassFile(instrumenter.instrument(readClass(Instrumented.class))).getAttribute(PreInstrumenter.ATTRIBUTE_NAME);
+
+        //a class that only has the marker, if the agent believes it then it will not add the methods itself
+        final ClassFile marked = toClassFile(readClass(Marked.class));
+        marked.addAttribute(marker.copy(marked.getConstPool(), null));
+        Assert.assertTrue(PreInstrumenter.isPreInstrumented(marked));
+
+        final DefiningClassLoader loader = new DefiningClassLoader();
+        loader.define(Marked.class.getName(), toBytes(marked));
+        loader.define(Unmarked.class.getName(), readClass(Unmarked.class));
+        Assert.assertSame(loader, loader.loadClass(Marked.class.getName()).getClassLoader());
+        Assert.assertSame(loader, loader.loadClass(Unmarked.class.getName()).getClassLoader());
+
+        final BaseClassData markedData = ClassDataStore.instance().getBaseClassData(loader, Marked.class.getName());
+        final BaseClassData unmarkedData = ClassDataStore.instance().getBaseClassData(loader, Unmarked.class.getName());
+        Assert.assertNotNull(markedData);
+        Assert.assertNotNull(unmarkedData);
+        Assert.assertNull(markedData.getMethodOrConstructor(Constants.ADDED_METHOD_NAME, Constants.ADDED_METHOD_DESCRIPTOR));
+        Assert.assertNotNull(unmarkedData.getMethodOrConstructor(Constants.ADDED_METHOD_NAME, Constants.ADDED_METHOD_DESCRIPTOR));
+    }
+
+    private static byte[] readClass(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class")) {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[1024];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static ClassFile toClassFile(byte[] data) throws IOException {
+        return new ClassFile(new DataInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] toBytes(ClassFile file) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        file.write(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /**
+     * defines the given classes itself, so they are loaded again rather than found in the parent
+     */
+    private static final class DefiningClassLoader extends ClassLoader {
+
+        private final Map<String, byte[]> classes = new HashMap<String, byte[]>();
+
+        DefiningClassLoader() {
+            super(PreInstrumenterTest.class.getClassLoader());
+        }
+
+        void define(String name, byte[] data) {
+            classes.put(name, data);
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            final byte[] data = classes.remove(name);
+            if (data == null) {
+                return super.loadClass(name, resolve);
+            }
+            return defineClass(name, data, 0, data.length);
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static class Instrumented {
+
+        private int value;
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static class Marked {
+
+        public String name() {
+            return "marked";
+        }
+    }
+
+    @SuppressWarnings("unused")
+    public static class Unmarked {
+
+        public String name() {
+            return "unmarked";
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.data;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.AttributeInfo;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.FieldInfo;
+import javassist.bytecode.MethodInfo;
+import org.fakereplace.core.Constants;
+import org.fakereplace.data.BaseClassData;
+import org.fakereplace.data.ClassDataStore;
+import org.fakereplace.data.FieldData;
+import org.fakereplace.data.MemberType;
+import org.fakereplace.data.MethodData;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Saves class files to the {@link ClassDataStore}, which packs them, and checks the unpacked data against the
+ * class file.
+ */
+public class ClassDataPackerTest {
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        ClassFile file = readClassFile(Packed.class);
+        MethodInfo added = new MethodInfo(file.getConstPool(), Constants.ADDED_METHOD_NAME, Constants.ADDED_METHOD_DESCRIPTOR);
+        added.setAccessFlags(AccessFlag.PUBLIC);
+        file.addMethod(added);
+        MethodInfo finalMethod = file.getMethod("finalMethod");
+        finalMethod.addAttribute(new AttributeInfo(file.getConstPool(), Constants.FINAL_METHOD_ATTRIBUTE, new byte[0]));
+
+        ClassLoader loader = new URLClassLoader(new URL[0]);
+        ClassDataStore.instance().saveClassData(loader, file, true);
+        BaseClassData data = ClassDataStore.instance().getBaseClassData(loader, Packed.class.getName());
+
+        Assert.assertNotNull(data);
+        Assert.assertTrue(data.isReplaceable());
+        Assert.assertSame(loader, data.getLoader());
+        Assert.assertEquals(Packed.class.getName(), data.getClassName());
+        Assert.assertEquals(Object.class.getName(), data.getSuperClassName());
+        Assert.assertEquals(1, data.getInterfaceNames().size());
+        Assert.assertTrue(data.getInterfaceNames().contains(Serializable.class.getName()));
+
+        Assert.assertEquals(file.getMethods().size(), data.getMethods().size());
+        for (Object o : file.getMethods()) {
+            MethodInfo method = (MethodInfo) o;
+            MethodData found = data.getMethodOrConstructor(method.getName(), method.getDescriptor());
+            Assert.assertNotNull(method.toString(), found);
+            Assert.assertEquals(method.getAccessFlags(), found.getAccessFlags());
+            Assert.assertEquals(Packed.class.getName(), found.getClassName());
+        }
+        Assert.assertEquals(MemberType.ADDED_SYSTEM, data.getMethodOrConstructor(Constants.ADDED_METHOD_NAME, Constants.ADDED_METHOD_DESCRIPTOR).getType());
+        Assert.assertEquals(MemberType.NORMAL, data.getMethodOrConstructor("method", "(JLjava/lang/String;)I").getType());
+        Assert.assertTrue(data.getMethodOrConstructor("finalMethod", "()V").isFinalMethod());
+        Assert.assertFalse(data.getMethodOrConstructor("method", "(JLjava/lang/String;)I").isFinalMethod());
+
+        Assert.assertEquals(file.getFields().size(), data.getFields().size());
+        for (Object o : file.getFields()) {
+            FieldInfo field = (FieldInfo) o;
+            FieldData found = data.getField(field.getName());
+            Assert.assertNotNull(field.getName(), found);
+            Assert.assertEquals(field.getDescriptor(), found.getType());
+            Assert.assertEquals(field.getAccessFlags(), found.getAccessFlags());
+        }
+    }
+
+    @Test
+    public void testBootstrapLoader() throws IOException {
+        ClassFile file = readClassFile(Packed.class);
+        file.setName("a.org.fakereplace.test.data.PackedWithoutLoader");
+        ClassDataStore.instance().saveClassData(null, file, false);
+        BaseClassData data = ClassDataStore.instance().getBaseClassData(null, file.getName());
+        Assert.assertNotNull(data);
+        Assert.assertFalse(data.isReplaceable());
+        Assert.assertNull(data.getLoader());
+        Assert.assertEquals(file.getMethods().size(), data.getMethods().size());
+    }
+
+    /**
+     * several threads unpacking the same classes at once must all find them
+     */
+    @Test
+    public void testConcurrentUnpack() throws Exception {
+        final int threads = 8;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 20; ++round) {
+                final ClassLoader loader = new URLClassLoader(new URL[0]);
+                final String[] names = new String[200];
+                for (int i = 0; i < names.length; ++i) {
+                    ClassFile file = readClassFile(Packed.class);
+                    names[i] = Packed.class.getName() + "Concurrent" + i;
+                    file.setName(names[i]);
+                    ClassDataStore.instance().saveClassData(loader, file, true);
+                }
+                final CyclicBarrier barrier = new CyclicBarrier(threads);
+                final List<Future<Integer>> missing = new ArrayList<Future<Integer>>();
+                for (int i = 0; i < threads; ++i) {
+                    missing.add(executor.submit(() -> {
+                        barrier.await();
+                        int count = 0;
+                        for (String name : names) {
+                            if (ClassDataStore.instance().getBaseClassData(loader, name) == null) {
+                                count++;
+                            }
+                        }
+                        return count;
+                    }));
+                }
+                for (Future<Integer> result : missing) {
+                    Assert.assertEquals(0, result.get().intValue());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static ClassFile readClassFile(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class")) {
+            return new ClassFile(new DataInputStream(in));
+        }
+    }
+
+    @SuppressWarnings("unused")
+    static class Packed implements Serializable {
+
+        private int count;
+        protected static String name;
+        public final long[] values = new long[0];
+
+        int method(long value, String text) {
+            return 0;
+        }
+
+        final void finalMethod() {
+
+        }
+
+        private static Object staticMethod() {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.data;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import org.fakereplace.data.BaseClassData;
+import org.fakereplace.data.ClassData;
+import org.fakereplace.data.ClassDataBuilder;
+import org.fakereplace.data.MethodData;
+import org.fakereplace.util.DescriptorUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SortedMembersTest {
+
+    @Test
+    public void testMethodLookup() {
+        BaseClassData data = new BaseClassData(Members.class);
+        for (Method method : Members.class.getDeclaredMethods()) {
+            String descriptor = DescriptorUtils.getDescriptor(method);
+            MethodData found = data.getMethodOrConstructor(method.getName(), descriptor);
+            Assert.assertNotNull(method.toString(), found);
+            Assert.assertEquals(method.getName(), found.getMethodName());
+            Assert.assertEquals(descriptor, found.getDescriptor());
+        }
+        for (Constructor<?> constructor : Members.class.getDeclaredConstructors()) {
+            MethodData found = data.getMethodOrConstructor("<init>", DescriptorUtils.getDescriptor(constructor));
+            Assert.assertNotNull(constructor.toString(), found);
+        }
+        Assert.assertNull(data.getMethodOrConstructor("a", "(J)V"));
+        Assert.assertNull(data.getMethodOrConstructor("a", "(I)I"));
+        Assert.assertNull(data.getMethodOrConstructor("ab", "()V"));
+        Assert.assertNull(data.getMethodOrConstructor("", "()V"));
+        Assert.assertNull(data.getMethodOrConstructor("zzz", "()V"));
+    }
+
+    @Test
+    public void testArgumentLookup() {
+        ClassData data = new ClassDataBuilder(new BaseClassData(Members.class)).buildClassData();
+        Assert.assertEquals("()V", data.getMethodData("a", "()").getDescriptor());
+        Assert.assertEquals("(I)V", data.getMethodData("a", "(I)").getDescriptor());
+        Assert.assertEquals("(II)I", data.getMethodData("a", "(II)").getDescriptor());
+        Assert.assertEquals("(Ljava/lang/String;)Ljava/lang/String;", data.getMethodData("a", "(Ljava/lang/String;)").getDescriptor());
+        Assert.assertEquals("()Ljava/lang/Object;", data.getMethodData("c", "()").getDescriptor());
+        Assert.assertNull(data.getMethodData("a", "(J)"));
+        Assert.assertNull(data.getMethodData("b", "(I)"));
+        Assert.assertNull(data.getMethodData("d", "()"));
+    }
+
+    @Test
+    public void testFieldLookup() {
+        BaseClassData data = new BaseClassData(Members.class);
+        for (Field field : Members.class.getDeclaredFields()) {
+            Assert.assertNotNull(field.toString(), data.getField(field.getName()));
+            Assert.assertEquals(field.getName(), data.getField(field.getName()).getName());
+        }
+        Assert.assertNull(data.getField("a"));
+        Assert.assertNull(data.getField("fieldB1"));
+        Assert.assertNull(data.getField("zzz"));
+    }
+
+    @SuppressWarnings("unused")
+    private static class Members {
+
+        private int fieldA;
+        private String fieldB;
+        private long fieldC;
+        private static Object fieldD;
+
+        Members() {
+
+        }
+
+        Members(int a) {
+
+        }
+
+        void a() {
+
+        }
+
+        void a(int a) {
+
+        }
+
+        int a(int a, int b) {
+            return a + b;
+        }
+
+        String a(String a) {
+            return a;
+        }
+
+        void b() {
+
+        }
+
+        Object c() {
+            return null;
+        }
+    }
+}
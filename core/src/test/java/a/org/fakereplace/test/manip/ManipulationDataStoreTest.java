@@ -0,0 +1,102 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.manip;
+
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+import org.fakereplace.manip.util.ClassLoaderFiltered;
+import org.fakereplace.manip.util.ManipulationDataStore;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks that the cached per loader views of a {@link ManipulationDataStore} are rebuilt when the data changes
+ */
+public class ManipulationDataStoreTest {
+
+    @Test
+    public void testViewIsInvalidatedOnAdd() throws Exception {
+        ManipulationDataStore<Data> store = new ManipulationDataStore<>();
+        ClassLoader loader = getClass().getClassLoader();
+        try (URLClassLoader child = new URLClassLoader(new URL[0], loader)) {
+            Map<String, Set<Data>> view = store.getManipulationData(loader);
+            Assert.assertTrue(view.isEmpty());
+            Assert.assertSame(view, store.getManipulationData(loader));
+
+            int count = ManipulationDataStore.getModificationCount();
+            Data data = new Data(loader);
+            store.add("a.B", data);
+            Assert.assertTrue(ManipulationDataStore.getModificationCount() > count);
+            view = store.getManipulationData(loader);
+            Assert.assertEquals(Collections.singleton(data), view.get("a.B"));
+            Assert.assertSame(view, store.getManipulationData(loader));
+            Assert.assertEquals(Collections.singleton(data), store.getManipulationData(child).get("a.B"));
+
+            //adding the same data again does not change anything
+            store.add("a.B", data);
+            Assert.assertSame(view, store.getManipulationData(loader));
+
+            //data for the child loader is not visible to the parent
+            Data childData = new Data(child);
+            store.add("a.C", childData);
+            Assert.assertNull(store.getManipulationData(loader).get("a.C"));
+            Assert.assertEquals(Collections.singleton(childData), store.getManipulationData(child).get("a.C"));
+        }
+    }
+
+    @Test
+    public void testViewIsInvalidatedOnRemove() {
+        ManipulationDataStore<Data> store = new ManipulationDataStore<>();
+        ClassLoader loader = getClass().getClassLoader();
+        store.add("a.B", new Data(loader));
+        Map<String, Set<Data>> view = store.getManipulationData(loader);
+        Assert.assertNotNull(view.get("a.B"));
+
+        //removing data for a different loader leaves the view alone
+        store.remove("a.B", null);
+        Assert.assertSame(view, store.getManipulationData(loader));
+
+        int count = ManipulationDataStore.getModificationCount();
+        store.remove("a.B", loader);
+        Assert.assertTrue(ManipulationDataStore.getModificationCount() > count);
+        Assert.assertNull(store.getManipulationData(loader).get("a.B"));
+    }
+
+    private static final class Data implements ClassLoaderFiltered<Data> {
+
+        private final ClassLoader loader;
+
+        Data(ClassLoader loader) {
+            this.loader = loader;
+        }
+
+        @Override
+        public ClassLoader getClassLoader() {
+            return loader;
+        }
+
+        @Override
+        public Data getInstance() {
+            return this;
+        }
+    }
+}
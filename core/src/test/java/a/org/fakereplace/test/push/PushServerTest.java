@@ -0,0 +1,131 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.push;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import org.fakereplace.server.PushServer;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Pushes class files to a {@link PushServer} by path
+ */
+public class PushServerTest {
+
+    private static int port;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        final Thread thread = new Thread(new PushServer(port), "Fakereplace push test server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Test
+    public void testPushedClassIsReplaced() throws Exception {
+        PushRep rep = new PushRep();
+        Assert.assertEquals("Test setup wrong", 0, rep.value());
+
+        File file = writeReplacement(".class");
+        try {
+            Assert.assertEquals("OK 1 0 0", push(file.getAbsolutePath()));
+            Assert.assertEquals(1, rep.value());
+            Assert.assertEquals(1, new PushRep().value());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testOnlyClassFilesAreRead() throws Exception {
+        File file = writeReplacement(".txt");
+        try {
+            Assert.assertEquals("ERROR " + file.getAbsolutePath() + " is not a class file", push(file.getAbsolutePath()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testRelativePathIsRejected() throws Exception {
+        Assert.assertEquals("ERROR PushRep.class is not an absolute path", push("PushRep.class"));
+    }
+
+    /**
+     * writes PushRep1, renamed to PushRep, to a temporary file
+     */
+    private static File writeReplacement(String suffix) throws Exception {
+        ClassPool pool = new ClassPool();
+        pool.appendSystemPath();
+        CtClass nc = pool.get(PushRep1.class.getName());
+        nc.replaceClassName(PushRep1.class.getName(), PushRep.class.getName());
+        nc.setName(PushRep.class.getName());
+        File file = File.createTempFile("PushRep", suffix);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(nc.toBytecode());
+        }
+        return file;
+    }
+
+    /**
+     * sends a batch of one path and returns the reply
+     */
+    private static String push(String path) throws Exception {
+        try (Socket socket = connect()) {
+            Writer out = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            out.write(path + "\n\n");
+            out.flush();
+            return new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)).readLine();
+        }
+    }
+
+    /**
+     * the server binds on its own thread, so it may not be listening yet
+     */
+    private static Socket connect() throws Exception {
+        final long end = System.currentTimeMillis() + 10000;
+        for (; ; ) {
+            try {
+                return new Socket(InetAddress.getLoopbackAddress(), port);
+            } catch (ConnectException e) {
+                if (System.currentTimeMillis() > end) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+    }
+}
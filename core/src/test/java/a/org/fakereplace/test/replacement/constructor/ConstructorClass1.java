@@ -37,6 +37,10 @@ public class ConstructorClass1 {
         value = "e";
     }
 
+    public ConstructorClass1(Integer a) {
+        throw new IllegalStateException("constructor " + a);
+    }
+
     public ConstructorClass1(int i1, int i2, int i3, int i4, int i5, int i6) {
         value = "h";
     }
@@ -93,6 +93,30 @@ public class ConstructorTest {
         ConstructorClass inst = (ConstructorClass) con.newInstance(null, null);
     }
 
+    @Test
+    public void testPrivateConstructorAccessCheckIsRepeated() throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, InvocationTargetException {
+        Constructor<?> con = ConstructorClass.class.getDeclaredConstructor(Set.class);
+        for (int i = 0; i < 2; ++i) {
+            try {
+                con.newInstance((Object) null);
+                Assert.fail();
+            } catch (IllegalAccessException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void testAddedConstructorExceptionIsUnwrapped() throws SecurityException, NoSuchMethodException, IllegalArgumentException, InstantiationException, IllegalAccessException {
+        Constructor<?> con = ConstructorClass.class.getConstructor(Integer.class);
+        try {
+            con.newInstance(5);
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertEquals(IllegalStateException.class, e.getCause().getClass());
+            Assert.assertEquals("constructor 5", e.getCause().getMessage());
+        }
+    }
+
     @Test
     public void testVirtualConstrcutorGenericParameterTypeByReflection() throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
         Class<?> c = ConstructorClass.class;
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.replacement.hierarchy;
+
+import a.org.fakereplace.test.util.ClassReplacer;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Calls made through a subclass to methods that are declared on its superclass or on an interface must not be
+ * mistaken for calls to added methods, while calls to a method that really was added must be
+ */
+public class HierarchyTest {
+
+    @Test
+    public void testInheritedMethodsAreNotAdded() {
+        HierarchyChild child = new HierarchyChild();
+        HierarchyCaller caller = new HierarchyCaller();
+        Assert.assertEquals("parent interface", caller.call(child));
+
+        ClassReplacer replacer = new ClassReplacer();
+        replacer.queueClassForReplacement(HierarchyChild.class, HierarchyChild1.class);
+        replacer.queueClassForReplacement(HierarchyCaller.class, HierarchyCaller1.class);
+        replacer.replaceQueuedClasses();
+
+        Assert.assertEquals("parent interface added", caller.call(child));
+    }
+}
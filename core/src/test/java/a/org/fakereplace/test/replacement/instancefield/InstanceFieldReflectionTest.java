@@ -59,6 +59,18 @@ public class InstanceFieldReflectionTest {
         Assert.assertEquals(10, field.getLong(r));
     }
 
+    @Test
+    public void testWideningPrimitiveFieldByReflection() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
+        InstanceFieldReflection r = new InstanceFieldReflection();
+        Field field = InstanceFieldReflection.class.getDeclaredField("intValue");
+        Assert.assertEquals(0L, field.getLong(r));
+        field.set(r, (short) 5);
+        Assert.assertEquals(5, r.getIntValue());
+        Assert.assertEquals(5L, field.getLong(r));
+        Assert.assertEquals(5.0, field.getDouble(r), 0);
+        Assert.assertEquals(5, field.get(r));
+    }
+
     @Test
     public void testGettingInstanceFieldByReflection() throws SecurityException, NoSuchFieldException, IllegalArgumentException, IllegalAccessException {
         InstanceFieldReflection r = new InstanceFieldReflection();
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.replacement.referrer;
+
+import a.org.fakereplace.test.util.ClassReplacer;
+import org.fakereplace.classloading.ClassIdentifier;
+import org.fakereplace.transformation.ReferenceIndex;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Adds a static method to a class that hides the inherited one an already loaded class calls, the caller
+ * has to be retransformed to call the added method
+ */
+public class ReferrerTest {
+
+    @Test
+    public void testLoadedCallerIsRewritten() {
+        ReferrerCaller caller = new ReferrerCaller();
+        Assert.assertEquals(1, caller.call());
+
+        boolean indexed = false;
+        for (ClassIdentifier identifier : ReferenceIndex.getReferrers(ReferrerChild.class.getName())) {
+            indexed |= identifier.getClassName().equals(ReferrerCaller.class.getName()) && identifier.getLoader() == ReferrerCaller.class.getClassLoader();
+        }
+        Assert.assertTrue(indexed);
+        Assert.assertTrue(ReferenceIndex.getLoadedReferrers(ReferrerChild.class.getName()).contains(ReferrerCaller.class));
+
+        ClassReplacer replacer = new ClassReplacer();
+        replacer.queueClassForReplacement(ReferrerChild.class, ReferrerChild1.class);
+        replacer.replaceQueuedClasses();
+
+        Assert.assertEquals(2, caller.call());
+    }
+}
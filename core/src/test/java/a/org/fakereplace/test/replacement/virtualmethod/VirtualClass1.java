@@ -54,6 +54,14 @@ public class VirtualClass1 {
 
     }
 
+    void packageFunction() {
+
+    }
+
+    public void throwException(String message) {
+        throw new IllegalStateException(message);
+    }
+
     @Override
     public String toString() {
         return "VirtualChild1";
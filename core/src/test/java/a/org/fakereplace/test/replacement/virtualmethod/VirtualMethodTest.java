@@ -28,6 +28,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import a.org.fakereplace.test.replacement.virtualmethod.other.OtherPackageCaller;
 import a.org.fakereplace.test.util.ClassReplacer;
 import org.junit.Assert;
 import org.junit.BeforeClass;
@@ -208,6 +209,50 @@ public class VirtualMethodTest {
         Assert.assertTrue(!priv);
     }
 
+    @Test
+    public void testAddedMethodExceptionIsUnwrapped() throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException {
+        Method m = VirtualClass.class.getMethod("throwException", String.class);
+        try {
+            m.invoke(new VirtualClass(), "thrown");
+            Assert.fail();
+        } catch (InvocationTargetException e) {
+            Assert.assertEquals(IllegalStateException.class, e.getCause().getClass());
+            Assert.assertEquals("thrown", e.getCause().getMessage());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddedMethodWithWrongArgumentType() throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+        Method m = VirtualClass.class.getMethod("addValue", int.class);
+        m.invoke(new VirtualClass(), "one");
+    }
+
+    @Test
+    public void testPrivateAddedMethodAccessCheck() throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+        Method m = VirtualClass.class.getDeclaredMethod("privateFunction");
+        //the check must fail every time, not just the first
+        for (int i = 0; i < 2; ++i) {
+            try {
+                m.invoke(new VirtualClass());
+                Assert.fail();
+            } catch (IllegalAccessException expected) {
+            }
+        }
+        m.setAccessible(true);
+        m.invoke(new VirtualClass());
+    }
+
+    @Test
+    public void testAddedMethodAccessIsCheckedPerCaller() throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
+        Method m = VirtualClass.class.getDeclaredMethod("packageFunction");
+        m.invoke(new VirtualClass());
+        try {
+            OtherPackageCaller.invoke(m, new VirtualClass());
+            Assert.fail();
+        } catch (IllegalAccessException expected) {
+        }
+    }
+
     @Ignore
     @Test
     public void testToStringOverride() throws SecurityException, NoSuchMethodException, IllegalArgumentException, IllegalAccessException, InvocationTargetException {
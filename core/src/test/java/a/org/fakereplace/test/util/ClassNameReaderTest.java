@@ -0,0 +1,157 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.fakereplace.util.ClassNameReader;
+import org.fakereplace.util.FileReader;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassNameReaderTest {
+
+    @Test
+    public void testRealClasses() throws IOException {
+        for (Class<?> clazz : new Class<?>[]{ClassNameReaderTest.class, Constants.class, String.class, Long.class, Double.class, Math.class}) {
+            byte[] bytes = readClass(clazz);
+            Assert.assertEquals(clazz.getName(), ClassNameReader.readClassName(bytes, bytes.length));
+        }
+    }
+
+    /**
+     * the length can be shorter than the array, as the reader is used with reusable buffers
+     */
+    @Test
+    public void testLengthShorterThanBuffer() throws IOException {
+        byte[] bytes = readClass(Constants.class);
+        byte[] buffer = Arrays.copyOf(bytes, bytes.length + 100);
+        Assert.assertEquals(Constants.class.getName(), ClassNameReader.readClassName(buffer, bytes.length));
+    }
+
+    /**
+     * long and double constants take up two constant pool entries, these come before the class entry so the
+     * class is only found if they are counted properly
+     */
+    @Test
+    public void testWideConstantsBeforeClass() throws IOException {
+        byte[] bytes = buildClass(true);
+        Assert.assertEquals("a.b.Wide", ClassNameReader.readClassName(bytes, bytes.length));
+    }
+
+    @Test
+    public void testTruncated() throws IOException {
+        byte[] bytes = readClass(Constants.class);
+        for (int length = 0; length < bytes.length; ++length) {
+            String name = ClassNameReader.readClassName(Arrays.copyOf(bytes, length), length);
+            //the name can be read once the this_class entry has been reached
+            if (name != null) {
+                Assert.assertEquals(Constants.class.getName(), name);
+            }
+        }
+        Assert.assertNull(ClassNameReader.readClassName(bytes, 9));
+        Assert.assertNull(ClassNameReader.readClassName(bytes, 40));
+        byte[] built = buildClass(true);
+        for (int length = 0; length < built.length; ++length) {
+            Assert.assertNull(ClassNameReader.readClassName(Arrays.copyOf(built, length), length));
+        }
+    }
+
+    @Test
+    public void testInvalid() throws IOException {
+        byte[] text = "This is not a class file, it is just some text".getBytes(StandardCharsets.US_ASCII);
+        Assert.assertNull(ClassNameReader.readClassName(text, text.length));
+        Assert.assertNull(ClassNameReader.readClassName(new byte[0], 0));
+        byte[] zeros = new byte[64];
+        Assert.assertNull(ClassNameReader.readClassName(zeros, zeros.length));
+        //this_class points at a utf8 entry instead of a class entry
+        byte[] bytes = buildClass(false);
+        Assert.assertNull(ClassNameReader.readClassName(bytes, bytes.length));
+        //an unknown constant pool tag
+        bytes = buildClass(true);
+        bytes[10] = 99;
+        Assert.assertNull(ClassNameReader.readClassName(bytes, bytes.length));
+    }
+
+    private static byte[] readClass(Class<?> clazz) throws IOException {
+        try (InputStream in = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class")) {
+            return FileReader.readFileBytes(in);
+        }
+    }
+
+    /**
+     * Builds the start of a class file, up to the this_class entry, with every kind of constant before the class
+     *
+     * @param validThisClass if false this_class points to a utf8 entry
+     */
+    private static byte[] buildClass(boolean validThisClass) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0xCAFEBABE);
+        out.writeShort(0);
+        out.writeShort(52);
+        out.writeShort(15);
+        out.writeByte(5); //1 Long
+        out.writeLong(Long.MAX_VALUE);
+        out.writeByte(6); //3 Double
+        out.writeDouble(Math.PI);
+        out.writeByte(3); //5 Integer
+        out.writeInt(7);
+        out.writeByte(4); //6 Float
+        out.writeFloat(1.5f);
+        out.writeByte(1); //7 Utf8
+        out.writeUTF("()V");
+        out.writeByte(12); //8 NameAndType
+        out.writeShort(7);
+        out.writeShort(7);
+        out.writeByte(10); //9 Methodref
+        out.writeShort(13);
+        out.writeShort(8);
+        out.writeByte(15); //10 MethodHandle
+        out.writeByte(6);
+        out.writeShort(9);
+        out.writeByte(16); //11 MethodType
+        out.writeShort(7);
+        out.writeByte(18); //12 InvokeDynamic
+        out.writeShort(0);
+        out.writeShort(8);
+        out.writeByte(7); //13 Class
+        out.writeShort(14);
+        out.writeByte(1); //14 Utf8
+        out.writeUTF("a/b/Wide");
+        out.writeShort(0x21);
+        out.writeShort(validThisClass ? 13 : 14);
+        return bytes.toByteArray();
+    }
+
+    @SuppressWarnings("unused")
+    private static class Constants {
+        static final long LONG = 0x123456789ABCDEFL;
+        static final double DOUBLE = 1.0E300;
+        static final long OTHER_LONG = -5000000000L;
+
+        long compute(long value) {
+            return value * 3000000000L + (long) (DOUBLE * value);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.fakereplace.util.FingerprintTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FingerprintTableTest {
+
+    /**
+     * the capacity of a new table
+     */
+    private static final int CAPACITY = 64;
+
+    @Test
+    public void testPutGetRemove() {
+        FingerprintTable table = new FingerprintTable();
+        Assert.assertFalse(table.contains("a"));
+        Assert.assertEquals(-1, table.get("a", -1));
+        table.put("a", 1);
+        table.put("b", 2);
+        table.put("a", 3);
+        Assert.assertEquals(2, table.size());
+        Assert.assertTrue(table.contains("a"));
+        Assert.assertEquals(3, table.get("a", -1));
+        Assert.assertEquals(2, table.get("b", -1));
+        table.remove("a");
+        table.remove("c");
+        Assert.assertEquals(1, table.size());
+        Assert.assertFalse(table.contains("a"));
+        Assert.assertEquals(2, table.get("b", -1));
+    }
+
+    /**
+     * Fills the last two slots and the start of the table with one cluster, then removes entries from it. The
+     * entries after a removed one have to be shifted back across the end of the table.
+     */
+    @Test
+    public void testWrappedClusterRemoval() {
+        List<String> keys = new ArrayList<>();
+        keys.addAll(keysWithSlot(CAPACITY - 2, 3));
+        keys.addAll(keysWithSlot(CAPACITY - 1, 2));
+        keys.addAll(keysWithSlot(0, 2));
+        keys.addAll(keysWithSlot(1, 1));
+        for (int removed = 0; removed < keys.size(); ++removed) {
+            FingerprintTable table = new FingerprintTable();
+            for (int i = 0; i < keys.size(); ++i) {
+                table.put(keys.get(i), i);
+            }
+            table.remove(keys.get(removed));
+            Assert.assertEquals(keys.size() - 1, table.size());
+            for (int i = 0; i < keys.size(); ++i) {
+                if (i == removed) {
+                    Assert.assertFalse(table.contains(keys.get(i)));
+                } else {
+                    Assert.assertEquals(keys.get(i), i, table.get(keys.get(i), -1));
+                }
+            }
+            //the freed slot can be used again
+            table.put(keys.get(removed), 100);
+            Assert.assertEquals(100, table.get(keys.get(removed), -1));
+            Assert.assertEquals(keys.size(), table.size());
+        }
+    }
+
+    @Test
+    public void testAgainstHashMap() {
+        Random random = new Random(42);
+        FingerprintTable table = new FingerprintTable();
+        Map<String, Long> expected = new HashMap<>();
+        for (int i = 0; i < 20000; ++i) {
+            String key = "k" + random.nextInt(500);
+            if (random.nextInt(3) == 0) {
+                table.remove(key);
+                expected.remove(key);
+            } else {
+                long value = random.nextLong();
+                table.put(key, value);
+                expected.put(key, value);
+            }
+        }
+        Assert.assertEquals(expected.size(), table.size());
+        for (int i = 0; i < 500; ++i) {
+            String key = "k" + i;
+            Long value = expected.get(key);
+            Assert.assertEquals(value != null, table.contains(key));
+            if (value != null) {
+                Assert.assertEquals((long) value, table.get(key, 0));
+            }
+        }
+    }
+
+    /**
+     * finds keys whose home slot in a new table is the given slot, this must match the hash the table uses
+     */
+    private static List<String> keysWithSlot(int slot, int count) {
+        List<String> result = new ArrayList<>();
+        for (int i = 0; result.size() < count; ++i) {
+            String key = "key" + i;
+            int h = key.hashCode();
+            if (((h ^ (h >>> 16)) & (CAPACITY - 1)) == slot) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.watcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.fakereplace.util.WatchServiceFileSystemWatcher;
+import org.fakereplace.util.WatchServiceFileSystemWatcher.FileChangeEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks the directories that are polled rather than natively watched. The watcher does not have its own thread, so
+ * each test decides when it looks for changes.
+ */
+public class DirectoryPollerTest {
+
+    /**
+     * long enough for any poll to be due and any batch to be delivered
+     */
+    private static final long SETTLE_TIME = 30000;
+
+    private final List<FileChangeEvent> events = new ArrayList<>();
+    private File root;
+    private long now;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("fakereplace-poller").toFile();
+    }
+
+    @After
+    public void cleanup() {
+        delete(root);
+    }
+
+    @Test
+    public void testRecreatedDirectoryRoot() throws Exception {
+        File watched = new File(root, "classes");
+        File dir = new File(watched, "p");
+        File classFile = new File(dir, "A.class");
+        write(classFile, 1);
+        try (WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher(20000, 0)) {
+            watcher.watchPath(watched, events::addAll);
+            settle(watcher);
+            Assert.assertTrue(events.toString(), events.isEmpty());
+
+            delete(watched);
+            settle(watcher);
+            events.clear();
+
+            write(classFile, 2);
+            settle(watcher);
+            Assert.assertTrue("recreated file was not reported " + events, hasEvent(classFile, FileChangeEvent.Type.ADDED));
+
+            events.clear();
+            write(classFile, 3);
+            settle(watcher);
+            Assert.assertTrue("file in recreated directory was not reported " + events, hasEvent(classFile, FileChangeEvent.Type.MODIFIED));
+        }
+    }
+
+    @Test
+    public void testRecreatedArchiveRoot() throws Exception {
+        File archive = new File(root, "classes.jar");
+        write(archive, 1);
+        try (WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher(20000, 0)) {
+            watcher.watchPath(archive, events::addAll);
+            settle(watcher);
+            Assert.assertTrue(events.toString(), events.isEmpty());
+
+            Assert.assertTrue(archive.delete());
+            settle(watcher);
+            Assert.assertTrue("deleted archive was not reported " + events, hasEvent(archive, FileChangeEvent.Type.REMOVED));
+
+            events.clear();
+            write(archive, 2);
+            settle(watcher);
+            Assert.assertTrue("recreated archive was not reported " + events, hasEvent(archive, FileChangeEvent.Type.ADDED));
+        }
+    }
+
+    @Test
+    public void testPollingWhenRegistrationFails() throws Exception {
+        File dir = new File(root, "p");
+        File classFile = new File(dir, "A.class");
+        write(classFile, 1);
+        try (WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher(20000, 1024)) {
+            watcher.watchPath(root, events::addAll);
+            //a directory that does not exist can not be registered
+            watcher.watchDirectory(root, new File(root, "missing"));
+            watcher.watchDirectory(root, dir);
+            Assert.assertFalse(watcher.isWatchedNatively(dir));
+            settle(watcher);
+
+            write(classFile, 2);
+            settle(watcher);
+            Assert.assertTrue("polled file was not reported " + events, hasEvent(classFile, FileChangeEvent.Type.MODIFIED));
+        }
+    }
+
+    @Test
+    public void testPollingWhenWatchLimitReached() throws Exception {
+        File first = new File(root, "p");
+        File second = new File(root, "q");
+        File classFile = new File(second, "A.class");
+        write(new File(first, "A.class"), 1);
+        write(classFile, 1);
+        try (WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher(20000, 1)) {
+            watcher.watchPath(root, events::addAll);
+            watcher.watchDirectory(root, first);
+            watcher.watchDirectory(root, second);
+            Assert.assertTrue(watcher.isWatchedNatively(first));
+            Assert.assertFalse(watcher.isWatchedNatively(second));
+            settle(watcher);
+
+            write(classFile, 2);
+            settle(watcher);
+            Assert.assertTrue("polled file was not reported " + events, hasEvent(classFile, FileChangeEvent.Type.MODIFIED));
+        }
+    }
+
+    @Test
+    public void testPollBudget() throws Exception {
+        //a pass over the tree takes one poll per directory, so changes to directories that are not visited
+        //one after the other are found by different polls and end up in separate batches
+        Assert.assertEquals(2, changeTwoDirectories(10).size());
+        Assert.assertEquals(1, changeTwoDirectories(20000).size());
+    }
+
+    private List<List<FileChangeEvent>> changeTwoDirectories(int budget) throws Exception {
+        for (int i = 0; i < 5; ++i) {
+            for (int j = 0; j < 10; ++j) {
+                write(new File(root, "p" + i + "/A" + j + ".class"), 1);
+            }
+        }
+        final List<List<FileChangeEvent>> batches = new ArrayList<>();
+        try (WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher(budget, 0)) {
+            watcher.watchPath(root, changes -> batches.add(new ArrayList<>(changes)));
+            settle(watcher);
+            Assert.assertTrue(batches.toString(), batches.isEmpty());
+
+            write(new File(root, "p1/A0.class"), 2);
+            write(new File(root, "p3/A0.class"), 2);
+            settle(watcher);
+        }
+        int changes = 0;
+        for (List<FileChangeEvent> batch : batches) {
+            changes += batch.size();
+        }
+        Assert.assertEquals(batches.toString(), 2, changes);
+        return batches;
+    }
+
+    /**
+     * runs the watcher until every change has been reported
+     */
+    private void settle(WatchServiceFileSystemWatcher watcher) {
+        final long end = now + SETTLE_TIME;
+        while (now < end) {
+            now = watcher.tick(now);
+        }
+    }
+
+    private boolean hasEvent(File file, FileChangeEvent.Type type) {
+        for (FileChangeEvent event : events) {
+            if (event.getFile().equals(file) && event.getType() == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * writes a file whose size depends on the version, so it is seen as changed even within the same clock tick
+     */
+    private static void write(File file, int version) throws IOException {
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[version * 10]);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
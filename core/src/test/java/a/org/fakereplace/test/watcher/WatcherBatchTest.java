@@ -0,0 +1,143 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package a.org.fakereplace.test.watcher;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.fakereplace.util.WatchServiceFileSystemWatcher;
+import org.fakereplace.util.WatchServiceFileSystemWatcher.FileChangeEvent;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks how changes are grouped into batches, with the default quiet window of 100ms growing to 500ms and
+ * batches of at most 10 seconds. The watcher does not have its own thread, the test runs it with its own clock.
+ */
+public class WatcherBatchTest {
+
+    private static final long MAX_BATCH_TIME = 10000;
+
+    private static final long WAIT_TIME = 500;
+
+    private final List<List<FileChangeEvent>> batches = new ArrayList<>();
+    private File root;
+    private File dir;
+    private long now;
+    private int written;
+
+    @Before
+    public void setup() throws IOException {
+        root = Files.createTempDirectory("fakereplace-batch").toFile();
+        dir = new File(root, "p");
+        write();
+    }
+
+    @After
+    public void cleanup() {
+        delete(root);
+    }
+
+    @Test
+    public void testBurstIsOneBatch() throws Exception {
+        try (WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher(20000, 0)) {
+            watcher.watchPath(root, changes -> batches.add(new ArrayList<>(changes)));
+            settle(watcher);
+
+            write();
+            now = watcher.tick(now);
+            final List<Long> windows = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                write();
+                final long next = watcher.tick(now);
+                windows.add(next - now);
+                now = next;
+            }
+            Assert.assertTrue(batches.toString(), batches.isEmpty());
+            //the window doubles while changes keep arriving
+            Assert.assertEquals(Arrays.asList(200L, 400L, 500L, 500L), windows);
+
+            settle(watcher);
+            Assert.assertEquals(batches.toString(), 1, batches.size());
+            Assert.assertEquals(batches.toString(), 5, batches.get(0).size());
+        }
+    }
+
+    @Test
+    public void testEndlessStreamIsCapped() throws Exception {
+        try (WatchServiceFileSystemWatcher watcher = new WatchServiceFileSystemWatcher(20000, 0)) {
+            watcher.watchPath(root, changes -> batches.add(new ArrayList<>(changes)));
+            settle(watcher);
+
+            write();
+            now = watcher.tick(now);
+            final long start = now;
+            while (batches.isEmpty()) {
+                Assert.assertTrue("batch was not delivered at " + (now - start), now - start <= MAX_BATCH_TIME + WAIT_TIME);
+                write();
+                now = watcher.tick(now);
+            }
+            Assert.assertTrue("batch was delivered early at " + (now - start), now - start > MAX_BATCH_TIME - WAIT_TIME);
+            final int delivered = batches.get(0).size();
+
+            //the changes that keep coming are delivered in the next batch
+            write();
+            settle(watcher);
+            Assert.assertEquals(batches.toString(), 2, batches.size());
+            Assert.assertEquals(written - 1, delivered + batches.get(1).size());
+        }
+    }
+
+    /**
+     * runs the watcher until every change has been reported
+     */
+    private void settle(WatchServiceFileSystemWatcher watcher) {
+        final long end = now + 3 * MAX_BATCH_TIME;
+        while (now < end) {
+            now = watcher.tick(now);
+        }
+    }
+
+    /**
+     * adds another file to the directory
+     */
+    private void write() throws IOException {
+        File file = new File(dir, "A" + written++ + ".class");
+        file.getParentFile().mkdirs();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(new byte[10]);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -19,11 +19,9 @@ package org.fakereplace.maven;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import org.apache.maven.plugin.AbstractMojo;
@@ -31,11 +29,17 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.project.MavenProject;
 import org.fakereplace.client.ClassData;
-import org.fakereplace.client.ContentSource;
+import org.fakereplace.client.ClientIndex;
 import org.fakereplace.client.FakeReplaceClient;
 import org.fakereplace.client.ResourceData;
+import org.fakereplace.client.UpdateReport;
 
 /**
+ * Pushes the classes and resources that have changed since the last successful push to the agent.
+ * <p>
+ * What was pushed is kept in a {@link ClientIndex} in the build directory, so unchanged parts of the
+ * output directory and artifact do not have to be listed or read again. Several agents can be updated at once.
+ *
  * @author Stuart Douglas
  * @goal fakereplace
  */
@@ -47,6 +51,17 @@ public class FakereplaceMojo extends AbstractMojo {
      */
     private String path;
 
+    /**
+     * @parameter expression="${project.build.directory}/fakereplace-client.index"
+     */
+    private String indexFile;
+
+    /**
+     * The agents to update, as a comma separated list of host:port. They are all updated at once.
+     *
+     * @parameter expression="${fakereplace.agents}" default-value="localhost:6555"
+     */
+    private String agents;
 
     /**
      * @parameter default-value="${project}"
@@ -60,19 +75,39 @@ public class FakereplaceMojo extends AbstractMojo {
         if(project.getArtifact() == null || project.getArtifact().getFile() == null) {
             throw new IllegalStateException("You must run mvn package before the fakereplace plugin runs, e.g. mvn package fakereplace:fakereplace");
         }
+        final List<String> agentList = new ArrayList<String>();
+        for (String agent : agents.split(",")) {
+            if (!agent.trim().isEmpty()) {
+                agentList.add(agent.trim());
+            }
+        }
+        if (agentList.isEmpty()) {
+            throw new MojoFailureException("No agents to update, fakereplace.agents must list at least one host:port");
+        }
         final String fileName = project.getArtifact().getFile().getName();
         ZipFile zipFile = null;
         try {
             zipFile = new ZipFile(project.getArtifact().getFile());
-            final File file = new File(path);
-            final Map<String, ClassData> classes = new HashMap<String, ClassData>();
-            final Map<String, ResourceData> resources = new HashMap<String, ResourceData>();
-            handleClassesDirectory(file, file, classes);
-
-
-            handleArtifact(zipFile, resources);
-
-            FakeReplaceClient.run(fileName, classes, resources);
+            final ClientIndex index = ClientIndex.load(new File(indexFile));
+            final Map<String, ClassData> classes = index.findChangedClasses(new File(path));
+            final Map<String, ResourceData> resources = index.findChangedResources(zipFile);
+            if (classes.isEmpty() && resources.isEmpty()) {
+                getLog().info("No changes since the last fakereplace run");
+                return;
+            }
+            final UpdateReport report = FakeReplaceClient.run(agentList, fileName, classes, resources);
+            for (UpdateReport.AgentResult result : report.getResults()) {
+                if (result.isSucceeded()) {
+                    getLog().info(result.toString());
+                } else {
+                    getLog().error(result.toString());
+                }
+            }
+            //if any agent failed everything is checked again next time, the agents that
+            //succeeded will not ask for it again
+            if (report.isSucceeded()) {
+                index.save();
+            }
 
         } catch (Throwable t) {
             getLog().error("Error running fakereplace: ", t);
@@ -86,43 +121,4 @@ public class FakereplaceMojo extends AbstractMojo {
             }
         }
     }
-
-    private void handleArtifact(final ZipFile zipFile, final Map<String, ResourceData> resources) {
-        Enumeration<? extends ZipEntry> entries = zipFile.entries();
-        while (entries.hasMoreElements()) {
-            final ZipEntry entry = entries.nextElement();
-            if (!entry.isDirectory()) {
-                resources.put(entry.getName(), new ResourceData(entry.getName(), entry.getTime(), new ContentSource() {
-                    @Override
-                    public byte[] getData() throws IOException {
-                        final InputStream stream = zipFile.getInputStream(entry);
-                        try {
-                            return Util.getBytesFromStream(stream);
-                        } finally {
-                            stream.close();
-                        }
-                    }
-                }));
-            }
-        }
-    }
-
-    private void handleClassesDirectory(File base, File dir, Map<String, ClassData> classes) {
-        for (final File file : dir.listFiles()) {
-            if (file.isDirectory()) {
-                handleClassesDirectory(base, file, classes);
-            } else if (file.getName().endsWith(".class")) {
-                final String relFile = file.getAbsolutePath().substring(base.getAbsolutePath().length() + 1);
-                final String className = relFile.substring(0, relFile.length() - ".class".length()).replace("/", ".");
-                classes.put(className, new ClassData(className, file.lastModified(), new ContentSource() {
-                    @Override
-                    public byte[] getData() throws IOException {
-                        return Util.getBytesFromFile(file);
-                    }
-                }));
-            }
-        }
-    }
-
-
 }
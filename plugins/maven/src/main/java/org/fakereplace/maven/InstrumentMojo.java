@@ -0,0 +1,160 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.project.MavenProject;
+import org.fakereplace.core.PreInstrumenter;
+
+/**
+ * Instruments the classes in the output directory at build time, the same way the agent would when they are
+ * loaded. The agent recognises these classes and does not rewrite them again, which makes startup faster.
+ * <p>
+ * The output directory itself is not changed, so tests and packaged artifacts still use the plain classes. The
+ * instrumented classes, along with copies of everything else in the output directory, are written to
+ * ${project.build.directory}/fakereplace-classes, which should be used in place of the output directory when
+ * running with the agent. Instrumented classes must not be loaded without the agent.
+ * <p>
+ * Only classes that have changed since they were last written are instrumented again, and files that have been
+ * removed from the output directory are removed as well. Classes that cannot be instrumented, for example because
+ * a type they use is not on the compile class path, are copied as they are and left for the agent.
+ *
+ * @author Stuart Douglas
+ * @goal instrument
+ * @phase process-classes
+ * @requiresDependencyResolution compile
+ */
+public class InstrumentMojo extends AbstractMojo {
+
+    /**
+     * @parameter expression="${project.build.outputDirectory}"
+     */
+    private String path;
+
+    /**
+     * The directory the instrumented classes are written to
+     *
+     * @parameter expression="${fakereplace.instrumentedDirectory}" default-value="${project.build.directory}/fakereplace-classes"
+     */
+    private String outputDirectory;
+
+    /**
+     * @parameter default-value="${project}"
+     * @readonly
+     * @required
+     */
+    private MavenProject project;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        final File classes = new File(path);
+        if (!classes.isDirectory()) {
+            return;
+        }
+        final File output = new File(outputDirectory);
+        if (output.getAbsoluteFile().equals(classes.getAbsoluteFile())) {
+            throw new MojoFailureException("The instrumented classes cannot be written to the output directory " + classes);
+        }
+        final List<URL> classPath = new ArrayList<URL>();
+        try {
+            classPath.add(classes.toURI().toURL());
+            for (Object element : project.getCompileClasspathElements()) {
+                classPath.add(new File((String) element).toURI().toURL());
+            }
+        } catch (MalformedURLException | DependencyResolutionRequiredException e) {
+            throw new MojoExecutionException("Could not build the class path", e);
+        }
+        try (URLClassLoader loader = new URLClassLoader(classPath.toArray(new URL[classPath.size()]), null)) {
+            final PreInstrumenter instrumenter = new PreInstrumenter(loader);
+            final int[] count = new int[1];
+            instrumentDirectory(instrumenter, classes, output, count);
+            removeStale(classes, output);
+            getLog().info("Fakereplace instrumented " + count[0] + " classes into " + output);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Could not instrument " + classes, e);
+        }
+    }
+
+    private void instrumentDirectory(final PreInstrumenter instrumenter, final File dir, final File target, final int[] count) throws IOException {
+        final File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        if (!target.isDirectory() && !target.mkdirs()) {
+            throw new IOException("Could not create " + target);
+        }
+        for (final File file : files) {
+            final File targetFile = new File(target, file.getName());
+            if (file.isDirectory()) {
+                instrumentDirectory(instrumenter, file, targetFile, count);
+            } else if (targetFile.isFile() && targetFile.lastModified() >= file.lastModified()) {
+                //not changed since it was last written
+                continue;
+            } else if (file.getName().endsWith(".class")) {
+                final byte[] original = Util.getBytesFromFile(file);
+                byte[] instrumented;
+                try {
+                    instrumented = instrumenter.instrument(original);
+                } catch (IOException | RuntimeException e) {
+                    getLog().warn("Could not instrument " + file + ", it will be instrumented when it is loaded: " + e);
+                    instrumented = null;
+                }
+                if (instrumented != null) {
+                    count[0]++;
+                }
+                Files.write(targetFile.toPath(), instrumented != null ? instrumented : original);
+            } else {
+                Files.copy(file.toPath(), targetFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    /**
+     * removes the files that are no longer in the output directory
+     */
+    private static void removeStale(final File dir, final File target) throws IOException {
+        final File[] files = target.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final File source = new File(dir, file.getName());
+            if (file.isDirectory()) {
+                removeStale(source, file);
+                if (!source.isDirectory() && !file.delete()) {
+                    throw new IOException("Could not remove " + file);
+                }
+            } else if (!source.isFile() && !file.delete()) {
+                throw new IOException("Could not remove " + file);
+            }
+        }
+    }
+}
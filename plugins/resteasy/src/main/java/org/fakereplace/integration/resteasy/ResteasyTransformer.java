@@ -20,6 +20,8 @@ package org.fakereplace.integration.resteasy;
 import java.lang.instrument.IllegalClassFormatException;
 import java.lang.reflect.Modifier;
 import java.security.ProtectionDomain;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -140,4 +142,9 @@ public class ResteasyTransformer implements FakereplaceTransformer {
         }
         return false;
     }
+
+    @Override
+    public Set<String> getTransformedClassNames() {
+        return new HashSet<String>(Arrays.asList(ResteasyExtension.FILTER_DISPATCHER, ResteasyExtension.SERVLET_DISPATCHER));
+    }
 }
@@ -19,6 +19,7 @@ package org.fakereplace.integration.weld;
 
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -95,4 +96,9 @@ public class WeldClassTransformer implements FakereplaceTransformer {
         }
         return false;
     }
+
+    @Override
+    public Set<String> getTransformedClassNames() {
+        return Collections.singleton(ORG_JBOSS_WELD_BEAN_PROXY_PROXY_FACTORY);
+    }
 }
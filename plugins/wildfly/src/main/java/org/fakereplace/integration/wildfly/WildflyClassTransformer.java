@@ -29,6 +29,7 @@ import org.fakereplace.transformation.FakereplaceTransformer;
 
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -62,4 +63,9 @@ public class WildflyClassTransformer implements FakereplaceTransformer {
 
         return true;
     }
+
+    @Override
+    public Set<String> getTransformedClassNames() {
+        return Collections.singleton("org.wildfly.extension.undertow.deployment.UndertowDeploymentInfoService");
+    }
 }
@@ -18,6 +18,8 @@ package org.fakereplace.integration.wildfly;
 
 import org.fakereplace.api.environment.ChangedClasses;
 import org.fakereplace.api.environment.Environment;
+import org.fakereplace.api.environment.FileResourceUpdate;
+import org.fakereplace.api.environment.ResourceUpdate;
 import org.fakereplace.core.DefaultEnvironment;
 import org.fakereplace.logging.Logger;
 import org.jboss.as.server.CurrentServiceContainer;
@@ -25,13 +27,13 @@ import org.jboss.as.server.deployment.Attachments;
 import org.jboss.as.server.deployment.DeploymentUnit;
 import org.jboss.as.server.deployment.Services;
 import org.jboss.as.server.deployment.module.ResourceRoot;
+import org.jboss.modules.Module;
 import org.jboss.modules.ModuleClassLoader;
 import org.jboss.modules.ModuleIdentifier;
 import org.jboss.msc.service.ServiceController;
 import org.jboss.msc.service.ServiceName;
 import org.jboss.vfs.VirtualFile;
 
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.URL;
 import java.net.URLConnection;
@@ -127,6 +129,49 @@ public class WildflyEnvironment implements Environment {
         return new ChangedClasses(ret, newClasses, loader);
     }
 
+    @Override
+    public ChangedClasses getClasses(final String deploymentName, final Set<String> classNames) {
+        ServiceController<DeploymentUnit> deploymentService = deploymentService(deploymentName);
+        if (deploymentService == null) {
+            log.error("Could not find deployment " + deploymentName);
+            return ChangedClasses.EMPTY;
+        }
+        final ModuleClassLoader loader = deploymentService.getValue().getAttachment(Attachments.MODULE).getClassLoader();
+        if (loader == null) {
+            return ChangedClasses.EMPTY;
+        }
+        final Set<Class<?>> ret = new HashSet<Class<?>>();
+        final Set<String> newClasses = new HashSet<String>();
+        for (String className : classNames) {
+            if (loader.getResource(className.replace(".", "/") + ".class") == null) {
+                newClasses.add(className);
+                continue;
+            }
+            try {
+                ret.add(loader.loadClass(className));
+            } catch (ClassNotFoundException e) {
+                log.debug("Could not load class " + className, e);
+            }
+        }
+        return new ChangedClasses(ret, newClasses, loader);
+    }
+
+    @Override
+    public Set<String> getResources(final String deploymentName, final Set<String> resourceNames) {
+        ServiceController<DeploymentUnit> deploymentService = deploymentService(deploymentName);
+        if (deploymentService == null) {
+            return Collections.emptySet();
+        }
+        final ResourceRoot root = deploymentService.getValue().getAttachment(Attachments.DEPLOYMENT_ROOT);
+        final Set<String> resources = new HashSet<String>();
+        for (String name : resourceNames) {
+            if (root.getRoot().getChild(name).exists()) {
+                resources.add(name);
+            }
+        }
+        return resources;
+    }
+
     @Override
     public Set<String> getUpdatedResources(final String deploymentName, final Map<String, Long> updatedResources) {
         ServiceController<DeploymentUnit> deploymentService = deploymentService(deploymentName);
@@ -174,32 +219,53 @@ public class WildflyEnvironment implements Environment {
 
     @Override
     public void updateResource(final String archiveName, final Map<String, byte[]> replacedResources) {
+        final VirtualFile root = getDeploymentRoot(archiveName);
+        if (root == null) {
+            return;
+        }
+        for (final Map.Entry<String, byte[]> entry : replacedResources.entrySet()) {
+            try (ResourceUpdate update = new FileResourceUpdate(root.getChild(entry.getKey()).getPhysicalFile())) {
+                update.getOutputStream().write(entry.getValue());
+                update.commit();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public ResourceUpdate startResourceUpdate(final String archiveName, final String resource) throws IOException {
+        final VirtualFile root = getDeploymentRoot(archiveName);
+        if (root == null) {
+            return Environment.super.startResourceUpdate(archiveName, resource);
+        }
+        return new FileResourceUpdate(root.getChild(resource).getPhysicalFile());
+    }
+
+    /**
+     * @return the root that the resources of the deployment are served from, or null if the deployment cannot be found
+     */
+    private VirtualFile getDeploymentRoot(final String archiveName) {
         ServiceController<DeploymentUnit> deploymentService = deploymentService(archiveName);
         if (deploymentService == null) {
-            return;
+            return null;
         }
         final ModuleClassLoader loader = deploymentService.getValue().getAttachment(Attachments.MODULE).getClassLoader();
         if (loader == null) {
-            return;
+            return null;
         }
-
         final DeploymentUnit deploymentUnit = deploymentService.getValue();
-        final ResourceRoot root = deploymentUnit.getAttachment(Attachments.DEPLOYMENT_ROOT);
+        return deploymentUnit.getAttachment(Attachments.DEPLOYMENT_ROOT).getRoot();
+    }
 
-        for (final Map.Entry<String, byte[]> entry : replacedResources.entrySet()) {
-            final VirtualFile file = root.getRoot().getChild(entry.getKey());
-            try {
-                final FileOutputStream stream = new FileOutputStream(file.getPhysicalFile(), false);
-                try {
-                    stream.write(entry.getValue());
-                    stream.flush();
-                } finally {
-                    stream.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+    @Override
+    public ClassLoader getClassLoader(final String deploymentName, final String className) {
+        ServiceController<DeploymentUnit> deploymentService = deploymentService(deploymentName);
+        if (deploymentService == null) {
+            return null;
         }
+        final Module module = deploymentService.getValue().getAttachment(Attachments.MODULE);
+        return module == null ? null : module.getClassLoader();
     }
 
     private ModuleIdentifier getModuleIdentifier(final ServiceController<DeploymentUnit> deploymentArchive) {
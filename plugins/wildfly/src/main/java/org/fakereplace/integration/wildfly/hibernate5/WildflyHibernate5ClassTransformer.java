@@ -30,6 +30,7 @@ import org.fakereplace.transformation.FakereplaceTransformer;
 
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
@@ -91,4 +92,9 @@ public class WildflyHibernate5ClassTransformer implements FakereplaceTransformer
         }
         method.getCodeAttribute().computeMaxStack();
     }
+
+    @Override
+    public Set<String> getTransformedClassNames() {
+        return Collections.singleton("org.jboss.as.jpa.service.PersistenceUnitServiceImpl");
+    }
 }
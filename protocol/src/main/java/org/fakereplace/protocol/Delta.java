@@ -0,0 +1,286 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.protocol;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Block based deltas, that let the client send just the parts of a class or resource that have changed
+ * since the version the agent already has.
+ * <p>
+ * This works the same way as rsync. The agent sends a signature of its version, which is a weak rolling
+ * checksum and a strong {@link Fingerprint} of every whole block. The client scans the new content one byte at
+ * a time, and wherever the weak checksum and then the fingerprint match a block it sends a copy of that block,
+ * everything else is sent as literal bytes. The agent rebuilds the new version from these, and checks it against
+ * the fingerprint the client sent.
+ *
+ * @author Stuart Douglas
+ */
+public final class Delta {
+
+    /**
+     * entries smaller than this are always sent in full
+     */
+    public static final int MIN_SIZE = 4096;
+
+    /**
+     * the content of entries larger than this is not kept, so they are always sent in full
+     */
+    public static final int MAX_SIZE = 1024 * 1024;
+
+    static final int OP_LITERAL = 0;
+    static final int OP_COPY = 1;
+    static final int OP_END = 2;
+
+    private static final int MIN_BLOCK_SIZE = 256;
+    private static final int MAX_BLOCK_SIZE = 8192;
+
+    private Delta() {
+
+    }
+
+    /**
+     * the block size used for a base of the given length, which is roughly its square root
+     */
+    static int blockSize(int length) {
+        int size = Integer.highestOneBit((int) Math.sqrt(length));
+        return Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, size));
+    }
+
+    /**
+     * Writes the signature of a base version, the block size followed by the weak and strong checksum of each whole block
+     */
+    public static void writeSignature(Frames.Payload payload, byte[] base) throws IOException {
+        final int blockSize = blockSize(base.length);
+        final int blocks = base.length / blockSize;
+        payload.writeInt(blockSize);
+        payload.writeInt(blocks);
+        for (int i = 0; i < blocks; ++i) {
+            payload.writeInt(weakChecksum(base, i * blockSize, blockSize));
+            payload.writeLong(Fingerprint.of(base, i * blockSize, blockSize));
+        }
+    }
+
+    /**
+     * Rebuilds the new version from the base and the operations in the frame
+     *
+     * @throws IOException if the frame is invalid or the result does not match the fingerprint the client sent
+     */
+    public static byte[] apply(byte[] base, Frames.Frame frame) throws IOException {
+        final long fingerprint = frame.readLong();
+        final int length = frame.readInt();
+        //the new version could not have been sent in full if it was larger than a frame
+        if (length < 0 || length > Frames.MAX_FRAME_SIZE) {
+            throw new IOException("Invalid delta length " + length);
+        }
+        final int blockSize = blockSize(base.length);
+        final int blocks = base.length / blockSize;
+        final byte[] result = new byte[length];
+        int pos = 0;
+        for (int op = frame.readUnsignedByte(); op != OP_END; op = frame.readUnsignedByte()) {
+            final int count;
+            if (op == OP_LITERAL) {
+                count = frame.readInt();
+                checkSpace(result, pos, count);
+                frame.readFully(result, pos, count);
+            } else if (op == OP_COPY) {
+                final int block = frame.readInt();
+                final int blockCount = frame.readInt();
+                if (block < 0 || blockCount < 0 || (long) block + blockCount > blocks) {
+                    throw new IOException("Invalid delta block reference " + block);
+                }
+                checkSpace(result, pos, (long) blockCount * blockSize);
+                count = blockCount * blockSize;
+                System.arraycopy(base, block * blockSize, result, pos, count);
+            } else {
+                throw new IOException("Invalid delta operation " + op);
+            }
+            pos += count;
+        }
+        if (pos != length || Fingerprint.of(result) != fingerprint) {
+            throw new IOException("Delta does not match the fingerprint of the new version");
+        }
+        return result;
+    }
+
+    private static void checkSpace(byte[] result, int pos, long count) throws IOException {
+        if (count < 0 || pos + count > result.length) {
+            throw new IOException("Delta is longer than the new version");
+        }
+    }
+
+    /**
+     * Writes the delta of the data against the signature to the payload, after the name
+     *
+     * @return the payload, or null if the delta would not be noticeably smaller than the data
+     */
+    public static Frames.Payload encode(final String name, final byte[] data, final Signature signature) throws IOException {
+        final int blockSize = signature.blockSize;
+        final Frames.Payload payload = new Frames.Payload();
+        payload.writeString(name);
+        payload.writeLong(Fingerprint.of(data));
+        payload.writeInt(data.length);
+
+        int literalStart = 0;
+        int copyStart = -1;
+        int copyCount = 0;
+        int pos = 0;
+        int weak = data.length >= blockSize ? weakChecksum(data, 0, blockSize) : 0;
+        while (pos + blockSize <= data.length) {
+            final int block = signature.find(weak, data, pos);
+            if (block >= 0) {
+                if (pos > literalStart) {
+                    copyCount = writeCopy(payload, copyStart, copyCount);
+                    writeLiteral(payload, data, literalStart, pos);
+                }
+                if (copyCount > 0 && block == copyStart + copyCount) {
+                    copyCount++;
+                } else {
+                    writeCopy(payload, copyStart, copyCount);
+                    copyStart = block;
+                    copyCount = 1;
+                }
+                pos += blockSize;
+                literalStart = pos;
+                if (pos + blockSize <= data.length) {
+                    weak = weakChecksum(data, pos, blockSize);
+                }
+            } else {
+                if (pos + blockSize < data.length) {
+                    weak = roll(weak, data[pos] & 0xFF, data[pos + blockSize] & 0xFF, blockSize);
+                }
+                pos++;
+            }
+            if (payload.size() + pos - literalStart > data.length - data.length / 8) {
+                return null;
+            }
+        }
+        writeCopy(payload, copyStart, copyCount);
+        if (literalStart < data.length) {
+            writeLiteral(payload, data, literalStart, data.length);
+        }
+        payload.writeByte(OP_END);
+        if (payload.size() > data.length - data.length / 8) {
+            return null;
+        }
+        return payload;
+    }
+
+    private static int writeCopy(final Frames.Payload payload, final int start, final int count) throws IOException {
+        if (count > 0) {
+            payload.writeByte(OP_COPY);
+            payload.writeInt(start);
+            payload.writeInt(count);
+        }
+        return 0;
+    }
+
+    private static void writeLiteral(final Frames.Payload payload, final byte[] data, final int start, final int end) throws IOException {
+        payload.writeByte(OP_LITERAL);
+        payload.writeInt(end - start);
+        payload.write(data, start, end - start);
+    }
+
+    /**
+     * The rsync weak checksum of a block, which can be rolled along the data one byte at a time
+     */
+    static int weakChecksum(byte[] data, int offset, int length) {
+        int a = 0;
+        int b = 0;
+        for (int i = 0; i < length; ++i) {
+            a += data[offset + i] & 0xFF;
+            b += (length - i) * (data[offset + i] & 0xFF);
+        }
+        return (a & 0xFFFF) | (b << 16);
+    }
+
+    /**
+     * moves the checksum of a block along by one byte
+     */
+    private static int roll(final int weak, final int out, final int in, final int blockSize) {
+        final int a = ((weak & 0xFFFF) - out + in) & 0xFFFF;
+        final int b = ((weak >>> 16) - blockSize * out + a) & 0xFFFF;
+        return a | (b << 16);
+    }
+
+    /**
+     * The signatures the agent sent for the classes and resources it wants, keyed by name
+     */
+    public static Map<String, Signature> readSignatures(final Frames.Frame frame) throws IOException {
+        final Map<String, Signature> result = new HashMap<String, Signature>();
+        int count = frame.readInt();
+        for (int i = 0; i < count; ++i) {
+            final String name = frame.readString();
+            final int blockSize = frame.readInt();
+            final int blocks = frame.readInt();
+            //every block takes 12 bytes of the frame, which bounds what is allocated here
+            if (blockSize <= 0 || blocks < 0 || blocks > frame.available() / 12) {
+                throw new IOException("Invalid signature for " + name);
+            }
+            final int[] weak = new int[blocks];
+            final long[] strong = new long[blocks];
+            for (int j = 0; j < blocks; ++j) {
+                weak[j] = frame.readInt();
+                strong[j] = frame.readLong();
+            }
+            result.put(name, new Signature(blockSize, weak, strong));
+        }
+        return result;
+    }
+
+    public static final class Signature {
+        private final int blockSize;
+        private final long[] strong;
+        private final Map<Integer, int[]> blocksByWeak = new HashMap<Integer, int[]>();
+
+        private Signature(int blockSize, int[] weak, long[] strong) {
+            this.blockSize = blockSize;
+            this.strong = strong;
+            for (int i = 0; i < weak.length; ++i) {
+                final int[] existing = blocksByWeak.get(weak[i]);
+                if (existing == null) {
+                    blocksByWeak.put(weak[i], new int[]{i});
+                } else {
+                    final int[] blocks = new int[existing.length + 1];
+                    System.arraycopy(existing, 0, blocks, 0, existing.length);
+                    blocks[existing.length] = i;
+                    blocksByWeak.put(weak[i], blocks);
+                }
+            }
+        }
+
+        /**
+         * @return the block that matches the data at the given position, or -1
+         */
+        int find(final int weakChecksum, final byte[] data, final int pos) {
+            final int[] blocks = blocksByWeak.get(weakChecksum);
+            if (blocks == null) {
+                return -1;
+            }
+            final long fingerprint = Fingerprint.of(data, pos, blockSize);
+            for (int block : blocks) {
+                if (strong[block] == fingerprint) {
+                    return block;
+                }
+            }
+            return -1;
+        }
+    }
+}
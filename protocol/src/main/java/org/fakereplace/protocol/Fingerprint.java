@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.protocol;
+
+/**
+ * Computes 64 bit content fingerprints that are used to tell if a class or resource has
+ * changed. The client and the agent both use these, so they must compute the same values.
+ * This uses the xxHash64 algorithm, which is much cheaper than a cryptographic hash and
+ * does not need to allocate anything.
+ *
+ * @author Stuart Douglas
+ */
+public final class Fingerprint {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private Fingerprint() {
+
+    }
+
+    public static long of(byte[] data) {
+        return of(data, 0, data.length);
+    }
+
+    public static long of(byte[] data, int offset, int length) {
+        final int end = offset + length;
+        int i = offset;
+        long hash;
+        if (length >= 32) {
+            long v1 = PRIME1 + PRIME2;
+            long v2 = PRIME2;
+            long v3 = 0;
+            long v4 = -PRIME1;
+            final int limit = end - 32;
+            do {
+                v1 = round(v1, readLong(data, i));
+                v2 = round(v2, readLong(data, i + 8));
+                v3 = round(v3, readLong(data, i + 16));
+                v4 = round(v4, readLong(data, i + 24));
+                i += 32;
+            } while (i <= limit);
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = PRIME5;
+        }
+        hash += length;
+        while (i + 8 <= end) {
+            hash ^= round(0, readLong(data, i));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            i += 8;
+        }
+        if (i + 4 <= end) {
+            hash ^= (readInt(data, i) & 0xFFFFFFFFL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            i += 4;
+        }
+        while (i < end) {
+            hash ^= (data[i] & 0xFF) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+            ++i;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long merge(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+
+    private static long readLong(byte[] data, int i) {
+        return (data[i] & 0xFFL)
+                | (data[i + 1] & 0xFFL) << 8
+                | (data[i + 2] & 0xFFL) << 16
+                | (data[i + 3] & 0xFFL) << 24
+                | (data[i + 4] & 0xFFL) << 32
+                | (data[i + 5] & 0xFFL) << 40
+                | (data[i + 6] & 0xFFL) << 48
+                | (data[i + 7] & 0xFFL) << 56;
+    }
+
+    private static int readInt(byte[] data, int i) {
+        return (data[i] & 0xFF)
+                | (data[i + 1] & 0xFF) << 8
+                | (data[i + 2] & 0xFF) << 16
+                | (data[i + 3] & 0xFF) << 24;
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The length prefixed frames used by version 2 of the fakereplace protocol.
+ * <p>
+ * Each frame is a type byte, a flags byte and the payload length as an int, followed by the payload.
+ * If the deflated flag is set the payload is the uncompressed length followed by the deflated data.
+ * Strings in payloads are written as a byte count followed by UTF-8 bytes. Frames larger than the
+ * fakereplace.max-frame-size system property, either as sent or once inflated, are rejected.
+ *
+ * @author Stuart Douglas
+ */
+public final class Frames implements AutoCloseable {
+
+    /**
+     * the magic number that starts a version 2 connection, version 1 connections start with 0xCAFEDEAF
+     */
+    public static final int MAGIC = 0xCAFEDEB0;
+    public static final int VERSION = 2;
+
+    /**
+     * compression flag sent in the handshake
+     */
+    public static final int COMPRESSION_DEFLATE = 1;
+
+    /**
+     * flag sent in the handshake if the side supports delta encoded classes and resources
+     */
+    public static final int DELTA = 2;
+
+    /**
+     * flag sent in the handshake if the client wants STATUS frames with the progress of each round
+     */
+    public static final int STATUS_REPORTS = 4;
+
+    public static final byte INDEX = 1;
+    public static final byte UPDATES = 2;
+    public static final byte CLASS = 3;
+    public static final byte RESOURCE = 4;
+    public static final byte END = 5;
+    public static final byte RESULT = 6;
+    public static final byte SIGNATURES = 7;
+    public static final byte CLASS_DELTA = 8;
+    public static final byte RESOURCE_DELTA = 9;
+    /**
+     * a chunk of a large resource, the chunks of a resource are appended in the order they are sent
+     */
+    public static final byte RESOURCE_PART = 10;
+    public static final byte STATUS = 11;
+
+    private static final int FLAG_DEFLATED = 1;
+
+    /**
+     * payloads smaller than this are never compressed
+     */
+    private static final int COMPRESSION_THRESHOLD = 256;
+
+    /**
+     * the largest frame that is accepted, before and after it is inflated, so a bad connection cannot use up the heap
+     */
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("fakereplace.max-frame-size", 64 * 1024 * 1024);
+
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private boolean deflate;
+    private Deflater deflater;
+    private Inflater inflater;
+    private byte[] compressed = new byte[8192];
+
+    public Frames(DataInputStream input, DataOutputStream output) {
+        this.input = input;
+        this.output = output;
+    }
+
+    public void setDeflate(boolean deflate) {
+        this.deflate = deflate;
+    }
+
+    public void write(byte type, Payload payload) throws IOException {
+        final byte[] data = payload.buffer();
+        final int length = payload.size();
+        if (deflate && length > COMPRESSION_THRESHOLD) {
+            int compressedLength = compress(data, length);
+            if (compressedLength + 4 < length) {
+                output.writeByte(type);
+                output.writeByte(FLAG_DEFLATED);
+                output.writeInt(compressedLength + 4);
+                output.writeInt(length);
+                output.write(compressed, 0, compressedLength);
+                flushIfTurnEnds(type);
+                return;
+            }
+        }
+        output.writeByte(type);
+        output.writeByte(0);
+        output.writeInt(length);
+        output.write(data, 0, length);
+        flushIfTurnEnds(type);
+    }
+
+    /**
+     * Frames are buffered until the writing side has to wait for an answer, which is after the index, the
+     * updates, the signatures, the end of the entries and the result
+     */
+    private void flushIfTurnEnds(byte type) throws IOException {
+        if (type == INDEX || type == UPDATES || type == SIGNATURES || type == END || type == RESULT) {
+            output.flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    public Frame read() throws IOException {
+        final byte type = input.readByte();
+        final int flags = input.readUnsignedByte();
+        final int length = input.readInt();
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        byte[] data = new byte[length];
+        input.readFully(data);
+        if ((flags & FLAG_DEFLATED) != 0) {
+            data = decompress(data);
+        }
+        return new Frame(type, data);
+    }
+
+    /**
+     * reads the next frame, which must be of the given type
+     */
+    public Frame read(byte expectedType) throws IOException {
+        Frame frame = read();
+        if (frame.getType() != expectedType) {
+            throw new IOException("Unexpected frame type " + frame.getType() + ", expected " + expectedType);
+        }
+        return frame;
+    }
+
+    private int compress(byte[] data, int length) {
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+        deflater.reset();
+        deflater.setInput(data, 0, length);
+        deflater.finish();
+        int compressedLength = 0;
+        while (!deflater.finished()) {
+            if (compressedLength == compressed.length) {
+                compressed = Arrays.copyOf(compressed, compressed.length * 2);
+            }
+            compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        }
+        return compressedLength;
+    }
+
+    private byte[] decompress(byte[] data) throws IOException {
+        if (data.length < 4) {
+            throw new IOException("Invalid compressed frame");
+        }
+        final int length = ((data[0] & 0xFF) << 24) | ((data[1] & 0xFF) << 16) | ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid inflated frame length " + length);
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(data, 4, data.length - 4);
+        final byte[] result = new byte[length];
+        try {
+            int read = 0;
+            while (read < length) {
+                int count = inflater.inflate(result, read, length - read);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IOException("Compressed frame is truncated");
+                }
+                read += count;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return result;
+    }
+
+    @Override
+    public void close() {
+        if (deflater != null) {
+            deflater.end();
+        }
+        if (inflater != null) {
+            inflater.end();
+        }
+    }
+
+    /**
+     * The payload of a frame that is being written
+     */
+    public static final class Payload extends DataOutputStream {
+
+        public Payload() {
+            super(new Buffer());
+        }
+
+        public void writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeInt(bytes.length);
+            write(bytes);
+        }
+
+        public void writeData(byte[] data) throws IOException {
+            writeInt(data.length);
+            write(data);
+        }
+
+        private byte[] buffer() {
+            return ((Buffer) out).buffer();
+        }
+    }
+
+    private static final class Buffer extends ByteArrayOutputStream {
+
+        private Buffer() {
+            super(256);
+        }
+
+        /**
+         * the internal buffer, which avoids the copy that toByteArray makes
+         */
+        byte[] buffer() {
+            return buf;
+        }
+    }
+
+    /**
+     * A frame that has been read
+     */
+    public static final class Frame extends DataInputStream {
+
+        private final byte type;
+
+        private Frame(byte type, byte[] data) {
+            super(new ByteArrayInputStream(data));
+            this.type = type;
+        }
+
+        public byte getType() {
+            return type;
+        }
+
+        public String readString() throws IOException {
+            return new String(readData(), StandardCharsets.UTF_8);
+        }
+
+        public byte[] readData() throws IOException {
+            final int length = readInt();
+            if (length < 0 || length > available()) {
+                throw new IOException("Invalid length " + length);
+            }
+            byte[] data = new byte[length];
+            readFully(data);
+            return data;
+        }
+    }
+}
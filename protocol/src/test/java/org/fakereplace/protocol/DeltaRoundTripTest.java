@@ -0,0 +1,197 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Encodes deltas against the signatures the agent sends, and applies them to the base version
+ *
+ * @author Stuart Douglas
+ */
+public class DeltaRoundTripTest {
+
+    private static final String NAME = "org.test.Changed";
+
+    @Test
+    public void testUnchanged() throws IOException {
+        final byte[] base = randomBytes(20000, 1);
+        Assert.assertArrayEquals(base, roundTrip(base, base));
+    }
+
+    @Test
+    public void testInsertion() throws IOException {
+        final byte[] base = randomBytes(20000, 2);
+        final byte[] inserted = randomBytes(333, 3);
+        final byte[] data = new byte[base.length + inserted.length];
+        System.arraycopy(base, 0, data, 0, 7000);
+        System.arraycopy(inserted, 0, data, 7000, inserted.length);
+        System.arraycopy(base, 7000, data, 7000 + inserted.length, base.length - 7000);
+        Assert.assertArrayEquals(data, roundTrip(base, data));
+    }
+
+    @Test
+    public void testDeletion() throws IOException {
+        final byte[] base = randomBytes(20000, 4);
+        final byte[] data = new byte[base.length - 1001];
+        System.arraycopy(base, 0, data, 0, 5000);
+        System.arraycopy(base, 6001, data, 5000, base.length - 6001);
+        Assert.assertArrayEquals(data, roundTrip(base, data));
+    }
+
+    @Test
+    public void testChangesAtBothEnds() throws IOException {
+        final byte[] base = randomBytes(20000, 5);
+        final byte[] data = Arrays.copyOfRange(base, 100, base.length - 50);
+        data[0] = 1;
+        data[data.length - 1] = 2;
+        Assert.assertArrayEquals(data, roundTrip(base, data));
+    }
+
+    @Test
+    public void testBaseShorterThanOneBlock() throws IOException {
+        final byte[] base = randomBytes(100, 6);
+        final byte[] data = randomBytes(8000, 7);
+        //there is nothing to copy, so the client sends the class in full
+        Assert.assertNull(encode(signatures(base), NAME, data));
+        //but a delta made of just literals still applies
+        final Frames.Payload payload = new Frames.Payload();
+        payload.writeLong(Fingerprint.of(data));
+        payload.writeInt(data.length);
+        payload.writeByte(Delta.OP_LITERAL);
+        payload.writeInt(data.length);
+        payload.write(data);
+        payload.writeByte(Delta.OP_END);
+        Assert.assertArrayEquals(data, Delta.apply(base, toFrame(payload)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testLengthTooLarge() throws IOException {
+        final Frames.Payload payload = new Frames.Payload();
+        payload.writeLong(0);
+        payload.writeInt(Integer.MAX_VALUE);
+        payload.writeByte(Delta.OP_END);
+        Delta.apply(randomBytes(8192, 8), toFrame(payload));
+    }
+
+    @Test(expected = IOException.class)
+    public void testBlockReferenceOverflow() throws IOException {
+        final Frames.Payload payload = new Frames.Payload();
+        payload.writeLong(0);
+        payload.writeInt(1024);
+        payload.writeByte(Delta.OP_COPY);
+        payload.writeInt(1);
+        payload.writeInt(Integer.MAX_VALUE);
+        payload.writeByte(Delta.OP_END);
+        Delta.apply(randomBytes(8192, 9), toFrame(payload));
+    }
+
+    @Test(expected = IOException.class)
+    public void testCopyLongerThanResult() throws IOException {
+        final byte[] base = randomBytes(8192, 10);
+        final Frames.Payload payload = new Frames.Payload();
+        payload.writeLong(0);
+        payload.writeInt(100);
+        payload.writeByte(Delta.OP_COPY);
+        payload.writeInt(0);
+        payload.writeInt(base.length / Delta.blockSize(base.length));
+        payload.writeByte(Delta.OP_END);
+        Delta.apply(base, toFrame(payload));
+    }
+
+    @Test(expected = IOException.class)
+    public void testWrongFingerprint() throws IOException {
+        final byte[] base = randomBytes(20000, 11);
+        final Frames.Frame frame = toFrame(encode(signatures(base), NAME, base));
+        frame.readString();
+        final byte[] changedBase = base.clone();
+        changedBase[0]++;
+        Delta.apply(changedBase, frame);
+    }
+
+    private static byte[] roundTrip(final byte[] base, final byte[] data) throws IOException {
+        final byte[] delta = encode(signatures(base), NAME, data);
+        Assert.assertNotNull(delta);
+        Assert.assertTrue(delta.length < data.length);
+        final Frames.Frame frame = toFrame(delta);
+        Assert.assertEquals(NAME, frame.readString());
+        return Delta.apply(base, frame);
+    }
+
+    /**
+     * Reads the class signatures from an encoded SIGNATURES frame, and encodes the data against the signature of
+     * the given class
+     *
+     * @return the encoded CLASS_DELTA frame, or null if the client would send the class in full
+     */
+    private static byte[] encode(final byte[] signatures, final String name, final byte[] data) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Frames frames = new Frames(new DataInputStream(new ByteArrayInputStream(signatures)), new DataOutputStream(out))) {
+            final Map<String, Delta.Signature> classSignatures = Delta.readSignatures(frames.read(Frames.SIGNATURES));
+            final Frames.Payload payload = Delta.encode(name, data, classSignatures.get(name));
+            if (payload == null) {
+                return null;
+            }
+            frames.write(Frames.CLASS_DELTA, payload);
+            frames.flush();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] signatures(final byte[] base) throws IOException {
+        final Frames.Payload payload = new Frames.Payload();
+        payload.writeInt(1);
+        payload.writeString(NAME);
+        Delta.writeSignature(payload, base);
+        payload.writeInt(0);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Frames frames = new Frames(new DataInputStream(new ByteArrayInputStream(new byte[0])), new DataOutputStream(out))) {
+            frames.write(Frames.SIGNATURES, payload);
+        }
+        return out.toByteArray();
+    }
+
+    private static Frames.Frame toFrame(final Frames.Payload payload) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (Frames frames = new Frames(new DataInputStream(new ByteArrayInputStream(new byte[0])), new DataOutputStream(out))) {
+            frames.write(Frames.CLASS_DELTA, payload);
+            frames.flush();
+        }
+        return toFrame(out.toByteArray());
+    }
+
+    private static Frames.Frame toFrame(final byte[] data) throws IOException {
+        return new Frames(new DataInputStream(new ByteArrayInputStream(data)), new DataOutputStream(new ByteArrayOutputStream())).read(Frames.CLASS_DELTA);
+    }
+
+    private static byte[] randomBytes(final int length, final long seed) {
+        final byte[] data = new byte[length];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2016, Stuart Douglas, and individual contributors as indicated
+ * by the @authors tag.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.fakereplace.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Checks the fingerprints against the published xxHash64 test vectors, with a seed of zero
+ */
+public class FingerprintTest {
+
+    @Test
+    public void testVectors() {
+        Assert.assertEquals(0xEF46DB3751D8E999L, fingerprint(""));
+        Assert.assertEquals(0xD24EC4F1A98C6E5BL, fingerprint("a"));
+        Assert.assertEquals(0x44BC2CF5AD770999L, fingerprint("abc"));
+        Assert.assertEquals(0x066ED728FCEEB3BEL, fingerprint("message digest"));
+        Assert.assertEquals(0xCFE1F278FA89835CL, fingerprint("abcdefghijklmnopqrstuvwxyz"));
+        Assert.assertEquals(0xAAA46907D3047814L, fingerprint("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"));
+        Assert.assertEquals(0xE04A477F19EE145DL, fingerprint("12345678901234567890123456789012345678901234567890123456789012345678901234567890"));
+    }
+
+    @Test
+    public void testSanityBuffer() {
+        //the buffer used by the xxHash sanity checks
+        byte[] buffer = new byte[64];
+        long generator = 2654435761L;
+        for (int i = 0; i < buffer.length; ++i) {
+            buffer[i] = (byte) (generator >>> 56);
+            generator *= 0x9E3779B97F4A7C15L;
+        }
+        Assert.assertEquals(0xEF46DB3751D8E999L, Fingerprint.of(buffer, 0, 0));
+        Assert.assertEquals(0xE934A84ADB052768L, Fingerprint.of(buffer, 0, 1));
+    }
+
+    @Test
+    public void testOffset() {
+        byte[] data = "xx12345678901234567890123456789012345678901234567890123456789012345678901234567890xx".getBytes(StandardCharsets.US_ASCII);
+        Assert.assertEquals(0xE04A477F19EE145DL, Fingerprint.of(data, 2, data.length - 4));
+        Assert.assertEquals(0x44BC2CF5AD770999L, Fingerprint.of("xabcx".getBytes(StandardCharsets.US_ASCII), 1, 3));
+    }
+
+    private static long fingerprint(String value) {
+        return Fingerprint.of(value.getBytes(StandardCharsets.US_ASCII));
+    }
+}